@@ -600,6 +600,13 @@ public class Broker extends BaseService {
         return authenticator;
     }
 
+    /**
+     * @return a cached version of the current time in milliseconds, it is updated every 100ms.
+     */
+    public long getNow() {
+        return now;
+    }
+
     private KeyStorage resolveKeyStorage() {
 
         if (config.key_storage != null) {
@@ -628,18 +635,33 @@ public class Broker extends BaseService {
     }
 
     private void virtualHostMaintenance() {
-        Set<String> activeSessions = new LinkedHashSet<String>();
-        for (BrokerConnection c : connections.values()) {
-            activeSessions.add(c.getSessionId());
-        }
-
         for (VirtualHost host : virtualHosts.values()) {
             if (host.getServiceState().isStarted()) {
-                host.getRouter().removeTempDestinations(activeSessions);
+                host.getRouter().maintenance();
+                host.getExpirationWheel().advance(now);
+                host.getIdleWheel().advance(now);
+                host.getDelayWheel().advance(now);
             }
         }
     }
 
+    /**
+     * Called when a connection stops so the temp destinations its session created get
+     * removed right away.
+     */
+    public void removeTempDestinations(final String sessionId) {
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                for (VirtualHost host : virtualHosts.values()) {
+                    if (host.getServiceState().isStarted()) {
+                        host.getRouter().removeTempDestinations(sessionId);
+                    }
+                }
+            }
+        });
+    }
+
     private void scheduleBrokerTimeUpdate() {
         scheduleReocurring(100L, TimeUnit.MILLISECONDS, new Procedure0() {
             @Override
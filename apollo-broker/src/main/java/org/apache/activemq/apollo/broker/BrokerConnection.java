@@ -142,6 +142,10 @@ public class BrokerConnection extends AbstractConnection implements Connection{
     @Override
     protected void _stop(Task onCompleted) {
         connector.stopped(this);
+        String sessionId = protocolHandler == null ? null : getSessionId();
+        if (sessionId != null) {
+            connector.getBroker().removeTempDestinations(sessionId);
+        }
         super._stop(onCompleted);
     }
 
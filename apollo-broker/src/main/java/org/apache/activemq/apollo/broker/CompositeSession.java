@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.broker.store.StoreUOW;
+import org.apache.activemq.apollo.filter.BooleanExpression;
+import org.apache.activemq.apollo.filter.FilterException;
+import org.fusesource.hawtdispatch.Task;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The session a producer gets to a composite destination.  It holds a session to every
+ * target and offers each message to the targets whose selector it matches, so a
+ * message is sent once whatever the number of targets.
+ *
+ * All the targets get the same delivery, so they share the message, and when more than
+ * one of them is a queue which stores it, the message is stored once up front and the
+ * queues enqueue that record as part of the same unit of work.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+class CompositeSession implements DeliverySession {
+
+    private final DeliveryProducer producer;
+    private final DeliverySession[] sessions;
+    // null for the targets which take every message
+    private final BooleanExpression[] selectors;
+    private Task refiller;
+
+    CompositeSession(DeliveryProducer producer, DeliverySession[] sessions, BooleanExpression[] selectors) {
+        this.producer = producer;
+        this.sessions = sessions;
+        this.selectors = selectors;
+    }
+
+    private boolean matches(int target, Delivery delivery) {
+        if (selectors[target] == null) {
+            return true;
+        }
+        try {
+            return selectors[target].matches(delivery.getMessage());
+        } catch (FilterException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The producer is held back while any of the targets is.
+     */
+    @Override
+    public boolean full() {
+        for (DeliverySession session : sessions) {
+            if (session.full()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean offer(Delivery delivery) {
+        ArrayList<DeliverySession> targets = new ArrayList<DeliverySession>(sessions.length);
+        for (int i = 0; i < sessions.length; i++) {
+            if (matches(i, delivery)) {
+                targets.add(sessions[i]);
+            }
+        }
+        final DeliveryAck ack = delivery.getAck();
+        if (targets.isEmpty()) {
+            if (ack != null) {
+                ack.apply(DeliveryResult.CONSUMED, null);
+            }
+            return true;
+        }
+
+        Delivery shared = delivery.copy();
+        if (ack != null) {
+            // the producer is acked once every target has taken the message
+            final AtomicInteger remaining = new AtomicInteger(targets.size());
+            shared.setAck(new DeliveryAck() {
+                @Override
+                public void apply(DeliveryResult result, StoreUOW uow) {
+                    if (remaining.decrementAndGet() == 0) {
+                        ack.apply(result, uow);
+                    }
+                }
+            });
+        }
+        StoreUOW uow = null;
+        if (targets.size() > 1 && shared.isPersistent()) {
+            ArrayList<DeliveryConsumer> consumers = new ArrayList<DeliveryConsumer>(targets.size());
+            for (DeliverySession target : targets) {
+                consumers.add(target.getConsumer());
+            }
+            uow = Queue.storeShared(shared, consumers);
+        }
+        for (DeliverySession target : targets) {
+            target.offer(shared);
+        }
+        if (uow != null) {
+            shared.setUow(null);
+            uow.release();
+        }
+        return true;
+    }
+
+    @Override
+    public Task refiller() {
+        return refiller;
+    }
+
+    @Override
+    public void setRefiller(Task value) {
+        refiller = value;
+        for (DeliverySession session : sessions) {
+            session.setRefiller(value);
+        }
+    }
+
+    @Override
+    public DeliveryProducer getProducer() {
+        return producer;
+    }
+
+    /**
+     * @return null, the messages go to the consumers of the target sessions.
+     */
+    @Override
+    public DeliveryConsumer getConsumer() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        for (DeliverySession session : sessions) {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.QueueSettingsDTO;
+
+/**
+ * Provides the dispatch strategies which ship with the broker.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class DefaultDispatchStrategyFactory implements DispatchStrategyFactory {
+
+    public static final String ROUND_ROBIN = "round_robin";
+    public static final String EXCLUSIVE = "exclusive";
+    public static final String WEIGHTED = "weighted";
+
+    @Override
+    public DispatchStrategy create(String name, QueueSettingsDTO config) {
+        if (ROUND_ROBIN.equals(name)) {
+            return new RoundRobinDispatchStrategy(config.round_robin == null || config.round_robin);
+        }
+        if (EXCLUSIVE.equals(name)) {
+            return new ExclusiveDispatchStrategy();
+        }
+        if (WEIGHTED.equals(name)) {
+            return new WeightedDispatchStrategy();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.broker.protocol.MessageCodecFactory;
+import org.apache.activemq.apollo.broker.store.MessageRecord;
+import org.apache.activemq.apollo.broker.store.StoreUOW;
+
+/**
+ * A message in flight between a producer, the destinations and the consumers along with
+ * the meta data the broker needs to route, store and acknowledge it.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class Delivery {
+
+    public static final int DEFAULT_PRIORITY = 4;
+
+    private Message message;
+    private int size;
+    private long expiration;
+    private boolean persistent;
+    private int priority = DEFAULT_PRIORITY;
+    private long seq = -1;
+    private long storeKey = -1;
+    private int redeliveries;
+    private DeliveryAck ack;
+    private StoreUOW uow;
+
+    public Message getMessage() {
+        return message;
+    }
+
+    public void setMessage(Message message) {
+        this.message = message;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    /**
+     * @return the time in milliseconds since the epoch when the message expires or 0 if it never expires.
+     */
+    public long getExpiration() {
+        return expiration;
+    }
+
+    public void setExpiration(long expiration) {
+        this.expiration = expiration;
+    }
+
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    public void setPersistent(boolean persistent) {
+        this.persistent = persistent;
+    }
+
+    /**
+     * @return the JMS style priority of the message, from 0 (lowest) to 9 (highest).
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public void setSeq(long seq) {
+        this.seq = seq;
+    }
+
+    public long getStoreKey() {
+        return storeKey;
+    }
+
+    public void setStoreKey(long storeKey) {
+        this.storeKey = storeKey;
+    }
+
+    public int getRedeliveries() {
+        return redeliveries;
+    }
+
+    public void setRedeliveries(int redeliveries) {
+        this.redeliveries = redeliveries;
+    }
+
+    public DeliveryAck getAck() {
+        return ack;
+    }
+
+    public void setAck(DeliveryAck ack) {
+        this.ack = ack;
+    }
+
+    public StoreUOW getUow() {
+        return uow;
+    }
+
+    public void setUow(StoreUOW uow) {
+        this.uow = uow;
+    }
+
+    public boolean isExpired(long now) {
+        return expiration != 0 && expiration <= now;
+    }
+
+    /**
+     * @return a shallow copy of the delivery, the message itself is shared.
+     */
+    public Delivery copy() {
+        Delivery rc = new Delivery();
+        rc.message = message;
+        rc.size = size;
+        rc.expiration = expiration;
+        rc.persistent = persistent;
+        rc.priority = priority;
+        rc.seq = seq;
+        rc.storeKey = storeKey;
+        rc.redeliveries = redeliveries;
+        rc.ack = ack;
+        rc.uow = uow;
+        return rc;
+    }
+
+    public MessageRecord createMessageRecord() {
+        MessageRecord record = MessageCodecFactory.encode(message);
+        record.messageKey = storeKey;
+        record.expiration = expiration;
+        return record;
+    }
+
+    @Override
+    public String toString() {
+        return "Delivery{" +
+                "seq=" + seq +
+                ", size=" + size +
+                ", storeKey=" + storeKey +
+                ", redeliveries=" + redeliveries +
+                '}';
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.broker.store.StoreUOW;
+
+/**
+ * Callback used by a consumer to tell the source of a {@link Delivery} what
+ * happened to it.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public interface DeliveryAck {
+
+    /**
+     * @param result what happened to the delivery
+     * @param uow    the unit of work the ack is part of, may be null
+     */
+    public void apply(DeliveryResult result, StoreUOW uow);
+}
@@ -0,0 +1,52 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.fusesource.hawtdispatch.DispatchQueue;
+
+/**
+ * Something which receives messages from a destination, typically a consumer
+ * on a client connection.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public interface DeliveryConsumer {
+
+    public DispatchQueue getDispatchQueue();
+
+    /**
+     * @return the connection the consumer belongs to or null if the consumer is internal
+     * to the broker.
+     */
+    public BrokerConnection getConnection();
+
+    /**
+     * Opens a session the producer can use to send deliveries to this consumer.
+     */
+    public DeliverySession connect(DeliveryProducer producer);
+
+    /**
+     * @return true if the consumer is interested in the delivery.
+     */
+    public boolean matches(Delivery delivery);
+
+    /**
+     * @return the priority of the consumer, destinations using a weighted dispatch
+     * hand out messages in proportion to it.
+     */
+    public int getPriority();
+}
@@ -0,0 +1,52 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+/**
+ * The outcome of a delivery attempt as reported back to the source of the delivery.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public enum DeliveryResult {
+
+    /**
+     * The message was processed, and can be removed from the source.
+     */
+    CONSUMED,
+
+    /**
+     * The message was delivered to the client but it was not processed,
+     * the source should redeliver it.
+     */
+    DELIVERED,
+
+    /**
+     * The message never made it to the client, the redelivery counter
+     * does not need to be incremented.
+     */
+    UNDELIVERED,
+
+    /**
+     * The client could not process the message.
+     */
+    POISONED,
+
+    /**
+     * The message expired before it could be processed.
+     */
+    EXPIRED
+}
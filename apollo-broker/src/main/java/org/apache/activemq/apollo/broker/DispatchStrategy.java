@@ -0,0 +1,36 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import java.util.List;
+
+/**
+ * Decides which of the subscriptions of a {@link Queue} get the entries that are
+ * ready to be dispatched.  A strategy is only ever invoked from the queue's
+ * dispatch queue so implementations can keep their own state without locking.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public interface DispatchStrategy {
+
+    /**
+     * Hands entries to the subscriptions until none of them can make any more
+     * progress.  The subscriptions are in the order they were bound to the queue.
+     */
+    public void dispatch(List<Subscription> subscriptions);
+
+}
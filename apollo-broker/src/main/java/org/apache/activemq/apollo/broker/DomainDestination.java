@@ -0,0 +1,42 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.DestinationDTO;
+
+/**
+ * A destination which is managed by one of the {@link LocalRouter} domains.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public interface DomainDestination {
+
+    public String getId();
+
+    public DestinationDTO getAddress();
+
+    public void bind(DeliveryConsumer consumer);
+
+    public void unbind(DeliveryConsumer consumer);
+
+    /**
+     * @return the session the producer should use to send to the destination.
+     */
+    public DeliverySession connect(DeliveryProducer producer);
+
+    public void disconnect(DeliveryProducer producer);
+}
@@ -0,0 +1,234 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.broker.store.QueueEntryRecord;
+import org.apache.activemq.apollo.broker.store.QueueRecord;
+import org.apache.activemq.apollo.broker.store.StoreUOW;
+import org.apache.activemq.apollo.util.LongHashSet;
+import org.apache.activemq.apollo.util.Procedure1;
+import org.fusesource.hawtbuf.UTF8Buffer;
+import org.fusesource.hawtdispatch.Task;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ids of the messages recently sent to a {@link Queue}, used to drop the messages
+ * a producer sends again.
+ *
+ * Only a 64 bit hash of every id is kept, in two primitive hash sets: new ids go to
+ * the current generation and once it holds half the window, the previous generation
+ * is dropped and the current one takes its place.  So the window always covers between
+ * half and all of the configured number of most recent ids, without any per id objects.
+ *
+ * The ids of persistent messages are recorded in a queue of their own in the store, in
+ * the unit of work which stores the message, sequenced in the order they were seen.
+ * Dropping a generation dequeues its range of sequences, and on restart the recorded
+ * ids are replayed to rebuild both generations.
+ *
+ * All the state is only accessed from the queue's dispatch queue.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+class DuplicateWindow {
+
+    public static final int DEFAULT_SIZE = 100000;
+
+    private final Queue queue;
+    private int generationSize = DEFAULT_SIZE / 2;
+    private LongHashSet current = new LongHashSet();
+    private LongHashSet previous = new LongHashSet();
+
+    // read by the router when the queue gets removed
+    private volatile long storeId = -1;
+    private boolean storeRequested;
+    // ids waiting for the store to assign the window a key
+    private final ArrayList<QueueEntryRecord> awaitingStore = new ArrayList<QueueEntryRecord>();
+    private long nextSeq = 1;
+    // the first recorded sequence of the current and of the previous generation
+    private long currentFirstSeq = 1;
+    private long previousFirstSeq = 1;
+
+    // deliveries which showed up while the recorded ids were being read back
+    private ArrayList<Delivery> deferred;
+
+    DuplicateWindow(Queue queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * @return a 64 bit FNV-1a hash of the id, wide enough that two ids within a window
+     * practically never collide.
+     */
+    static long hash(Object id) {
+        String value = id.toString();
+        long rc = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            rc = (rc ^ (c & 0xff)) * 0x100000001b3L;
+            rc = (rc ^ (c >>> 8)) * 0x100000001b3L;
+        }
+        return rc;
+    }
+
+    void setSize(int size) {
+        generationSize = Math.max(1, size / 2);
+    }
+
+    boolean contains(long hash) {
+        return current.contains(hash) || previous.contains(hash);
+    }
+
+    /**
+     * Adds the id to the window.  When a unit of work is given, the id is recorded in
+     * the store along with it.
+     */
+    void add(long hash, StoreUOW uow) {
+        if (current.size() >= generationSize) {
+            long droppedFirstSeq = previousFirstSeq;
+            rotate();
+            if (storeId != -1 && previousFirstSeq > droppedFirstSeq) {
+                StoreUOW drop = queue.getStore().createStoreUOW();
+                drop.dequeueRange(storeId, droppedFirstSeq, previousFirstSeq - 1);
+                drop.release();
+            }
+        }
+        current.add(hash);
+        if (uow == null) {
+            return;
+        }
+        QueueEntryRecord record = new QueueEntryRecord();
+        record.entrySeq = nextSeq++;
+        record.messageKey = -1;
+        record.idHash = hash;
+        if (storeId == -1) {
+            awaitingStore.add(record);
+            requestStore();
+        } else {
+            record.queueKey = storeId;
+            uow.enqueue(record);
+        }
+    }
+
+    /**
+     * Drops the previous generation, the current one takes its place.
+     */
+    private void rotate() {
+        LongHashSet dropped = previous;
+        previous = current;
+        dropped.clear();
+        current = dropped;
+        previousFirstSeq = currentFirstSeq;
+        currentFirstSeq = nextSeq;
+    }
+
+    private void requestStore() {
+        if (storeRequested) {
+            return;
+        }
+        storeRequested = true;
+        QueueRecord record = new QueueRecord(-1, LocalRouter.DUPLICATES_BINDING_KIND, new UTF8Buffer(String.valueOf(queue.getStoreId())));
+        queue.getStore().addQueue(record, new Procedure1<Long>() {
+            @Override
+            public void execute(final Long key) {
+                queue.getDispatchQueue().execute(new Task() {
+                    @Override
+                    public void run() {
+                        storeId = key;
+                        StoreUOW uow = queue.getStore().createStoreUOW();
+                        for (QueueEntryRecord record : awaitingStore) {
+                            // ids of a generation dropped in the meantime are not needed anymore
+                            if (record.entrySeq >= previousFirstSeq) {
+                                record.queueKey = key;
+                                uow.enqueue(record);
+                            }
+                        }
+                        uow.release();
+                        awaitingStore.clear();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Reads back the ids a previous broker run recorded.  Deliveries which show up in
+     * the meantime are deferred until the window is complete.
+     */
+    void restore(long key) {
+        storeId = key;
+        storeRequested = true;
+        deferred = new ArrayList<Delivery>();
+        queue.getStore().listQueueEntries(key, 0, Long.MAX_VALUE, new Procedure1<List<QueueEntryRecord>>() {
+            @Override
+            public void execute(final List<QueueEntryRecord> records) {
+                queue.getDispatchQueue().execute(new Task() {
+                    @Override
+                    public void run() {
+                        restored(records);
+                    }
+                });
+            }
+        });
+    }
+
+    private void restored(List<QueueEntryRecord> records) {
+        long firstSeq = records.isEmpty() ? 1 : records.get(0).entrySeq;
+        nextSeq = previousFirstSeq = currentFirstSeq = firstSeq;
+        for (QueueEntryRecord record : records) {
+            if (current.size() >= generationSize) {
+                nextSeq = record.entrySeq;
+                rotate();
+            }
+            current.add(record.idHash);
+            nextSeq = record.entrySeq + 1;
+        }
+        if (previousFirstSeq > firstSeq) {
+            // the window shrunk or the last rotation did not make it to the store
+            StoreUOW uow = queue.getStore().createStoreUOW();
+            uow.dequeueRange(storeId, firstSeq, previousFirstSeq - 1);
+            uow.release();
+        }
+        ArrayList<Delivery> pending = deferred;
+        deferred = null;
+        for (Delivery delivery : pending) {
+            queue.accept(delivery);
+            if (delivery.getUow() != null) {
+                delivery.getUow().release();
+            }
+        }
+    }
+
+    boolean isRestoring() {
+        return deferred != null;
+    }
+
+    void defer(Delivery delivery) {
+        if (delivery.getUow() != null) {
+            delivery.getUow().retain();
+        }
+        deferred.add(delivery);
+    }
+
+    /**
+     * @return the key of the window's queue in the store, -1 if it has none.
+     */
+    long getStoreId() {
+        return storeId;
+    }
+}
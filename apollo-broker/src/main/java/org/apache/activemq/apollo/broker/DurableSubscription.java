@@ -0,0 +1,136 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.DurableSubscriptionDTO;
+import org.apache.activemq.apollo.dto.DurableSubscriptionDestinationDTO;
+import org.apache.activemq.apollo.dto.JsonCodec;
+import org.apache.activemq.apollo.dto.QueueDTO;
+import org.apache.activemq.apollo.dto.TopicDestinationDTO;
+import org.apache.activemq.apollo.filter.BooleanExpression;
+import org.apache.activemq.apollo.filter.FilterException;
+import org.apache.activemq.apollo.selector.SelectorParser;
+import org.fusesource.hawtbuf.Buffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * A queue which is bound as a consumer to one or more topics, so it keeps collecting
+ * the messages published to them while none of its own consumers are around.
+ *
+ * The selector is parsed once, when the subscription is created, and the topics
+ * evaluate it against every message they publish before handing it over.  Messages
+ * which do not match never get enqueued, so they never take up room in the
+ * subscription or in the store.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class DurableSubscription extends Queue {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DurableSubscription.class.getName());
+
+    private final DurableSubscriptionDestinationDTO binding;
+    private final BooleanExpression selector;
+
+    public DurableSubscription(LocalRouter router, DurableSubscriptionDestinationDTO binding, DurableSubscriptionDTO config) {
+        super(router, binding, config);
+        this.binding = binding;
+        this.selector = parseSelector(binding.selector);
+    }
+
+    /**
+     * @return the parsed selector or null if no selector was given.
+     * @throws IllegalArgumentException if the selector is not valid.
+     */
+    public static BooleanExpression parseSelector(String selector) {
+        if (selector == null) {
+            return null;
+        }
+        try {
+            return SelectorParser.parse(selector);
+        } catch (FilterException e) {
+            throw new IllegalArgumentException("Invalid selector: " + selector, e);
+        }
+    }
+
+    public static Buffer encodeBinding(DurableSubscriptionDestinationDTO binding) {
+        try {
+            return JsonCodec.encode(binding);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static DurableSubscriptionDestinationDTO decodeBinding(Buffer data) {
+        try {
+            return JsonCodec.decode(data, DurableSubscriptionDestinationDTO.class);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public DurableSubscriptionDestinationDTO getBinding() {
+        return binding;
+    }
+
+    public ArrayList<TopicDestinationDTO> getTopics() {
+        return binding.topics;
+    }
+
+    /**
+     * @return true if a subscriber asking for the given binding gets this subscription,
+     * otherwise the subscription has to be replaced by a new one.
+     */
+    public boolean isBoundAs(DurableSubscriptionDestinationDTO other) {
+        if (binding.selector != null ? !binding.selector.equals(other.selector) : other.selector != null) {
+            return false;
+        }
+        return binding.topics.equals(other.topics);
+    }
+
+    /**
+     * Durable subscriptions are only removed when they get replaced.
+     */
+    @Override
+    protected int autoDeleteAfter(QueueDTO config) {
+        return 0;
+    }
+
+    /**
+     * Called by the topics the subscription is bound to, from their dispatch queues.
+     */
+    @Override
+    public boolean matches(Delivery delivery) {
+        if (selector == null) {
+            return true;
+        }
+        try {
+            return selector.matches(delivery.getMessage());
+        } catch (FilterException e) {
+            LOG.debug("Selector of {} could not be evaluated: {}", this, e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "dsub: " + getId();
+    }
+}
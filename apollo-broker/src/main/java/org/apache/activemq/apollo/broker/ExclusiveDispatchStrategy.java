@@ -0,0 +1,44 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import java.util.List;
+
+/**
+ * Only the oldest subscription receives entries, the others are standing by.  When
+ * it unbinds, the entries it had not acknowledged are rewound and the next oldest
+ * subscription takes over from there.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class ExclusiveDispatchStrategy implements DispatchStrategy {
+
+    @Override
+    public void dispatch(List<Subscription> subscriptions) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        Subscription exclusive = subscriptions.get(0);
+        while (exclusive.dispatch()) {
+        }
+    }
+
+    @Override
+    public String toString() {
+        return DefaultDispatchStrategyFactory.EXCLUSIVE;
+    }
+}
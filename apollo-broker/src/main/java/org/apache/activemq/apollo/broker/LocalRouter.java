@@ -0,0 +1,1053 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.broker.store.QueueRecord;
+import org.apache.activemq.apollo.broker.store.Store;
+import org.apache.activemq.apollo.dto.CompositeDestinationDTO;
+import org.apache.activemq.apollo.dto.DestinationDTO;
+import org.apache.activemq.apollo.dto.DurableSubscriptionDTO;
+import org.apache.activemq.apollo.dto.DurableSubscriptionDestinationDTO;
+import org.apache.activemq.apollo.dto.ForwardDTO;
+import org.apache.activemq.apollo.dto.QueueDTO;
+import org.apache.activemq.apollo.dto.QueueDestinationDTO;
+import org.apache.activemq.apollo.dto.TopicDTO;
+import org.apache.activemq.apollo.dto.TopicDestinationDTO;
+import org.apache.activemq.apollo.dto.VirtualHostDTO;
+import org.apache.activemq.apollo.dto.VirtualTopicDTO;
+import org.apache.activemq.apollo.filter.BooleanExpression;
+import org.apache.activemq.apollo.util.BaseService;
+import org.apache.activemq.apollo.util.Procedure1;
+import org.apache.activemq.apollo.util.TaskTracker;
+import org.apache.activemq.apollo.util.path.PathMap;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.fusesource.hawtdispatch.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * The default router of a virtual host. Destinations are indexed by their path segments
+ * in a trie so that both concrete and wildcard (<code>*</code>, <code>**</code>) addresses
+ * are resolved by walking the trie instead of scanning every destination.
+ *
+ * Producers which send to a composite destination are connected to all its targets
+ * through a {@link CompositeSession}.  The queues of virtual topics are bound as
+ * consumers to their topic as long as they exist.
+ *
+ * All the methods of the router must be called from the virtual host's dispatch queue.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class LocalRouter extends BaseService implements Router {
+
+    private Logger LOG = LoggerFactory.getLogger(getClass().getName());
+
+    public static final String PATH_SEPARATOR = ".";
+    public static final String TEMP_PREFIX = "temp";
+    public static final String QUEUE_BINDING_KIND = "queue";
+    public static final String PRIVATE_QUEUE_BINDING_KIND = "private";
+    public static final String DSUB_BINDING_KIND = "dsub";
+    // holds the delayed messages of the queue named by the binding data
+    public static final String SCHEDULE_BINDING_KIND = "schedule";
+    public static final String DUPLICATES_BINDING_KIND = "duplicates";
+    public static final String PARTITION_BINDING_KIND = "partition";
+
+    private static final Pattern PATH_SPLITTER = Pattern.compile(Pattern.quote(PATH_SEPARATOR));
+
+    private final VirtualHost virtualHost;
+    private final QueueDomain queueDomain = new QueueDomain();
+    private final TopicDomain topicDomain = new TopicDomain();
+    private final DsubDomain dsubDomain = new DsubDomain();
+    private final HashMap<Long, Queue> queuesByStoreId = new HashMap<Long, Queue>();
+
+    public LocalRouter(VirtualHost virtualHost) {
+        super(virtualHost.getDispatchQueue());
+        this.virtualHost = virtualHost;
+    }
+
+    public static String[] decodePath(DestinationDTO address) {
+        if (address.path != null && !address.path.isEmpty()) {
+            return address.path.toArray(new String[address.path.size()]);
+        }
+        return decodePath(address.name);
+    }
+
+    public static String[] decodePath(String name) {
+        return PATH_SPLITTER.split(name);
+    }
+
+    public static String encodePath(String[] path) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < path.length; i++) {
+            if (i > 0) {
+                sb.append(PATH_SEPARATOR);
+            }
+            sb.append(path[i]);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public VirtualHost getVirtualHost() {
+        return virtualHost;
+    }
+
+    public QueueDomain getQueueDomain() {
+        return queueDomain;
+    }
+
+    public TopicDomain getTopicDomain() {
+        return topicDomain;
+    }
+
+    public DsubDomain getDsubDomain() {
+        return dsubDomain;
+    }
+
+    @Override
+    public Queue getQueue(long id) {
+        return queuesByStoreId.get(id);
+    }
+
+    @Override
+    protected void _start(final Task onCompleted) {
+        Store store = virtualHost.getStore();
+        if (store == null) {
+            createConfiguredDestinations();
+            onCompleted.run();
+            return;
+        }
+
+        // restore the queues which are held by the store before creating the configured ones
+        store.listQueues(new Procedure1<List<QueueRecord>>() {
+            @Override
+            public void execute(final List<QueueRecord> records) {
+                dispatchQueue.execute(new Task() {
+                    @Override
+                    public void run() {
+                        ArrayList<QueueRecord> partitions = new ArrayList<QueueRecord>();
+                        ArrayList<QueueRecord> schedules = new ArrayList<QueueRecord>();
+                        ArrayList<QueueRecord> windows = new ArrayList<QueueRecord>();
+                        for (QueueRecord record : records) {
+                            if (QUEUE_BINDING_KIND.equals(record.bindingKind)) {
+                                queueDomain.restore(record);
+                            } else if (DSUB_BINDING_KIND.equals(record.bindingKind)) {
+                                dsubDomain.restore(record);
+                            } else if (PRIVATE_QUEUE_BINDING_KIND.equals(record.bindingKind)) {
+                                // its owner went away with the previous broker run
+                                removeStoredQueue(record.key);
+                            } else if (PARTITION_BINDING_KIND.equals(record.bindingKind)) {
+                                partitions.add(record);
+                            } else if (SCHEDULE_BINDING_KIND.equals(record.bindingKind)) {
+                                schedules.add(record);
+                            } else if (DUPLICATES_BINDING_KIND.equals(record.bindingKind)) {
+                                windows.add(record);
+                            } else {
+                                LOG.warn("Ignoring stored queue {} with an unknown binding kind: {}", record.key, record.bindingKind);
+                            }
+                        }
+                        // the queues the partitions, schedules and duplicate windows belong
+                        // to have to be restored first
+                        for (QueueRecord record : partitions) {
+                            queueDomain.restorePartition(record);
+                        }
+                        HashMap<Long, Queue> owners = new HashMap<Long, Queue>();
+                        for (Queue queue : queueDomain.getDestinations()) {
+                            queueDomain.createPartitions(queue);
+                            owners.put(queue.getStoreId(), queue);
+                            for (Queue partition : queue.getPartitions()) {
+                                owners.put(partition.getStoreId(), partition);
+                            }
+                        }
+                        for (Queue dsub : dsubDomain.getDestinations()) {
+                            owners.put(dsub.getStoreId(), dsub);
+                        }
+                        for (QueueRecord record : schedules) {
+                            Queue queue = owners.get(Long.parseLong(record.bindingData.utf8().toString()));
+                            if (queue != null) {
+                                queue.restoreSchedule(record.key);
+                            } else {
+                                removeStoredQueue(record.key);
+                            }
+                        }
+                        for (QueueRecord record : windows) {
+                            Queue queue = owners.get(Long.parseLong(record.bindingData.utf8().toString()));
+                            if (queue != null) {
+                                queue.restoreDuplicates(record.key);
+                            } else {
+                                removeStoredQueue(record.key);
+                            }
+                        }
+                        createConfiguredDestinations();
+                        onCompleted.run();
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    protected void _stop(Task onCompleted) {
+        TaskTracker tracker = new TaskTracker("router shutdown");
+        for (Queue queue : queueDomain.getDestinations()) {
+            queue.stop(tracker.task("stop " + queue));
+        }
+        for (Topic topic : topicDomain.getDestinations()) {
+            topic.stop(tracker.task("stop " + topic));
+        }
+        for (DurableSubscription dsub : dsubDomain.getDestinations()) {
+            dsub.stop(tracker.task("stop " + dsub));
+        }
+        tracker.callback(onCompleted);
+    }
+
+    @Override
+    public void applyUpdate(final Task onComplete) {
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                TaskTracker tracker = new TaskTracker("router update");
+
+                // only touch the destinations whose resolved config actually changed
+                for (Queue queue : queueDomain.getDestinations()) {
+                    QueueDTO config = queueConfig(decodePath(queue.getId()));
+                    if (!config.equals(queue.getConfig())) {
+                        queue.update(config, tracker.task("update " + queue));
+                    }
+                }
+                for (Topic topic : topicDomain.getDestinations()) {
+                    TopicDTO config = topicConfig(decodePath(topic.getId()));
+                    if (!config.equals(topic.getConfig())) {
+                        topic.update(config, tracker.task("update " + topic));
+                    }
+                }
+                for (DurableSubscription dsub : dsubDomain.getDestinations()) {
+                    DurableSubscriptionDTO config = dsubConfig(dsub.getId());
+                    if (!config.equals(dsub.getConfig())) {
+                        dsub.update(config, tracker.task("update " + dsub));
+                    }
+                }
+
+                createConfiguredDestinations();
+                tracker.callback(onComplete);
+            }
+        });
+    }
+
+    @Override
+    public void maintenance() {
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                for (Queue queue : queueDomain.destinationById.values()) {
+                    queue.maintenance();
+                }
+                for (Queue queue : dsubDomain.destinationById.values()) {
+                    queue.maintenance();
+                }
+                for (Topic topic : topicDomain.getDestinations()) {
+                    topic.maintenance();
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands a message over to the dead letter queue with the given id, the queue gets
+     * created if it does not exist yet.
+     */
+    void deadLetter(final String id, final Delivery delivery) {
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                Queue queue = queueDomain.get(id);
+                if (queue == null) {
+                    queue = queueDomain.create(decodePath(id), new QueueDestinationDTO(id));
+                }
+                queue.enqueueDeadLetter(delivery);
+            }
+        });
+    }
+
+    /**
+     * Connects a mirrored queue to the topic of the same name, the topic gets created
+     * if it does not exist yet.
+     */
+    void connectMirror(final Queue queue) {
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                Topic topic = topicDomain.get(queue.getId());
+                if (topic == null) {
+                    topic = topicDomain.create(decodePath(queue.getId()), new TopicDestinationDTO(queue.getId()));
+                }
+                queue.setMirror(topic.connect(queue));
+            }
+        });
+    }
+
+    /**
+     * Removes a queue which has been idle for longer than its auto_delete_after.
+     */
+    void autoDelete(final Queue queue) {
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                if (queueDomain.get(queue.getId()) == queue) {
+                    queueDomain.remove(queue);
+                    queue.stop(Dispatch.NOOP);
+                }
+            }
+        });
+    }
+
+    void autoDelete(final Topic topic) {
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                if (topicDomain.get(topic.getId()) == topic) {
+                    topicDomain.remove(topic);
+                    topic.stop(Dispatch.NOOP);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void removeTempDestinations(final String owner) {
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                for (Queue queue : queueDomain.removeTempDestinations(owner)) {
+                    LOG.debug("removing temp destination: {}", queue.getId());
+                    queue.stop(Dispatch.NOOP);
+                }
+                for (Topic topic : topicDomain.removeTempDestinations(owner)) {
+                    LOG.debug("removing temp destination: {}", topic.getId());
+                    topic.stop(Dispatch.NOOP);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the session id of the connection which owns the temp destination at the
+     * path, or null if the path is not the one of a temp destination of this broker.
+     */
+    String tempOwner(String[] path) {
+        if (path.length >= 3 && TEMP_PREFIX.equals(path[0]) && virtualHost.getBroker().getId().equals(path[1])) {
+            return path[2];
+        }
+        return null;
+    }
+
+    @Override
+    public void bind(DestinationDTO address, DeliveryConsumer consumer) {
+        domainFor(address).bind(decodePath(address), address, consumer);
+    }
+
+    @Override
+    public void unbind(DestinationDTO address, DeliveryConsumer consumer) {
+        domainFor(address).unbind(decodePath(address), consumer);
+    }
+
+    @Override
+    public Collection<DeliverySession> connect(DestinationDTO address, DeliveryProducer producer) {
+        CompositeDestinationDTO composite = compositeDestination(address);
+        if (composite != null) {
+            return Collections.<DeliverySession>singletonList(connectComposite(composite, producer));
+        }
+        return domainFor(address).connect(decodePath(address), address, producer);
+    }
+
+    @Override
+    public void disconnect(DestinationDTO address, DeliveryProducer producer) {
+        CompositeDestinationDTO composite = compositeDestination(address);
+        if (composite != null) {
+            for (ForwardDTO forward : composite.forwards) {
+                DestinationDTO target = forwardAddress(forward);
+                domainFor(target).disconnect(decodePath(target), producer);
+            }
+            return;
+        }
+        domainFor(address).disconnect(decodePath(address), producer);
+    }
+
+    /**
+     * @return the composite destination producers of the address send to, or null.
+     */
+    private CompositeDestinationDTO compositeDestination(DestinationDTO address) {
+        VirtualHostDTO config = virtualHost.getConfig();
+        if (config == null || config.composite_destinations.isEmpty()) {
+            return null;
+        }
+        String kind;
+        if (address instanceof QueueDestinationDTO) {
+            kind = QUEUE_BINDING_KIND;
+        } else if (address instanceof TopicDestinationDTO) {
+            kind = "topic";
+        } else {
+            return null;
+        }
+        String id = encodePath(decodePath(address));
+        for (CompositeDestinationDTO dto : config.composite_destinations) {
+            if (id.equals(dto.id) && kind.equals(dto.kind == null ? QUEUE_BINDING_KIND : dto.kind)) {
+                return dto;
+            }
+        }
+        return null;
+    }
+
+    private DestinationDTO forwardAddress(ForwardDTO forward) {
+        if (forward.queue != null) {
+            return new QueueDestinationDTO(forward.queue);
+        }
+        if (forward.topic != null) {
+            return new TopicDestinationDTO(forward.topic);
+        }
+        throw new IllegalArgumentException("A forward needs a queue or a topic");
+    }
+
+    private CompositeSession connectComposite(CompositeDestinationDTO composite, DeliveryProducer producer) {
+        ArrayList<DeliverySession> sessions = new ArrayList<DeliverySession>();
+        ArrayList<BooleanExpression> selectors = new ArrayList<BooleanExpression>();
+        for (ForwardDTO forward : composite.forwards) {
+            DestinationDTO target = forwardAddress(forward);
+            BooleanExpression selector = DurableSubscription.parseSelector(forward.selector);
+            // targets which can't be auto created are left out
+            for (DeliverySession session : domainFor(target).connect(decodePath(target), target, producer)) {
+                sessions.add(session);
+                selectors.add(selector);
+            }
+        }
+        return new CompositeSession(producer,
+                sessions.toArray(new DeliverySession[sessions.size()]),
+                selectors.toArray(new BooleanExpression[selectors.size()]));
+    }
+
+    /**
+     * @return the id of the virtual topic the queue at the path subscribes to, or null
+     * if it is not the consumer queue of a virtual topic.
+     */
+    private String virtualTopic(String[] path) {
+        VirtualHostDTO config = virtualHost.getConfig();
+        if (config == null) {
+            return null;
+        }
+        for (VirtualTopicDTO dto : config.virtual_topics) {
+            String[] prefix = decodePath(dto.consumer_prefix == null ? "Consumer.*" : trimSeparator(dto.consumer_prefix));
+            if (path.length <= prefix.length || !PathMap.matches(prefix, Arrays.copyOf(path, prefix.length))) {
+                continue;
+            }
+            String[] topic = Arrays.copyOfRange(path, prefix.length, path.length);
+            if (dto.id == null || PathMap.matches(decodePath(dto.id), topic)) {
+                return encodePath(topic);
+            }
+        }
+        return null;
+    }
+
+    private static String trimSeparator(String prefix) {
+        return prefix.endsWith(PATH_SEPARATOR) ? prefix.substring(0, prefix.length() - PATH_SEPARATOR.length()) : prefix;
+    }
+
+    private Domain<? extends DomainDestination> domainFor(DestinationDTO address) {
+        if (address instanceof QueueDestinationDTO) {
+            return queueDomain;
+        }
+        if (address instanceof TopicDestinationDTO) {
+            return topicDomain;
+        }
+        if (address instanceof DurableSubscriptionDestinationDTO) {
+            return dsubDomain;
+        }
+        throw new IllegalArgumentException("Unsupported destination type: " + address);
+    }
+
+    private boolean isAutoCreateDestinations() {
+        VirtualHostDTO config = virtualHost.getConfig();
+        return config == null || config.auto_create_destinations == null || config.auto_create_destinations;
+    }
+
+    // eagerly create the destinations which are configured with a concrete id
+    private void createConfiguredDestinations() {
+        VirtualHostDTO config = virtualHost.getConfig();
+        if (config == null) {
+            return;
+        }
+        for (QueueDTO dto : config.queues) {
+            if (dto.id != null) {
+                String[] path = decodePath(dto.id);
+                if (!PathMap.isWildcard(path) && queueDomain.get(dto.id) == null) {
+                    queueDomain.create(path, new QueueDestinationDTO(dto.id));
+                }
+            }
+        }
+        for (TopicDTO dto : config.topics) {
+            if (dto.id != null) {
+                String[] path = decodePath(dto.id);
+                if (!PathMap.isWildcard(path) && topicDomain.get(dto.id) == null) {
+                    topicDomain.create(path, new TopicDestinationDTO(dto.id));
+                }
+            }
+        }
+        for (DurableSubscriptionDTO dto : config.dsubs) {
+            if (dto.id != null && dsubDomain.get(dto.id) == null) {
+                DurableSubscriptionDestinationDTO address = new DurableSubscriptionDestinationDTO(dto.id);
+                address.selector = dto.selector;
+                if (!dsubDomain.resolveTopics(address).isEmpty()) {
+                    dsubDomain.create(decodePath(dto.id), address);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a queue which is private to its creator: it is backed by the store so it
+     * can swap, but it is not part of the queue domain so no one else can find it, and
+     * it is dropped when the broker restarts.
+     */
+    Queue createPrivateQueue(String id, QueueDTO config) {
+        final Queue queue = new Queue(this, new QueueDestinationDTO(id), config);
+        Store store = virtualHost.getStore();
+        if (store != null) {
+            queue.getDispatchQueue().suspend();
+            store.addQueue(new QueueRecord(-1, PRIVATE_QUEUE_BINDING_KIND, new UTF8Buffer(id)), new Procedure1<Long>() {
+                @Override
+                public void execute(Long key) {
+                    queue.setStoreId(key);
+                    queue.getDispatchQueue().resume();
+                }
+            });
+        }
+        queue.start(Dispatch.NOOP);
+        return queue;
+    }
+
+    void removePrivateQueue(final Queue queue) {
+        queue.stop(new Task() {
+            @Override
+            public void run() {
+                if (queue.getStoreId() != -1) {
+                    removeStoredQueue(queue.getStoreId());
+                }
+            }
+        });
+    }
+
+    private void removeStoredQueue(long key) {
+        Store store = virtualHost.getStore();
+        if (store != null) {
+            store.removeQueue(key, new Procedure1<Boolean>() {
+                @Override
+                public void execute(Boolean removed) {
+                }
+            });
+        }
+    }
+
+    /**
+     * Resolves the config for a queue, the first queue entry in the virtual host config
+     * whose id matches the path wins.
+     */
+    public QueueDTO queueConfig(String[] path) {
+        VirtualHostDTO config = virtualHost.getConfig();
+        if (config != null) {
+            for (QueueDTO dto : config.queues) {
+                if (dto.id == null || PathMap.matches(decodePath(dto.id), path)) {
+                    return dto;
+                }
+            }
+        }
+        return new QueueDTO();
+    }
+
+    /**
+     * Resolves the config for a durable subscription, the first dsub entry in the
+     * virtual host config whose id or id_regex matches the subscription id wins.
+     */
+    public DurableSubscriptionDTO dsubConfig(String id) {
+        VirtualHostDTO config = virtualHost.getConfig();
+        if (config != null) {
+            for (DurableSubscriptionDTO dto : config.dsubs) {
+                if (dto.id != null) {
+                    if (dto.id.equals(id)) {
+                        return dto;
+                    }
+                } else if (dto.id_regex == null || Pattern.matches(dto.id_regex, id)) {
+                    return dto;
+                }
+            }
+        }
+        return new DurableSubscriptionDTO();
+    }
+
+    /**
+     * Resolves the config for a topic the same way {@link #queueConfig(String[])} does.
+     */
+    public TopicDTO topicConfig(String[] path) {
+        VirtualHostDTO config = virtualHost.getConfig();
+        if (config != null) {
+            for (TopicDTO dto : config.topics) {
+                if (dto.id == null || PathMap.matches(decodePath(dto.id), path)) {
+                    return dto;
+                }
+            }
+        }
+        return new TopicDTO();
+    }
+
+    /**
+     * Holds the destinations of one kind along with the consumers that have bound to
+     * them.  Consumer bindings are kept in their own trie so that creating a destination
+     * only has to walk the new destination's path to find the wildcard bindings it
+     * must honor.  Temp destinations are also indexed by the session which owns them so
+     * they can be dropped as soon as that session's connection goes away.
+     */
+    public abstract class Domain<D extends DomainDestination> {
+
+        protected final HashMap<String, D> destinationById = new HashMap<String, D>();
+        protected final PathMap<D> destinationByPath = new PathMap<D>();
+        protected final PathMap<DeliveryConsumer> consumersByPath = new PathMap<DeliveryConsumer>();
+        protected final HashMap<String, HashSet<D>> tempDestinationsByOwner = new HashMap<String, HashSet<D>>();
+
+        protected abstract D createDestination(String[] path, DestinationDTO address);
+
+        public D get(String id) {
+            return destinationById.get(id);
+        }
+
+        public Collection<D> getDestinations() {
+            return new ArrayList<D>(destinationById.values());
+        }
+
+        public Set<D> getMatching(String[] filter) {
+            return destinationByPath.getMatching(filter);
+        }
+
+        public D create(String[] path, DestinationDTO address) {
+            D destination = createDestination(path, address);
+            add(path, destination);
+            return destination;
+        }
+
+        public void add(String[] path, D destination) {
+            destinationById.put(destination.getId(), destination);
+            destinationByPath.put(path, destination);
+            String owner = tempOwner(path);
+            if (owner != null) {
+                HashSet<D> owned = tempDestinationsByOwner.get(owner);
+                if (owned == null) {
+                    owned = new HashSet<D>();
+                    tempDestinationsByOwner.put(owner, owned);
+                }
+                owned.add(destination);
+            }
+            for (DeliveryConsumer consumer : consumersByPath.get(path)) {
+                destination.bind(consumer);
+            }
+        }
+
+        public void remove(D destination) {
+            String[] path = decodePath(destination.getId());
+            destinationById.remove(destination.getId());
+            destinationByPath.remove(path, destination);
+            String owner = tempOwner(path);
+            if (owner != null) {
+                HashSet<D> owned = tempDestinationsByOwner.get(owner);
+                if (owned != null && owned.remove(destination) && owned.isEmpty()) {
+                    tempDestinationsByOwner.remove(owner);
+                }
+            }
+        }
+
+        /**
+         * Removes the temp destinations owned by the session.
+         *
+         * @return the removed destinations, the caller has to stop them
+         */
+        public Collection<D> removeTempDestinations(String owner) {
+            HashSet<D> owned = tempDestinationsByOwner.get(owner);
+            if (owned == null) {
+                return Collections.emptyList();
+            }
+            ArrayList<D> rc = new ArrayList<D>(owned);
+            for (D destination : rc) {
+                remove(destination);
+            }
+            return rc;
+        }
+
+        public void bind(String[] path, DestinationDTO address, DeliveryConsumer consumer) {
+            consumersByPath.put(path, consumer);
+            if (!PathMap.isWildcard(path) && get(encodePath(path)) == null && isAutoCreate(path, consumer.getConnection())) {
+                // binding to the new destination is taken care of by add()
+                create(path, address);
+                return;
+            }
+            for (D destination : destinationByPath.getMatching(path)) {
+                bind(destination, address, consumer);
+            }
+        }
+
+        /**
+         * Binds the consumer to a destination which already existed when it subscribed.
+         */
+        protected void bind(D destination, DestinationDTO address, DeliveryConsumer consumer) {
+            destination.bind(consumer);
+        }
+
+        public void unbind(String[] path, DeliveryConsumer consumer) {
+            consumersByPath.remove(path, consumer);
+            for (D destination : destinationByPath.getMatching(path)) {
+                destination.unbind(consumer);
+            }
+        }
+
+        public Collection<DeliverySession> connect(String[] path, DestinationDTO address, DeliveryProducer producer) {
+            if (PathMap.isWildcard(path)) {
+                throw new IllegalArgumentException("Producers can not send to a wildcard destination: " + address);
+            }
+            D destination = get(encodePath(path));
+            if (destination == null) {
+                if (!isAutoCreate(path, producer.getConnection())) {
+                    return Collections.emptyList();
+                }
+                destination = create(path, address);
+            }
+            return Collections.singletonList(destination.connect(producer));
+        }
+
+        /**
+         * A temp destination is only created for the live connection which owns it.  If
+         * anybody else could bring it back after its owner disconnected, nothing would
+         * ever remove it again.  The owner's temp destinations are removed once its
+         * connection stops, so a connection on its way down may already have been
+         * cleaned up.
+         */
+        private boolean isAutoCreate(String[] path, BrokerConnection connection) {
+            if (!isAutoCreateDestinations()) {
+                return false;
+            }
+            String owner = tempOwner(path);
+            if (owner == null || connection == null) {
+                return true;
+            }
+            return owner.equals(connection.getSessionId()) && connection.getServiceState().isUpward();
+        }
+
+        public void disconnect(String[] path, DeliveryProducer producer) {
+            D destination = get(encodePath(path));
+            if (destination != null) {
+                destination.disconnect(producer);
+            }
+        }
+    }
+
+    /**
+     * A domain whose destinations are queues held by the store.
+     */
+    public abstract class StoredQueueDomain<Q extends Queue> extends Domain<Q> {
+
+        protected void addToStore(final Q queue, String bindingKind, Buffer bindingData) {
+            Store store = virtualHost.getStore();
+            if (store != null) {
+                // hold off the queue until the store has assigned it a key, otherwise
+                // the first messages sent to it could not be persisted.
+                queue.getDispatchQueue().suspend();
+                QueueRecord record = new QueueRecord(-1, bindingKind, bindingData);
+                store.addQueue(record, new Procedure1<Long>() {
+                    @Override
+                    public void execute(final Long key) {
+                        dispatchQueue.execute(new Task() {
+                            @Override
+                            public void run() {
+                                queue.setStoreId(key);
+                                if (destinationById.get(queue.getId()) == queue) {
+                                    queuesByStoreId.put(key, queue);
+                                }
+                                queue.getDispatchQueue().resume();
+                            }
+                        });
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void add(String[] path, Q queue) {
+            super.add(path, queue);
+            if (queue.getStoreId() != -1) {
+                queuesByStoreId.put(queue.getStoreId(), queue);
+            }
+        }
+
+        @Override
+        public void remove(Q queue) {
+            super.remove(queue);
+            queuesByStoreId.remove(queue.getStoreId());
+            removeStoredQueues(queue);
+            for (Queue partition : queue.getPartitions()) {
+                removeStoredQueues(partition);
+            }
+        }
+
+        private void removeStoredQueues(Queue queue) {
+            if (queue.getStoreId() != -1) {
+                removeStoredQueue(queue.getStoreId());
+            }
+            if (queue.getScheduleStoreId() != -1) {
+                removeStoredQueue(queue.getScheduleStoreId());
+            }
+            if (queue.getDuplicatesStoreId() != -1) {
+                removeStoredQueue(queue.getDuplicatesStoreId());
+            }
+        }
+    }
+
+    public class QueueDomain extends StoredQueueDomain<Queue> {
+
+        @Override
+        public void add(String[] path, Queue queue) {
+            super.add(path, queue);
+            String topic = virtualTopic(path);
+            if (topic != null) {
+                topicDomain.bind(decodePath(topic), new TopicDestinationDTO(topic), queue);
+            }
+        }
+
+        @Override
+        public void remove(Queue queue) {
+            super.remove(queue);
+            String topic = virtualTopic(decodePath(queue.getId()));
+            if (topic != null) {
+                topicDomain.unbind(decodePath(topic), queue);
+            }
+        }
+
+        @Override
+        protected Queue createDestination(String[] path, DestinationDTO address) {
+            Queue queue = new Queue(LocalRouter.this, new QueueDestinationDTO(encodePath(path)), queueConfig(path));
+            addToStore(queue, QUEUE_BINDING_KIND, new UTF8Buffer(queue.getId()));
+            queue.start(Dispatch.NOOP);
+            createPartitions(queue);
+            return queue;
+        }
+
+        /**
+         * Creates the partitions a partitioned queue is missing.  The queue itself is the
+         * first partition, the others share its address and are numbered from 1.
+         */
+        void createPartitions(Queue queue) {
+            Integer count = queue.getConfig().partitions;
+            int last = Math.max(count == null ? 0 : count - 1, queue.getPartitions().length);
+            for (int number = 1; number <= last; number++) {
+                if (number > queue.getPartitions().length || queue.getPartitions()[number - 1] == null) {
+                    Queue partition = new Queue(LocalRouter.this, queue.getAddress(), queue.getConfig());
+                    addToStore(partition, PARTITION_BINDING_KIND, new UTF8Buffer(number + ":" + queue.getId()));
+                    partition.start(Dispatch.NOOP);
+                    queue.setPartition(number, partition);
+                }
+            }
+            queue.setPartitionCount(count == null ? 1 : Math.max(1, count));
+        }
+
+        void restorePartition(QueueRecord record) {
+            String data = record.bindingData.utf8().toString();
+            int separator = data.indexOf(':');
+            Queue queue = get(data.substring(separator + 1));
+            if (queue == null) {
+                removeStoredQueue(record.key);
+                return;
+            }
+            Queue partition = new Queue(LocalRouter.this, queue.getAddress(), queue.getConfig());
+            partition.setStoreId(record.key);
+            partition.start(Dispatch.NOOP);
+            queue.setPartition(Integer.parseInt(data.substring(0, separator)), partition);
+        }
+
+        void restore(QueueRecord record) {
+            String name = record.bindingData.utf8().toString();
+            String[] path = decodePath(name);
+            if (tempOwner(path) != null) {
+                // its owner went away with the previous broker run
+                removeStoredQueue(record.key);
+                return;
+            }
+            Queue queue = new Queue(LocalRouter.this, new QueueDestinationDTO(name), queueConfig(path));
+            queue.setStoreId(record.key);
+            add(path, queue);
+            queue.start(Dispatch.NOOP);
+        }
+    }
+
+    public class TopicDomain extends Domain<Topic> {
+
+        @Override
+        protected Topic createDestination(String[] path, DestinationDTO address) {
+            Topic topic = new Topic(LocalRouter.this, new TopicDestinationDTO(encodePath(path)), topicConfig(path));
+            topic.start(Dispatch.NOOP);
+            return topic;
+        }
+
+        @Override
+        protected void bind(Topic topic, DestinationDTO address, DeliveryConsumer consumer) {
+            Boolean replay = address instanceof TopicDestinationDTO ? ((TopicDestinationDTO) address).replay : null;
+            topic.bind(consumer, replay != null && replay);
+        }
+    }
+
+    /**
+     * Holds the durable subscriptions.  A subscription is a queue which the router
+     * binds as a consumer to the topics of the subscription once the queue has been
+     * started, and unbinds from them again when the subscription is removed.
+     *
+     * A subscriber which asks for an existing subscription with a different selector
+     * or set of topics gets a new, empty, subscription in its place.  Direct
+     * addressing never creates nor changes a subscription.
+     */
+    public class DsubDomain extends StoredQueueDomain<DurableSubscription> {
+
+        @Override
+        protected DurableSubscription createDestination(String[] path, DestinationDTO address) {
+            String id = encodePath(path);
+            DurableSubscriptionDestinationDTO binding = new DurableSubscriptionDestinationDTO(id);
+            binding.selector = ((DurableSubscriptionDestinationDTO) address).selector;
+            binding.topics = resolveTopics((DurableSubscriptionDestinationDTO) address);
+            DurableSubscription dsub = new DurableSubscription(LocalRouter.this, binding, dsubConfig(id));
+            addToStore(dsub, DSUB_BINDING_KIND, DurableSubscription.encodeBinding(binding));
+            return dsub;
+        }
+
+        @Override
+        public DurableSubscription create(String[] path, DestinationDTO address) {
+            DurableSubscription dsub = super.create(path, address);
+            open(dsub);
+            return dsub;
+        }
+
+        void restore(QueueRecord record) {
+            DurableSubscriptionDestinationDTO binding = DurableSubscription.decodeBinding(record.bindingData);
+            DurableSubscription dsub = new DurableSubscription(LocalRouter.this, binding, dsubConfig(binding.name));
+            dsub.setStoreId(record.key);
+            add(decodePath(binding.name), dsub);
+            open(dsub);
+        }
+
+        /**
+         * @return the topics the subscriber asked for, or the ones configured for the
+         * subscription if it did not name any.
+         */
+        ArrayList<TopicDestinationDTO> resolveTopics(DurableSubscriptionDestinationDTO address) {
+            ArrayList<TopicDestinationDTO> rc = new ArrayList<TopicDestinationDTO>();
+            if (address.topics != null) {
+                rc.addAll(address.topics);
+            }
+            if (rc.isEmpty()) {
+                DurableSubscriptionDTO config = dsubConfig(address.name);
+                if (config.topic != null) {
+                    rc.add(new TopicDestinationDTO(config.topic));
+                }
+                for (String topic : config.topics) {
+                    rc.add(new TopicDestinationDTO(topic));
+                }
+            }
+            return rc;
+        }
+
+        // only start collecting messages once the stored ones have been restored
+        private void open(final DurableSubscription dsub) {
+            dsub.start(new Task() {
+                @Override
+                public void run() {
+                    dispatchQueue.execute(new Task() {
+                        @Override
+                        public void run() {
+                            if (destinationById.get(dsub.getId()) == dsub) {
+                                for (TopicDestinationDTO topic : dsub.getTopics()) {
+                                    topicDomain.bind(decodePath(topic), topic, dsub);
+                                }
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        @Override
+        public void remove(DurableSubscription dsub) {
+            super.remove(dsub);
+            for (TopicDestinationDTO topic : dsub.getTopics()) {
+                topicDomain.unbind(decodePath(topic), dsub);
+            }
+        }
+
+        @Override
+        public void bind(String[] path, DestinationDTO address, DeliveryConsumer consumer) {
+            DurableSubscriptionDestinationDTO dsubAddress = (DurableSubscriptionDestinationDTO) address;
+            String id = encodePath(path);
+            DurableSubscription dsub = get(id);
+            if (!dsubAddress.is_direct()) {
+                DurableSubscription.parseSelector(dsubAddress.selector);
+                DurableSubscriptionDestinationDTO binding = new DurableSubscriptionDestinationDTO(id);
+                binding.selector = dsubAddress.selector;
+                binding.topics = resolveTopics(dsubAddress);
+                if (dsub != null && !dsub.isBoundAs(binding)) {
+                    LOG.debug("{} is being replaced by a subscription to {}", dsub, binding.topics);
+                    remove(dsub);
+                    dsub.stop(Dispatch.NOOP);
+                    dsub = null;
+                }
+                if (dsub == null) {
+                    consumersByPath.put(path, consumer);
+                    create(path, binding);
+                    return;
+                }
+            }
+            consumersByPath.put(path, consumer);
+            if (dsub != null) {
+                dsub.bind(consumer);
+            }
+        }
+
+        @Override
+        public Collection<DeliverySession> connect(String[] path, DestinationDTO address, DeliveryProducer producer) {
+            DurableSubscription dsub = get(encodePath(path));
+            if (dsub == null) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(dsub.connect(producer));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "router: " + virtualHost;
+    }
+}
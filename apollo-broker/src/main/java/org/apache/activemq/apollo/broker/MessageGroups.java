@@ -0,0 +1,136 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.util.ConsistentHashRing;
+import org.apache.activemq.apollo.util.LongHashMap;
+
+/**
+ * Assigns message groups to the subscriptions of a queue.  Groups are spread over the
+ * subscriptions with a consistent hash ring so that a subscription coming or going only
+ * moves its share of the groups.  Only the groups which have messages in flight are
+ * tracked, keyed by the 64 bit hash of the group id, so the table stays small no matter
+ * how many distinct groups flow through the queue.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+class MessageGroups {
+
+    public static final String GROUP_PROPERTY = "JMSXGroupID";
+
+    private final ConsistentHashRing<Subscription> ring = new ConsistentHashRing<Subscription>();
+    private final LongHashMap<Assignment> inflight = new LongHashMap<Assignment>();
+    private boolean gracefulHandoff = true;
+
+    private static class Assignment {
+        Subscription owner;
+        int count;
+        // the seq of the oldest of the group's entries the other subscriptions went past
+        long skipped = -1;
+    }
+
+    /**
+     * @return the key of the message's group or 0 if the message is not part of a group.
+     */
+    static long groupKey(Delivery delivery) {
+        Object group = delivery.getMessage() == null ? null : delivery.getMessage().getProperty(GROUP_PROPERTY);
+        if (group == null) {
+            return 0;
+        }
+        long rc = ConsistentHashRing.hash(group.toString());
+        // 0 is reserved for messages without a group
+        return rc == 0 ? 1 : rc;
+    }
+
+    boolean isGracefulHandoff() {
+        return gracefulHandoff;
+    }
+
+    void setGracefulHandoff(boolean gracefulHandoff) {
+        this.gracefulHandoff = gracefulHandoff;
+    }
+
+    void add(Subscription sub) {
+        ring.add(sub, sub.id);
+    }
+
+    void remove(Subscription sub) {
+        ring.remove(sub);
+    }
+
+    /**
+     * @return the subscription which the group's messages should be dispatched to.
+     */
+    Subscription owner(long key) {
+        if (gracefulHandoff) {
+            // the group stays put until its in flight messages are settled
+            Assignment assignment = inflight.get(key);
+            if (assignment != null) {
+                return assignment.owner;
+            }
+        }
+        return ring.get(key);
+    }
+
+    void acquired(long key, Subscription sub) {
+        Assignment assignment = inflight.get(key);
+        if (assignment == null) {
+            assignment = new Assignment();
+            inflight.put(key, assignment);
+        }
+        assignment.owner = sub;
+        assignment.count++;
+    }
+
+    /**
+     * Called when a subscription goes past one of the group's entries because the group
+     * belongs to another subscription.  Only the groups which have messages in flight
+     * can be handed off later, so only they keep track of it.
+     */
+    void skipped(QueueEntry entry) {
+        Assignment assignment = inflight.get(entry.groupKey);
+        if (assignment != null && (assignment.skipped == -1 || entry.seq < assignment.skipped)) {
+            assignment.skipped = entry.seq;
+        }
+    }
+
+    /**
+     * @return the seq of the oldest of the group's entries a subscription went past since
+     * its messages went in flight, or -1 if none.
+     */
+    long getSkipped(long key) {
+        Assignment assignment = inflight.get(key);
+        return assignment == null ? -1 : assignment.skipped;
+    }
+
+    /**
+     * @return the subscription the group was handed off to once its last in flight
+     * message was settled, or null if the group did not move.
+     */
+    Subscription released(long key) {
+        Assignment assignment = inflight.get(key);
+        if (assignment == null) {
+            return null;
+        }
+        if (--assignment.count > 0) {
+            return null;
+        }
+        inflight.remove(key);
+        Subscription owner = ring.get(key);
+        return owner != assignment.owner ? owner : null;
+    }
+}
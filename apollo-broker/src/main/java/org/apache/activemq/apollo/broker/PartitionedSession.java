@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.util.ConsistentHashRing;
+import org.fusesource.hawtdispatch.Task;
+
+/**
+ * The session a producer gets to a partitioned {@link Queue}.  It holds a session to
+ * every partition and picks the partition of each message on the producer's thread, so
+ * the producers of a partitioned queue never funnel through one dispatch queue.
+ *
+ * A message goes to the partition picked by a hash of its partition key header, or of
+ * its message group when it has no such header, otherwise the partitions take turns.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+class PartitionedSession implements DeliverySession {
+
+    private final Queue queue;
+    private final DeliveryProducer producer;
+    private final DeliverySession[] sessions;
+    private final String partitionKey;
+    private Task refiller;
+    private int next;
+
+    PartitionedSession(Queue queue, DeliveryProducer producer, DeliverySession[] sessions, String partitionKey) {
+        this.queue = queue;
+        this.producer = producer;
+        this.sessions = sessions;
+        this.partitionKey = partitionKey;
+    }
+
+    private DeliverySession partitionFor(Delivery delivery) {
+        Object key = partitionKey == null ? null : delivery.getMessage().getProperty(partitionKey);
+        long hash = key != null ? ConsistentHashRing.hash(key.toString()) : MessageGroups.groupKey(delivery);
+        if (key != null || hash != 0) {
+            return sessions[(int) ((hash & Long.MAX_VALUE) % sessions.length)];
+        }
+        next = (next + 1) % sessions.length;
+        return sessions[next];
+    }
+
+    /**
+     * The producer is held back while any of the partitions is, it can't tell which
+     * partition its next message will go to.
+     */
+    @Override
+    public boolean full() {
+        for (DeliverySession session : sessions) {
+            if (session.full()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean offer(Delivery delivery) {
+        return partitionFor(delivery).offer(delivery);
+    }
+
+    @Override
+    public Task refiller() {
+        return refiller;
+    }
+
+    @Override
+    public void setRefiller(Task value) {
+        refiller = value;
+        for (DeliverySession session : sessions) {
+            session.setRefiller(value);
+        }
+    }
+
+    @Override
+    public DeliveryProducer getProducer() {
+        return producer;
+    }
+
+    @Override
+    public DeliveryConsumer getConsumer() {
+        return queue;
+    }
+
+    @Override
+    public void close() {
+        // disconnects the producer from all the partitions
+        queue.disconnect(producer);
+    }
+}
@@ -16,8 +16,2660 @@
  */
 package org.apache.activemq.apollo.broker;
 
+import org.apache.activemq.apollo.broker.protocol.MessageCodecFactory;
+import org.apache.activemq.apollo.broker.store.MessageRecord;
+import org.apache.activemq.apollo.broker.store.QueueEntryRange;
+import org.apache.activemq.apollo.broker.store.QueueEntryRecord;
+import org.apache.activemq.apollo.broker.store.Store;
+import org.apache.activemq.apollo.broker.store.StoreUOW;
+import org.apache.activemq.apollo.dto.BrowsePageDTO;
+import org.apache.activemq.apollo.dto.DestMetricsDTO;
+import org.apache.activemq.apollo.dto.DestinationDTO;
+import org.apache.activemq.apollo.dto.EntryStatusDTO;
+import org.apache.activemq.apollo.dto.LinkDTO;
+import org.apache.activemq.apollo.dto.MessageStatusDTO;
+import org.apache.activemq.apollo.dto.QueueDTO;
+import org.apache.activemq.apollo.dto.QueueStatusDTO;
+import org.apache.activemq.apollo.util.BaseService;
+import org.apache.activemq.apollo.util.MemoryPropertyEditor;
+import org.apache.activemq.apollo.util.Procedure0;
+import org.apache.activemq.apollo.util.Procedure1;
+import org.apache.activemq.apollo.util.TimingWheel;
+import org.apache.activemq.apollo.util.list.LinkedNodeList;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.hawtdispatch.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.bind.DatatypeConverter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
+ * A point to point destination.  Messages are held in a sequence ordered list of
+ * {@link QueueEntry} objects.  When the queue is backed by a store and swapping is
+ * enabled, entries which are not about to be dispatched are swapped out to the store
+ * and runs of swapped entries are collapsed into swapped range place holders, so the
+ * memory used by the queue is bound by the <code>tail_buffer</code> setting and not by
+ * the size of the backlog.
+ *
+ * All the state of the queue is only accessed from the queue's dispatch queue.
+ *
  * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
  */
-public class Queue {
+public class Queue extends BaseService implements DomainDestination, DeliveryConsumer, DeliveryProducer {
+
+    private Logger LOG = LoggerFactory.getLogger(getClass().getName());
+
+    public static final long DEFAULT_TAIL_BUFFER = 1024 * 640;
+    public static final int DEFAULT_SWAP_RANGE_SIZE = 10000;
+    public static final int DEFAULT_AUTO_DELETE_AFTER = 5 * 60;
+    public static final int MAX_PRIORITIES = 10;
+    public static final int DEFAULT_PRIORITY_STARVATION_LIMIT = 100;
+    // the browses which go on at the same time, the least recent ones start over from the head
+    private static final int MAX_BROWSE_CURSORS = 16;
+
+    public static final String BLOCK_POLICY = "block";
+    public static final String DROP_HEAD_POLICY = "drop head";
+    public static final String DROP_TAIL_POLICY = "drop tail";
+
+    public static final String DELIVER_AT_HEADER = "deliver_at";
+    public static final String DELAY_HEADER = "delay";
+
+    private static final long SWAP_CHECK_INTERVAL = 1000;
+    private static final long RATE_SAMPLE_INTERVAL = 1000;
+
+    private final LocalRouter router;
+    private final DestinationDTO address;
+    private final String id;
+    // the session which owns the queue if it is a temp queue
+    private final String tempOwner;
+    private QueueDTO config;
+    // read by the destinations which fan out to the queue, see storeShared()
+    private volatile long storeId = -1;
+
+    private long tailBuffer;
+    private volatile boolean persistent;
+    private boolean swap;
+    private int swapRangeSize;
+    private String dispatchName;
+    private boolean roundRobin;
+    private DispatchStrategy dispatchStrategy;
+    private long fastDeliveryRate;
+    private long catchupEnqueueRate;
+    private long maxEnqueueRate;
+    private String dlq;
+    private int nakLimit;
+    private boolean dlqExpired;
+    private boolean mirrored;
+    private int autoDeleteAfter;
+    private String lastValueKey;
+    private int priorities;
+    private int starvationLimit;
+    private String duplicateKey;
+    private int duplicateWindowSize;
+    // -1 when the queue has no quota
+    private long quota;
+    private long quotaMessages;
+    private String fullPolicy;
+    // set while a block policy queue is at its quota, read by the producer threads
+    private volatile boolean quotaFull;
+
+    // the session to the topic of the same name a mirrored queue publishes every message
+    // it enqueues to.  The topic gets the queue's own delivery, so both share the message
+    // and its store record.  Read by the producer threads when they check for room.
+    private volatile DeliverySession mirror;
+
+    // created once the first delayed message shows up
+    private volatile QueueSchedule schedule;
+    // created once the first message with a duplicate key shows up
+    private volatile DuplicateWindow duplicates;
+
+    // the other partitions of a partitioned queue, indexed by partition number - 1
+    private volatile Queue[] partitions = new Queue[0];
+    // how many partitions the producers send to, only set when the queue is created or
+    // restored so a change of the setting takes effect on restart
+    private volatile int partitionCount = 1;
+
+    private final LinkedNodeList<QueueEntry> entries = new LinkedNodeList<QueueEntry>();
+    // the last entry of every priority level, indexed by rank
+    private final QueueEntry[] rankTails = new QueueEntry[MAX_PRIORITIES];
+    private long nextSeq = 1;
+    // messages dispatched in a row while a lower priority one was waiting, the oldest
+    // waiting one goes next once this reaches the priority_starvation_limit
+    private long passedOver;
+
+    private final ArrayList<Subscription> subscriptions = new ArrayList<Subscription>();
+    private final HashMap<DeliveryConsumer, Subscription> subscriptionsByConsumer = new HashMap<DeliveryConsumer, Subscription>();
+    private final ArrayList<ProducerSession> producers = new ArrayList<ProducerSession>();
+    private final MessageGroups groups = new MessageGroups();
+    // the newest entry for each value of the last value key
+    private final HashMap<Object, QueueEntry> lastValues = new HashMap<Object, QueueEntry>();
+    // where the browses left off, keyed by the seq they pick up at, so paging through
+    // the queue does not have to walk it from the head for every page
+    private final LinkedHashMap<Long, QueueEntry> browseCursors = new LinkedHashMap<Long, QueueEntry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, QueueEntry> eldest) {
+            return size() > MAX_BROWSE_CURSORS;
+        }
+    };
+    private long groupedItems;
+
+    private boolean dispatchScheduled;
+
+    // scheduled while the queue has neither consumers nor producers
+    private TimingWheel.Timer<Task> idleTimer;
+    private final Task idleCheck = new Task() {
+        @Override
+        public void run() {
+            dispatchQueue.execute(new Task() {
+                @Override
+                public void run() {
+                    idleTimeout();
+                }
+            });
+        }
+    };
+
+    // bytes sent by the producers which have not yet been delivered or swapped out,
+    // updated from the producer threads so it has to be atomic.
+    private final AtomicLong tailBufferedSize = new AtomicLong();
+
+    // producers are held to this many bytes/sec, -1 when they are not throttled
+    private volatile long enqueueRateLimit = -1;
+
+    // in catch-up mode the producers are slowed down so the consumers can reach the tail
+    private boolean catchingUp;
+    private long lastMaintenanceTs;
+    private long rateSampleTs;
+    private long rateSampleEnqueueSize;
+    private long rateSampleDeliveredSize;
+    private long enqueueRate;
+    private long deliveryRate;
+    private long deliveredSizeCounter;
+
+    private long enqueueItemCounter;
+    private long enqueueSizeCounter;
+    private long enqueueTs;
+    private long dequeueItemCounter;
+    private long dequeueSizeCounter;
+    private long dequeueTs;
+    private long expiredItemCounter;
+    private long expiredSizeCounter;
+    private long expiredTs;
+    private long nackItemCounter;
+    private long nackSizeCounter;
+    private long nackTs;
+    private long dropHeadItemCounter;
+    private long dropHeadSizeCounter;
+    private long dropTailItemCounter;
+    private long dropTailSizeCounter;
+    private long conflatedItemCounter;
+    private long conflatedSizeCounter;
+    private long duplicateItemCounter;
+    private long duplicateSizeCounter;
+    private long producerCounter;
+    private long consumerCounter;
+
+    private long queueSize;
+    private long queueItems;
+    private long swappedInSize;
+    private long swappedInItems;
+    private long swappingInSize;
+    private long swappingOutSize;
+    private long swapOutItemCounter;
+    private long swapOutSizeCounter;
+    private long swapInItemCounter;
+    private long swapInSizeCounter;
+
+    public Queue(LocalRouter router, DestinationDTO address, QueueDTO config) {
+        super(Dispatch.createQueue("queue: " + address.name));
+        this.router = router;
+        this.address = address;
+        this.id = address.name;
+        this.tempOwner = router.tempOwner(LocalRouter.decodePath(id));
+        this.config = config;
+        applySettings();
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public DestinationDTO getAddress() {
+        return address;
+    }
+
+    public LocalRouter getRouter() {
+        return router;
+    }
+
+    public QueueDTO getConfig() {
+        return config;
+    }
+
+    public long getStoreId() {
+        return storeId;
+    }
+
+    public void setStoreId(long storeId) {
+        this.storeId = storeId;
+    }
+
+    @Override
+    public BrokerConnection getConnection() {
+        return null;
+    }
+
+    Store getStore() {
+        return router.getVirtualHost().getStore();
+    }
+
+    long now() {
+        return router.getVirtualHost().getBroker().getNow();
+    }
+
+    private boolean isSwapEnabled() {
+        return swap && storeId != -1 && getStore() != null;
+    }
+
+    /**
+     * @return how many bytes of message data the queue keeps in memory, a tail buffer
+     * worth for the producers plus one for every subscription.
+     */
+    long getSwappedInSizeMax() {
+        return tailBuffer * (1 + subscriptions.size());
+    }
+
+    private void applySettings() {
+        tailBuffer = MemoryPropertyEditor.parse(config.tail_buffer, DEFAULT_TAIL_BUFFER);
+        persistent = config.persistent == null || config.persistent;
+        swap = config.swap == null || config.swap;
+        swapRangeSize = config.swap_range_size == null ? DEFAULT_SWAP_RANGE_SIZE : Math.max(1, config.swap_range_size);
+        applyDispatchStrategy();
+        groups.setGracefulHandoff(config.message_group_graceful_handoff == null || config.message_group_graceful_handoff);
+        fastDeliveryRate = MemoryPropertyEditor.parse(config.fast_delivery_rate, -1);
+        catchupEnqueueRate = MemoryPropertyEditor.parse(config.catchup_enqueue_rate, -1);
+        maxEnqueueRate = MemoryPropertyEditor.parse(config.max_enqueue_rate, -1);
+        dlq = config.dlq == null ? null : config.dlq.replace("*", id);
+        if (id.equals(dlq)) {
+            // dead lettering into ourselves would just loop the messages around
+            dlq = null;
+        }
+        nakLimit = config.nak_limit == null ? 0 : config.nak_limit;
+        dlqExpired = config.dlq_expired != null && config.dlq_expired;
+        autoDeleteAfter = autoDeleteAfter(config);
+        quota = MemoryPropertyEditor.parse(config.quota, -1);
+        quotaMessages = config.quota_messages == null ? -1 : config.quota_messages;
+        String policy = config.full_policy == null ? BLOCK_POLICY : config.full_policy.replace('-', ' ');
+        if (!BLOCK_POLICY.equals(policy) && !DROP_HEAD_POLICY.equals(policy) && !DROP_TAIL_POLICY.equals(policy)) {
+            LOG.warn("Unknown full policy '{}' on queue {}, using block", config.full_policy, id);
+            policy = BLOCK_POLICY;
+        }
+        fullPolicy = policy;
+        updateQuotaFull();
+        applyLastValueKey(config.last_value_key);
+        priorities = config.priorities == null ? 1 : Math.max(1, Math.min(MAX_PRIORITIES, config.priorities));
+        starvationLimit = config.priority_starvation_limit == null ? DEFAULT_PRIORITY_STARVATION_LIMIT : config.priority_starvation_limit;
+        duplicateKey = config.duplicate_key;
+        duplicateWindowSize = config.duplicate_window == null ? DuplicateWindow.DEFAULT_SIZE : config.duplicate_window;
+        if (duplicates != null) {
+            duplicates.setSize(duplicateWindowSize);
+        }
+        boolean mirror = config.mirrored != null && config.mirrored;
+        if (mirror != mirrored) {
+            mirrored = mirror;
+            if (mirrored) {
+                router.connectMirror(this);
+            } else {
+                closeMirror();
+            }
+        }
+        if (fastDeliveryRate < 0 || catchupEnqueueRate < 0) {
+            catchingUp = false;
+        }
+        updateEnqueueRateLimit();
+    }
+
+    // only swap the strategy when its settings change so it keeps its state across updates
+    private void applyDispatchStrategy() {
+        String name = config.dispatch == null ? DefaultDispatchStrategyFactory.ROUND_ROBIN : config.dispatch;
+        boolean rr = config.round_robin == null || config.round_robin;
+        if (dispatchStrategy != null && name.equals(dispatchName) && rr == roundRobin) {
+            return;
+        }
+        DispatchStrategy strategy = DispatchStrategyFactoryFinder.create(name, config);
+        if (strategy == null) {
+            LOG.warn("Unknown dispatch strategy '{}' on queue {}, using round_robin", name, id);
+            strategy = new RoundRobinDispatchStrategy(rr);
+        }
+        dispatchName = name;
+        roundRobin = rr;
+        dispatchStrategy = strategy;
+    }
+
+    /**
+     * @return how many seconds the queue may be idle before it gets deleted, 0 if it
+     * never is.
+     */
+    protected int autoDeleteAfter(QueueDTO config) {
+        if ((config.partitions != null && config.partitions > 1) || partitions.length > 0) {
+            // the partitions can't tell whether the others are empty
+            return 0;
+        }
+        if (config.auto_delete_after != null) {
+            return config.auto_delete_after;
+        }
+        // queues which are configured by their own id are meant to stay around
+        return id.equals(config.id) ? 0 : DEFAULT_AUTO_DELETE_AFTER;
+    }
+
+    public void update(final QueueDTO config, final Task onComplete) {
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                for (Queue partition : partitions) {
+                    partition.update(config, Dispatch.NOOP);
+                }
+                Queue.this.config = config;
+                applySettings();
+                cancelIdle();
+                checkIdle();
+                swapCheck();
+                triggerDispatch();
+                onComplete.run();
+            }
+        });
+    }
+
+    @Override
+    protected void _start(final Task onCompleted) {
+        scheduleReocurring(SWAP_CHECK_INTERVAL, TimeUnit.MILLISECONDS, new Procedure0() {
+            @Override
+            public void execute() {
+                swapCheck();
+            }
+        });
+
+        Store store = getStore();
+        if (store == null || storeId == -1) {
+            checkIdle();
+            onCompleted.run();
+            return;
+        }
+
+        // only load a summary of the stored entries, they get swapped in as the
+        // subscriptions get to them.
+        store.listQueueEntryRanges(storeId, swapRangeSize, new Procedure1<List<QueueEntryRange>>() {
+            @Override
+            public void execute(List<QueueEntryRange> ranges) {
+                restore(ranges, 0, onCompleted);
+            }
+        });
+    }
+
+    /**
+     * Adds the ranges listed by the store, starting with the one at <code>from</code>.
+     * The store does not know about priority levels, a range which runs across the
+     * boundary of two levels is read back and split up before it is added.
+     */
+    private void restore(final List<QueueEntryRange> ranges, final int from, final Task onCompleted) {
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                for (int i = from; i < ranges.size(); i++) {
+                    QueueEntryRange range = ranges.get(i);
+                    if (QueueEntry.rank(range.firstEntrySeq) != QueueEntry.rank(range.lastEntrySeq)) {
+                        split(ranges, i, onCompleted);
+                        return;
+                    }
+                    QueueEntry entry = QueueEntry.swappedRange(Queue.this, range);
+                    insert(entry);
+                    scheduleExpiration(entry);
+                    queueItems += range.count;
+                    queueSize += range.size;
+                    nextSeq = Math.max(nextSeq, QueueEntry.counter(range.lastEntrySeq) + 1);
+                }
+                updateQuotaFull();
+                LOG.debug("{} restored {} messages", Queue.this, queueItems);
+                checkIdle();
+                onCompleted.run();
+            }
+        });
+    }
+
+    private void split(final List<QueueEntryRange> ranges, final int index, final Task onCompleted) {
+        QueueEntryRange range = ranges.get(index);
+        getStore().listQueueEntries(storeId, range.firstEntrySeq, range.lastEntrySeq, new Procedure1<List<QueueEntryRecord>>() {
+            @Override
+            public void execute(List<QueueEntryRecord> records) {
+                ArrayList<QueueEntryRange> rc = new ArrayList<QueueEntryRange>(ranges.subList(0, index));
+                QueueEntryRange part = null;
+                for (QueueEntryRecord record : records) {
+                    if (part == null || QueueEntry.rank(part.firstEntrySeq) != QueueEntry.rank(record.entrySeq)) {
+                        part = new QueueEntryRange();
+                        part.firstEntrySeq = record.entrySeq;
+                        part.maxExpiration = record.expiration;
+                        rc.add(part);
+                    } else if (part.maxExpiration != 0) {
+                        part.maxExpiration = record.expiration == 0 ? 0 : Math.max(part.maxExpiration, record.expiration);
+                    }
+                    part.lastEntrySeq = record.entrySeq;
+                    part.count++;
+                    part.size += record.size;
+                    if (record.expiration != 0 && (part.expiration == 0 || record.expiration < part.expiration)) {
+                        part.expiration = record.expiration;
+                    }
+                }
+                rc.addAll(ranges.subList(index + 1, ranges.size()));
+                restore(rc, index, onCompleted);
+            }
+        });
+    }
+
+    @Override
+    protected void _stop(Task onCompleted) {
+        for (Queue partition : partitions) {
+            partition.stop(Dispatch.NOOP);
+        }
+        for (Subscription sub : subscriptions) {
+            sub.close();
+        }
+        mirrored = false;
+        closeMirror();
+        cancelIdle();
+        for (QueueEntry entry = entries.getHead(); entry != null; entry = entry.getNext()) {
+            cancelExpiration(entry);
+        }
+        if (schedule != null) {
+            schedule.stop();
+        }
+        onCompleted.run();
+    }
+
+    /////////////////////////////////////////////////////////////////////
+    // Binding consumers and producers
+    /////////////////////////////////////////////////////////////////////
+
+    /**
+     * A queue with more than one of <code>partitions</code> is the first partition, the
+     * router creates the others.  Every partition is a queue of its own, with its own
+     * dispatch queue and store queue, and they all share this queue's address.  Every
+     * consumer is bound to every partition, so consumers are balanced across the
+     * partitions without having to move between them as they come and go.
+     *
+     * @return the partitions after the first one, empty if the queue is not partitioned.
+     */
+    public Queue[] getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Called by the router, before the queue is handed out to producers and consumers.
+     */
+    void setPartition(int number, Queue partition) {
+        Queue[] rc = Arrays.copyOf(partitions, Math.max(partitions.length, number));
+        rc[number - 1] = partition;
+        partitions = rc;
+    }
+
+    /**
+     * Called by the router once it created or restored the partitions.
+     */
+    void setPartitionCount(int count) {
+        partitionCount = count;
+    }
+
+    @Override
+    public void bind(final DeliveryConsumer consumer) {
+        for (Queue partition : partitions) {
+            partition.bind(consumer);
+        }
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                if (subscriptionsByConsumer.containsKey(consumer)) {
+                    return;
+                }
+                consumerCounter++;
+                Subscription sub = new Subscription(Queue.this, consumer, consumerCounter);
+                sub.pos = entries.getHead();
+                subscriptions.add(sub);
+                subscriptionsByConsumer.put(consumer, sub);
+                // the groups the new subscription takes over only move to it, and it starts at
+                // the head so it sees their messages without anybody having to rewind
+                groups.add(sub);
+                sub.open();
+                checkIdle();
+                triggerDispatch();
+            }
+        });
+    }
+
+    @Override
+    public void unbind(final DeliveryConsumer consumer) {
+        for (Queue partition : partitions) {
+            partition.unbind(consumer);
+        }
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                Subscription sub = subscriptionsByConsumer.remove(consumer);
+                if (sub == null) {
+                    return;
+                }
+                subscriptions.remove(sub);
+                groups.remove(sub);
+                sub.close();
+
+                handOffGroups(sub);
+                // hand the entries the consumer did not ack to the remaining subscriptions
+                for (QueueEntry entry : new ArrayList<QueueEntry>(sub.acquired)) {
+                    release(sub, entry);
+                    rewindTo(entry);
+                }
+                checkIdle();
+                triggerDispatch();
+            }
+        });
+    }
+
+    /**
+     * Producers of a partitioned queue get a {@link PartitionedSession} which spreads
+     * their messages over the partitions.
+     */
+    @Override
+    public DeliverySession connect(DeliveryProducer producer) {
+        // partitions left over from a larger partition count only get drained
+        int count = Math.min(partitions.length + 1, partitionCount);
+        if (count <= 1) {
+            return connectProducer(producer);
+        }
+        DeliverySession[] sessions = new DeliverySession[count];
+        sessions[0] = connectProducer(producer);
+        for (int i = 0; i < count - 1; i++) {
+            sessions[i + 1] = partitions[i].connect(producer);
+        }
+        return new PartitionedSession(this, producer, sessions, config.partition_key);
+    }
+
+    private DeliverySession connectProducer(DeliveryProducer producer) {
+        final ProducerSession session = new ProducerSession(producer);
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                producers.add(session);
+                producerCounter++;
+                checkIdle();
+            }
+        });
+        return session;
+    }
+
+    @Override
+    public void disconnect(final DeliveryProducer producer) {
+        for (Queue partition : partitions) {
+            partition.disconnect(producer);
+        }
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                for (int i = 0; i < producers.size(); i++) {
+                    if (producers.get(i).producer == producer) {
+                        producers.remove(i);
+                        checkIdle();
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean matches(Delivery delivery) {
+        return true;
+    }
+
+    @Override
+    public int getPriority() {
+        return 0;
+    }
+
+    /////////////////////////////////////////////////////////////////////
+    // Enqueue
+    /////////////////////////////////////////////////////////////////////
+
+    /**
+     * Takes in a message sent by a producer.  A queue with a <code>duplicate_key</code>
+     * drops the messages whose id, the value of that header, is in its
+     * {@link DuplicateWindow} of recently seen ids.
+     */
+    void accept(Delivery delivery) {
+        Object id = duplicateKey == null ? null : delivery.getMessage().getProperty(duplicateKey);
+        if (id == null) {
+            if (!hold(delivery)) {
+                enqueue(delivery);
+            }
+            return;
+        }
+        DuplicateWindow duplicates = duplicates();
+        if (duplicates.isRestoring()) {
+            duplicates.defer(delivery);
+            return;
+        }
+        long hash = DuplicateWindow.hash(id);
+        if (duplicates.contains(hash)) {
+            dropDuplicate(delivery);
+            return;
+        }
+        if (!isStored(delivery)) {
+            duplicates.add(hash, null);
+            if (!hold(delivery)) {
+                enqueue(delivery);
+            }
+            return;
+        }
+        // the id gets recorded by the unit of work which stores the message
+        StoreUOW uow = delivery.getUow();
+        boolean ownUow = uow == null;
+        if (ownUow) {
+            uow = getStore().createStoreUOW();
+            delivery = delivery.copy();
+            delivery.setUow(uow);
+        }
+        duplicates.add(hash, uow);
+        if (!hold(delivery)) {
+            enqueue(delivery);
+        }
+        if (ownUow) {
+            uow.release();
+        }
+    }
+
+    private void dropDuplicate(Delivery delivery) {
+        duplicateItemCounter++;
+        duplicateSizeCounter += delivery.getSize();
+        tailBufferedSize.addAndGet(-delivery.getSize());
+        refillProducers();
+        // the producer just gets the receipt it missed the first time around
+        DeliveryAck ack = delivery.getAck();
+        if (ack != null) {
+            ack.apply(DeliveryResult.CONSUMED, null);
+        }
+    }
+
+    private DuplicateWindow duplicates() {
+        if (duplicates == null) {
+            duplicates = new DuplicateWindow(this);
+            duplicates.setSize(duplicateWindowSize);
+        }
+        return duplicates;
+    }
+
+    /**
+     * Called by the router when it finds the store queue of the duplicate window on restart.
+     */
+    void restoreDuplicates(final long key) {
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                duplicates().restore(key);
+            }
+        });
+    }
+
+    /**
+     * @return the store key of the queue which records the ids of the duplicate window, -1 if none.
+     */
+    long getDuplicatesStoreId() {
+        DuplicateWindow duplicates = this.duplicates;
+        return duplicates == null ? -1 : duplicates.getStoreId();
+    }
+
+    private void enqueue(Delivery delivery) {
+        if (!dispatchDirect(delivery)) {
+            enqueueEntry(delivery);
+        }
+    }
+
+    /**
+     * Hands a message sent to an empty temp queue straight to the connection which owns
+     * the queue when it is the only consumer and has room for it.  No entry is created
+     * unless the consumer hands the message back.  The producer is only acked once the
+     * consumer has acked, so a persistent message only has to be stored when the queue
+     * ends up holding on to it.
+     *
+     * @return false if the message has to be enqueued.
+     */
+    private boolean dispatchDirect(Delivery delivery) {
+        if (tempOwner == null || !entries.isEmpty() || subscriptions.size() != 1 || mirror != null
+                || lastValueKey != null) {
+            return false;
+        }
+        final Subscription sub = subscriptions.get(0);
+        BrokerConnection connection = sub.consumer.getConnection();
+        if (connection == null || !tempOwner.equals(connection.getSessionId()) || sub.isFull()
+                || MessageGroups.groupKey(delivery) != 0 || !sub.consumer.matches(delivery)) {
+            return false;
+        }
+        enqueueItemCounter++;
+        enqueueSizeCounter += delivery.getSize();
+        enqueueTs = now();
+        deliveredSizeCounter += delivery.getSize();
+        tailBufferedSize.addAndGet(-delivery.getSize());
+        refillProducers();
+        sub.acquiredCount++;
+        sub.acquiredSize += delivery.getSize();
+
+        final DeliveryAck producerAck = delivery.getAck();
+        final Delivery direct = delivery.copy();
+        direct.setSeq(QueueEntry.seq(rank(delivery.getPriority()), nextSeq++));
+        direct.setStoreKey(-1);
+        direct.setUow(null);
+        direct.setAck(new DeliveryAck() {
+            @Override
+            public void apply(final DeliveryResult result, final StoreUOW uow) {
+                if (uow != null) {
+                    uow.retain();
+                }
+                dispatchQueue.execute(new Task() {
+                    @Override
+                    public void run() {
+                        directAck(sub, direct, producerAck, result, uow);
+                        if (uow != null) {
+                            uow.release();
+                        }
+                    }
+                });
+            }
+        });
+        sub.offer(direct);
+        return true;
+    }
+
+    private void directAck(Subscription sub, Delivery delivery, final DeliveryAck producerAck, DeliveryResult result, StoreUOW uow) {
+        switch (result) {
+            case CONSUMED:
+                sub.acquiredCount--;
+                sub.acquiredSize -= delivery.getSize();
+                sub.totalAckCount++;
+                dequeueItemCounter++;
+                dequeueSizeCounter += delivery.getSize();
+                dequeueTs = now();
+                break;
+            case EXPIRED:
+                sub.acquiredCount--;
+                sub.acquiredSize -= delivery.getSize();
+                expiredItemCounter++;
+                expiredSizeCounter += delivery.getSize();
+                expiredTs = now();
+                break;
+            default:
+                // the consumer handed it back, from here on it is an acquired entry like
+                // any other so redelivery, the nak limit and the DLQ all apply to it
+                Delivery copy = delivery.copy();
+                copy.setSeq(QueueEntry.seq(rank(delivery.getPriority()), nextSeq++));
+                copy.setAck(null);
+                QueueEntry entry = QueueEntry.loaded(this, copy);
+                insert(entry);
+                queueItems++;
+                queueSize += entry.size;
+                swappedInItems++;
+                swappedInSize += entry.size;
+                updateQuotaFull();
+
+                boolean ownUow = false;
+                if (isStored(copy)) {
+                    if (uow == null) {
+                        uow = getStore().createStoreUOW();
+                        ownUow = true;
+                    }
+                    entry.messageKey = uow.store(copy.createMessageRecord());
+                    copy.setStoreKey(entry.messageKey);
+                    uow.enqueue(entry.toQueueEntryRecord());
+                    if (producerAck != null) {
+                        uow.onComplete(new Task() {
+                            @Override
+                            public void run() {
+                                producerAck.apply(DeliveryResult.CONSUMED, null);
+                            }
+                        });
+                    }
+                } else if (producerAck != null) {
+                    producerAck.apply(DeliveryResult.CONSUMED, null);
+                }
+                entry.acquirer = sub;
+                sub.acquired.add(entry);
+                ack(sub, entry, result, uow);
+                if (ownUow) {
+                    uow.release();
+                }
+                return;
+        }
+        if (producerAck != null) {
+            producerAck.apply(DeliveryResult.CONSUMED, null);
+        }
+    }
+
+    /**
+     * Adds the message to the entry list.  A queue with a <code>last_value_key</code>
+     * conflates: a message replaces the pending message with the same value of that
+     * header, taking over its place in the queue.  The entries are indexed by that value,
+     * and keyed entries are never collapsed into swapped ranges so the index can always
+     * reach them.
+     */
+    private void enqueueEntry(Delivery delivery) {
+        Object lastValue = lastValueKey == null ? null : delivery.getMessage().getProperty(lastValueKey);
+        QueueEntry previous = lastValue == null ? null : lastValues.get(lastValue);
+        if (previous != null && (previous.isAcquired() || !previous.isLinked())) {
+            // it's already on its way to a consumer, the new value goes to the back
+            previous = null;
+        }
+        // replacing a message does not make the queue any fuller
+        if (previous == null && DROP_TAIL_POLICY.equals(fullPolicy) && isOverQuota(1, delivery.getSize())) {
+            dropTail(delivery);
+            return;
+        }
+
+        // the new value takes over the place of the old one, unless its priority puts it
+        // on another level, then it goes to the back of that level like any other
+        int rank = rank(delivery.getPriority());
+        boolean inPlace = previous != null && previous.rank == rank;
+        Delivery copy = delivery.copy();
+        copy.setSeq(inPlace ? previous.seq : QueueEntry.seq(rank, nextSeq++));
+        copy.setAck(null);
+        copy.setUow(null);
+
+        // the old value is dequeued in the same unit of work the new one is enqueued in,
+        // so the store never sees the two out of order when they share the seq
+        StoreUOW uow = null;
+        boolean ownUow = false;
+        if (isStored(copy)) {
+            uow = delivery.getUow();
+            if (uow == null) {
+                uow = getStore().createStoreUOW();
+                ownUow = true;
+            }
+        }
+
+        QueueEntry entry = QueueEntry.loaded(this, copy);
+        entry.tailCredit = true;
+        entry.groupKey = MessageGroups.groupKey(copy);
+        if (entry.groupKey != 0) {
+            groupedItems++;
+        }
+        if (lastValue != null) {
+            entry.lastValue = lastValue;
+            lastValues.put(lastValue, entry);
+        }
+        if (inPlace) {
+            previous.linkBefore(entry);
+        } else {
+            insert(entry);
+        }
+        if (previous != null) {
+            conflate(previous, entry, uow);
+        }
+        scheduleExpiration(entry);
+
+        enqueueItemCounter++;
+        enqueueSizeCounter += entry.size;
+        enqueueTs = now();
+        queueItems++;
+        queueSize += entry.size;
+        swappedInItems++;
+        swappedInSize += entry.size;
+        if (DROP_HEAD_POLICY.equals(fullPolicy)) {
+            dropHead(entry);
+        }
+        updateQuotaFull();
+
+        if (uow != null) {
+            if (entry.messageKey == -1) {
+                entry.messageKey = uow.store(copy.createMessageRecord());
+                copy.setStoreKey(entry.messageKey);
+            }
+            uow.enqueue(entry.toQueueEntryRecord());
+        } else if (entry.messageKey != -1) {
+            // stored by the queue the message came from, but this queue keeps no record of it
+            entry.messageKey = -1;
+            copy.setStoreKey(-1);
+        }
+
+        final DeliveryAck ack = delivery.getAck();
+        if (ack != null) {
+            if (uow != null) {
+                // persistent messages are only acked once they are safely stored
+                uow.onComplete(new Task() {
+                    @Override
+                    public void run() {
+                        ack.apply(DeliveryResult.CONSUMED, null);
+                    }
+                });
+            } else {
+                ack.apply(DeliveryResult.CONSUMED, null);
+            }
+        }
+        DeliverySession mirror = this.mirror;
+        if (mirror != null) {
+            // the topic gets the stored copy so it shares the message and its store key,
+            // the uow goes along so the topic's durable subscriptions join it
+            Delivery mirrored = copy.copy();
+            mirrored.setSeq(-1);
+            mirrored.setUow(uow);
+            mirror.offer(mirrored);
+        }
+        if (ownUow) {
+            uow.release();
+        }
+
+        boolean parked = false;
+        for (Subscription sub : subscriptions) {
+            // subscriptions that went past a replaced entry without taking it get to
+            // look at its new value, and a higher priority message goes in front of
+            // the ones they are at
+            if (sub.pos == null || sub.pos.seq > entry.seq) {
+                sub.pos = entry;
+                parked = true;
+            }
+        }
+
+        // past the memory budget and nobody is waiting on it, so send it straight to the store
+        if (!parked && swappedInSize > getSwappedInSizeMax()) {
+            swapOut(entry);
+        }
+        triggerDispatch();
+    }
+
+    /**
+     * @return the rank of the priority level the JMS priority maps to, 0 being the highest.
+     */
+    private int rank(int priority) {
+        int level = Math.max(0, Math.min(9, priority)) * priorities / 10;
+        return priorities - 1 - level;
+    }
+
+    /**
+     * Links the entry in at the end of its priority level, in front of the entries of
+     * the lower levels.  The levels follow each other from the highest to the lowest and
+     * the tail of every level is indexed, so no search is needed and the head of the
+     * list is always the next message to dispatch.
+     */
+    private void insert(QueueEntry entry) {
+        QueueEntry previous = null;
+        for (int rank = entry.rank; rank >= 0 && previous == null; rank--) {
+            previous = rankTails[rank];
+        }
+        if (previous != null) {
+            previous.linkAfter(entry);
+        } else {
+            entries.addFirst(entry);
+        }
+        rankTails[entry.rank] = entry;
+    }
+
+    private void unlink(QueueEntry entry) {
+        if (!browseCursors.isEmpty()) {
+            moveBrowseCursors(entry);
+        }
+        if (rankTails[entry.rank] == entry) {
+            QueueEntry previous = entry.getPrevious();
+            rankTails[entry.rank] = previous != null && previous.rank == entry.rank ? previous : null;
+        }
+        entry.unlink();
+    }
+
+    /**
+     * @return the first entry of the priority level, null if it has none.
+     */
+    private QueueEntry rankHead(int rank) {
+        if (rankTails[rank] == null) {
+            return null;
+        }
+        for (int higher = rank - 1; higher >= 0; higher--) {
+            if (rankTails[higher] != null) {
+                return rankTails[higher].getNext();
+            }
+        }
+        return entries.getHead();
+    }
+
+    /**
+     * @return true if the queue keeps the delivery in the store.
+     */
+    boolean isStored(Delivery delivery) {
+        return persistent && delivery.isPersistent() && storeId != -1 && getStore() != null;
+    }
+
+    /**
+     * Opens the uow which the queues among the consumers of a delivery that is about to
+     * be fanned out enqueue it in, so the producer's ack can wait on that one uow.  When
+     * more than one of those queues takes the message, the message record is stored up
+     * front and they all enqueue that one record instead of each storing a copy, the
+     * selectors of the filtered queues are only evaluated in that case.  The delivery
+     * gets the uow, and the store key when the record was stored, the caller has to
+     * release the uow once it has offered the delivery to all the consumers.  May be
+     * called from any thread.
+     *
+     * @return the uow or null if none of the consumers stores the message.
+     */
+    static StoreUOW storeShared(Delivery delivery, Iterable<? extends DeliveryConsumer> consumers) {
+        if (!delivery.isPersistent() || delivery.getStoreKey() != -1 || delivery.getUow() != null) {
+            return null;
+        }
+        ArrayList<Queue> storing = new ArrayList<Queue>();
+        for (DeliveryConsumer consumer : consumers) {
+            if (consumer instanceof Queue && ((Queue) consumer).isStored(delivery)) {
+                storing.add((Queue) consumer);
+            }
+        }
+        if (storing.isEmpty()) {
+            return null;
+        }
+        StoreUOW uow = storing.get(0).getStore().createStoreUOW();
+        delivery.setUow(uow);
+        if (storing.size() > 1) {
+            int taking = 0;
+            for (Queue queue : storing) {
+                if (queue.matches(delivery) && ++taking == 2) {
+                    delivery.setStoreKey(uow.store(delivery.createMessageRecord()));
+                    break;
+                }
+            }
+        }
+        return uow;
+    }
+
+    /////////////////////////////////////////////////////////////////////
+    // Delayed delivery
+    /////////////////////////////////////////////////////////////////////
+
+    private QueueSchedule schedule() {
+        if (schedule == null) {
+            schedule = new QueueSchedule(this);
+        }
+        return schedule;
+    }
+
+    /**
+     * Messages sent with a <code>deliver_at</code> (milliseconds since the epoch) or a
+     * <code>delay</code> (milliseconds) header are held back by the {@link QueueSchedule}
+     * until they are due.
+     *
+     * @return true if the delivery is not due yet and is held by the schedule.
+     */
+    private boolean hold(Delivery delivery) {
+        long due = QueueSchedule.dueTime(delivery, now());
+        if (due == 0) {
+            return false;
+        }
+        // held messages don't count against the tail buffer of the producers
+        tailBufferedSize.addAndGet(-delivery.getSize());
+        refillProducers();
+        schedule().hold(delivery, due);
+        return true;
+    }
+
+    /**
+     * Called by the schedule for a message held in memory which is now due.
+     */
+    void releaseScheduled(Delivery delivery) {
+        tailBufferedSize.addAndGet(delivery.getSize());
+        enqueue(delivery);
+    }
+
+    /**
+     * Called by the schedule for stored messages which are now due.  They are moved
+     * over from the schedule's store queue in one unit of work and enter the queue
+     * swapped out, they get loaded when a subscription gets to them.
+     */
+    void moveScheduled(List<QueueEntryRecord> records) {
+        Store store = getStore();
+        if (records.isEmpty() || store == null) {
+            return;
+        }
+        StoreUOW uow = store.createStoreUOW();
+        for (QueueEntryRecord scheduled : records) {
+            uow.dequeue(scheduled);
+            QueueEntryRecord record = new QueueEntryRecord();
+            record.queueKey = storeId;
+            record.entrySeq = QueueEntry.seq(rank(scheduled.priority), nextSeq++);
+            record.messageKey = scheduled.messageKey;
+            record.size = scheduled.size;
+            record.expiration = scheduled.expiration;
+            record.redeliveries = scheduled.redeliveries;
+            uow.enqueue(record);
+
+            QueueEntry entry = QueueEntry.swapped(this, record);
+            insert(entry);
+            scheduleExpiration(entry);
+            enqueueItemCounter++;
+            enqueueSizeCounter += entry.size;
+            enqueueTs = now();
+            queueItems++;
+            queueSize += entry.size;
+            for (Subscription sub : subscriptions) {
+                if (sub.pos == null || sub.pos.seq > entry.seq) {
+                    sub.pos = entry;
+                }
+            }
+        }
+        uow.release();
+        updateQuotaFull();
+        triggerDispatch();
+    }
+
+    /**
+     * Called by the router when it finds the store queue of the schedule on restart.
+     */
+    void restoreSchedule(final long key) {
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                schedule().restore(key);
+            }
+        });
+    }
+
+    /**
+     * @return the store key of the queue which holds the delayed messages, -1 if none.
+     */
+    long getScheduleStoreId() {
+        QueueSchedule schedule = this.schedule;
+        return schedule == null ? -1 : schedule.getStoreId();
+    }
+
+    /**
+     * Drops the entry the new one replaces.  The dequeue has to go ahead of the new
+     * entry's enqueue in the unit of work, they may share the seq.
+     */
+    private void conflate(QueueEntry previous, QueueEntry entry, StoreUOW uow) {
+        conflatedItemCounter++;
+        conflatedSizeCounter += previous.size;
+        if (previous.seq == entry.seq) {
+            for (Subscription sub : subscriptions) {
+                if (sub.pos == previous) {
+                    sub.pos = entry;
+                }
+            }
+        }
+        dequeue(previous, uow);
+    }
+
+    private void applyLastValueKey(String key) {
+        if (key == null ? lastValueKey == null : key.equals(lastValueKey)) {
+            return;
+        }
+        lastValueKey = key;
+        lastValues.clear();
+        // the values of the old key must not keep the entries out of swapped ranges
+        for (QueueEntry entry = entries.getHead(); entry != null; entry = entry.getNext()) {
+            entry.lastValue = null;
+        }
+    }
+
+    /**
+     * Called by the router once it connected the queue to the topic it mirrors to.
+     */
+    void setMirror(final DeliverySession session) {
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                if (!mirrored) {
+                    session.close();
+                    return;
+                }
+                closeMirror();
+                session.setRefiller(new Task() {
+                    @Override
+                    public void run() {
+                        dispatchQueue.execute(new Task() {
+                            @Override
+                            public void run() {
+                                refillProducers();
+                            }
+                        });
+                    }
+                });
+                mirror = session;
+            }
+        });
+    }
+
+    private void closeMirror() {
+        if (mirror != null) {
+            mirror.close();
+            mirror = null;
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////////
+    // Quotas
+    /////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return true if the queue would be over its quota with the given messages added.
+     */
+    private boolean isOverQuota(long items, long size) {
+        return (quota >= 0 && queueSize + size > quota) || (quotaMessages >= 0 && queueItems + items > quotaMessages);
+    }
+
+    /**
+     * Tracks whether a block policy queue reached its quota, the producers are let go
+     * again as soon as it drops below.
+     */
+    private void updateQuotaFull() {
+        boolean full = BLOCK_POLICY.equals(fullPolicy)
+                && ((quota >= 0 && queueSize >= quota) || (quotaMessages >= 0 && queueItems >= quotaMessages));
+        if (full != quotaFull) {
+            quotaFull = full;
+            if (!full) {
+                refillProducers();
+            }
+        }
+    }
+
+    private void dropTail(Delivery delivery) {
+        dropTailItemCounter++;
+        dropTailSizeCounter += delivery.getSize();
+        tailBufferedSize.addAndGet(-delivery.getSize());
+        refillProducers();
+        DeliveryAck ack = delivery.getAck();
+        if (ack != null) {
+            ack.apply(DeliveryResult.CONSUMED, null);
+        }
+    }
+
+    /**
+     * Drops the oldest entries, those of the lowest priority level first, until the
+     * queue is back within its quota.  Entries a consumer holds on to are passed over
+     * and swapped out entries and ranges are dropped from the store without being loaded.
+     */
+    private void dropHead(QueueEntry newest) {
+        for (int rank = MAX_PRIORITIES - 1; rank >= 0 && isOverQuota(0, 0); rank--) {
+            QueueEntry entry = rankHead(rank);
+            while (entry != null && entry.rank == rank && entry != newest && isOverQuota(0, 0)) {
+                QueueEntry next = entry.getNext();
+                if (!entry.isAcquired()) {
+                    dropHeadItemCounter += entry.count;
+                    dropHeadSizeCounter += entry.getMemorySize();
+                    if (entry.isSwappedRange()) {
+                        dequeueRange(entry);
+                    } else {
+                        dequeue(entry, null);
+                    }
+                }
+                entry = next;
+            }
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////////
+    // Auto delete
+    /////////////////////////////////////////////////////////////////////
+
+    private boolean isIdle() {
+        return subscriptions.isEmpty() && producers.isEmpty();
+    }
+
+    /**
+     * Starts the idle clock when the queue lost its last consumer or producer and
+     * stops it when it gets one again.
+     */
+    private void checkIdle() {
+        if (autoDeleteAfter > 0 && isIdle() && serviceState.isStartingOrStarted()) {
+            if (idleTimer == null) {
+                idleTimer = getIdleWheel().schedule(idleCheck, now() + autoDeleteAfter * 1000L);
+            }
+        } else {
+            cancelIdle();
+        }
+    }
+
+    private void cancelIdle() {
+        if (idleTimer != null) {
+            getIdleWheel().cancel(idleTimer);
+            idleTimer = null;
+        }
+    }
+
+    private void idleTimeout() {
+        // the timer could have been replaced by a later one after this one fired
+        if (idleTimer == null || idleTimer.getDeadline() > now()) {
+            return;
+        }
+        idleTimer = null;
+        if (queueItems > 0 || (schedule != null && !schedule.isEmpty())) {
+            // only empty queues are deleted, look again once it had time to drain
+            checkIdle();
+        } else if (isIdle()) {
+            LOG.debug("{} has been idle for {} seconds, deleting it", this, autoDeleteAfter);
+            router.autoDelete(this);
+        }
+    }
+
+    private ScheduledWheel<Task> getIdleWheel() {
+        return router.getVirtualHost().getIdleWheel();
+    }
+
+    /////////////////////////////////////////////////////////////////////
+    // Producer flow control
+    /////////////////////////////////////////////////////////////////////
+
+    boolean isTailBufferFull() {
+        return tailBufferedSize.get() >= tailBuffer;
+    }
+
+    private void refillProducers() {
+        for (ProducerSession session : producers) {
+            if (!session.isIngressBlocked()) {
+                session.refill();
+            }
+        }
+    }
+
+    /**
+     * Token bucket refill of the producers' enqueue credit.  Every producer gets an equal
+     * share of the tick's allowance, and the share the idle producers leave unused goes to
+     * the producers which are blocked waiting for credit.  A producer's bucket never
+     * holds more than one share so a producer can't save up for a burst.
+     */
+    private void distributeEnqueueCredit(long elapsed) {
+        long limit = enqueueRateLimit;
+        if (limit < 0 || elapsed <= 0 || producers.isEmpty()) {
+            return;
+        }
+        long share = Math.max(1, limit * elapsed / 1000 / producers.size());
+        long spare = 0;
+        ArrayList<ProducerSession> waiting = new ArrayList<ProducerSession>();
+        for (ProducerSession session : producers) {
+            if (session.isWaitingForCredit()) {
+                waiting.add(session);
+            }
+            spare += session.addEnqueueCredit(share, share);
+        }
+        if (spare > 0 && !waiting.isEmpty()) {
+            long extra = spare / waiting.size();
+            for (ProducerSession session : waiting) {
+                session.addEnqueueCredit(extra, share + extra);
+            }
+        }
+        refillProducers();
+    }
+
+    /**
+     * Called once an entry has been delivered, swapped out or removed.  Producers that
+     * were blocked by a full tail buffer are refilled once there is room again.
+     */
+    private void releaseTailCredit(QueueEntry entry) {
+        if (!entry.tailCredit) {
+            return;
+        }
+        entry.tailCredit = false;
+        tailBufferedSize.addAndGet(-entry.size);
+        refillProducers();
+    }
+
+    /////////////////////////////////////////////////////////////////////
+    // Rate monitoring
+    /////////////////////////////////////////////////////////////////////
+
+    /**
+     * Runs on every broker maintenance tick.  Samples the enqueue and delivery rates
+     * and hands out the enqueue credit of throttled producers.
+     */
+    public void maintenance() {
+        for (Queue partition : partitions) {
+            partition.maintenance();
+        }
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                long now = now();
+                long elapsed = lastMaintenanceTs == 0 ? 0 : now - lastMaintenanceTs;
+                lastMaintenanceTs = now;
+                checkRates(now);
+
+                distributeEnqueueCredit(elapsed);
+            }
+        });
+    }
+
+    private void checkRates(long now) {
+        if (rateSampleTs == 0 || now - rateSampleTs >= RATE_SAMPLE_INTERVAL) {
+            if (rateSampleTs != 0) {
+                long elapsed = now - rateSampleTs;
+                enqueueRate = (enqueueSizeCounter - rateSampleEnqueueSize) * 1000 / elapsed;
+                deliveryRate = (deliveredSizeCounter - rateSampleDeliveredSize) * 1000 / elapsed;
+                updateCatchupMode();
+            }
+            rateSampleTs = now;
+            rateSampleEnqueueSize = enqueueSizeCounter;
+            rateSampleDeliveredSize = deliveredSizeCounter;
+        }
+    }
+
+    /**
+     * Fast consumers which are still working through swapped out messages are lagging
+     * behind the producers, throttle the producers to catchup_enqueue_rate until the
+     * consumers reach the tail or slow down.
+     */
+    private void updateCatchupMode() {
+        if (fastDeliveryRate < 0 || catchupEnqueueRate < 0) {
+            return;
+        }
+        boolean lagging = queueItems > swappedInItems && hasLaggingSubscription();
+        boolean fast = deliveryRate >= fastDeliveryRate;
+        boolean rc = catchingUp ? lagging && fast : lagging && fast && enqueueRate >= deliveryRate;
+        if (rc != catchingUp) {
+            LOG.debug("{} {} catch-up mode, enqueue rate: {}, delivery rate: {}", new Object[]{this, rc ? "entering" : "leaving", enqueueRate, deliveryRate});
+            catchingUp = rc;
+            updateEnqueueRateLimit();
+        }
+    }
+
+    private boolean hasLaggingSubscription() {
+        for (Subscription sub : subscriptions) {
+            if (sub.pos != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void updateEnqueueRateLimit() {
+        long limit = maxEnqueueRate;
+        if (catchingUp && (limit < 0 || catchupEnqueueRate < limit)) {
+            limit = catchupEnqueueRate;
+        }
+        if (limit != enqueueRateLimit) {
+            // sends made under the old limit should not count against the new one
+            for (ProducerSession session : producers) {
+                session.enqueueCredit.set(0);
+            }
+            enqueueRateLimit = limit;
+        }
+        if (limit < 0) {
+            refillProducers();
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////////
+    // Dispatch
+    /////////////////////////////////////////////////////////////////////
+
+    void triggerDispatch() {
+        if (!dispatchScheduled) {
+            dispatchScheduled = true;
+            dispatchQueue.execute(new Task() {
+                @Override
+                public void run() {
+                    dispatchScheduled = false;
+                    dispatch();
+                }
+            });
+        }
+    }
+
+    private void dispatch() {
+        dispatchStrategy.dispatch(subscriptions);
+    }
+
+    /**
+     * Moves the subscription's cursor to the next entry it can take and hands it over.
+     *
+     * @return true if an entry was dispatched to the subscription
+     */
+    boolean dispatchOne(Subscription sub) {
+        if (sub.isFull()) {
+            return false;
+        }
+        if (starvationLimit > 0 && passedOver >= starvationLimit && dispatchStarved(sub)) {
+            return true;
+        }
+        long now = now();
+        QueueEntry entry = sub.pos;
+        while (entry != null) {
+            QueueEntry next = entry.getNext();
+            if (entry.isAcquired()) {
+                entry = next;
+            } else if (entry.isExpired(now) && (entry.isLoaded() || dlq == null || !dlqExpired)) {
+                expire(entry);
+                entry = next;
+            } else if (!entry.isLoaded()) {
+                // wait for the entry to get loaded from the store
+                sub.pos = entry;
+                swapIn(entry);
+                return false;
+            } else if (entry.groupKey != 0 && groups.owner(entry.groupKey) != sub) {
+                // the group belongs to another subscription
+                groups.skipped(entry);
+                entry = next;
+            } else if (!sub.consumer.matches(entry.delivery)) {
+                entry = next;
+            } else {
+                sub.pos = next;
+                // the tail of the list is on the lowest priority level
+                passedOver = entry.rank < entries.getTail().rank ? passedOver + 1 : 0;
+                acquire(sub, entry);
+                return true;
+            }
+        }
+        sub.pos = null;
+        return false;
+    }
+
+    /**
+     * The starvation guard.  Dispatches the oldest message waiting on one of the
+     * priority levels below the subscription's position, the aging levels take
+     * their turns by the age of their messages.
+     *
+     * @return true if an entry was dispatched to the subscription
+     */
+    private boolean dispatchStarved(Subscription sub) {
+        if (sub.pos == null) {
+            return false;
+        }
+        QueueEntry oldest = null;
+        QueueEntry tail = rankTails[sub.pos.rank];
+        while (tail != null && tail.getNext() != null) {
+            QueueEntry entry = tail.getNext();
+            int rank = entry.rank;
+            while (entry != null && entry.rank == rank && entry.isAcquired()) {
+                entry = entry.getNext();
+            }
+            if (entry != null && entry.rank == rank && (oldest == null || QueueEntry.counter(entry.seq) < QueueEntry.counter(oldest.seq))) {
+                oldest = entry;
+            }
+            tail = rankTails[rank];
+        }
+        if (oldest == null) {
+            // nothing is waiting after all
+            passedOver = 0;
+            return false;
+        }
+        if (oldest.isExpired(now()) && (oldest.isLoaded() || dlq == null || !dlqExpired)) {
+            expire(oldest);
+            return false;
+        }
+        if (!oldest.isLoaded()) {
+            swapIn(oldest);
+            return false;
+        }
+        if ((oldest.groupKey != 0 && groups.owner(oldest.groupKey) != sub) || !sub.consumer.matches(oldest.delivery)) {
+            return false;
+        }
+        passedOver = 0;
+        acquire(sub, oldest);
+        return true;
+    }
+
+    private void acquire(final Subscription sub, final QueueEntry entry) {
+        releaseTailCredit(entry);
+        deliveredSizeCounter += entry.size;
+        entry.acquirer = sub;
+        sub.acquired.add(entry);
+        sub.acquiredCount++;
+        sub.acquiredSize += entry.size;
+        if (entry.groupKey != 0) {
+            groups.acquired(entry.groupKey, sub);
+        }
+
+        Delivery delivery = entry.delivery.copy();
+        delivery.setRedeliveries(entry.redeliveries);
+        delivery.setAck(new DeliveryAck() {
+            @Override
+            public void apply(final DeliveryResult result, final StoreUOW uow) {
+                if (uow != null) {
+                    uow.retain();
+                }
+                dispatchQueue.execute(new Task() {
+                    @Override
+                    public void run() {
+                        ack(sub, entry, result, uow);
+                        if (uow != null) {
+                            uow.release();
+                        }
+                    }
+                });
+            }
+        });
+        sub.offer(delivery);
+    }
+
+    private void ack(Subscription sub, QueueEntry entry, DeliveryResult result, StoreUOW uow) {
+        if (entry.acquirer != sub) {
+            // the entry was already released when the subscription went away
+            return;
+        }
+        release(sub, entry);
+
+        switch (result) {
+            case CONSUMED:
+                sub.totalAckCount++;
+                dequeueItemCounter++;
+                dequeueSizeCounter += entry.size;
+                dequeueTs = now();
+                dequeue(entry, uow);
+                break;
+            case EXPIRED:
+                expiredItemCounter++;
+                expiredSizeCounter += entry.size;
+                expiredTs = now();
+                dequeue(entry, uow);
+                break;
+            case POISONED:
+                sub.totalNackCount++;
+                nackItemCounter++;
+                nackSizeCounter += entry.size;
+                nackTs = now();
+                entry.redeliveries++;
+                if (nakLimit > 0 && entry.redeliveries >= nakLimit) {
+                    // a poison message, stop it from cycling through the consumers forever
+                    deadLetter(entry, uow);
+                } else {
+                    rewindTo(entry);
+                }
+                break;
+            case DELIVERED:
+                entry.redeliveries++;
+                rewindTo(entry);
+                break;
+            case UNDELIVERED:
+                rewindTo(entry);
+                break;
+        }
+        triggerDispatch();
+    }
+
+    private void release(Subscription sub, QueueEntry entry) {
+        entry.acquirer = null;
+        sub.acquired.remove(entry);
+        sub.acquiredCount--;
+        sub.acquiredSize -= entry.size;
+        if (entry.groupKey != 0) {
+            long skipped = groups.getSkipped(entry.groupKey);
+            Subscription newOwner = groups.released(entry.groupKey);
+            if (newOwner != null && skipped != -1) {
+                // the new owner skipped the group's messages while they were held back
+                rewind(newOwner, skipped);
+            }
+        }
+    }
+
+    /**
+     * Moves the subscription's cursor back to the entry at the seq if it went past it.
+     * Only the entries the subscription went past are walked, and it would have to look
+     * at those again anyway.
+     */
+    private void rewind(Subscription sub, long seq) {
+        QueueEntry entry = sub.pos != null ? sub.pos : entries.getTail();
+        if (entry == null || (sub.pos != null && entry.seq <= seq)) {
+            return;
+        }
+        while (entry.getPrevious() != null && entry.getPrevious().seq >= seq) {
+            entry = entry.getPrevious();
+        }
+        QueueEntry previous = entry.getPrevious();
+        if (previous != null && previous.isSwappedRange()) {
+            // the entry may have been swapped out into the range since
+            entry = previous;
+        }
+        if (entry.seq >= seq || entry.isSwappedRange()) {
+            sub.pos = entry;
+        }
+    }
+
+    /**
+     * The groups of a subscription which goes away move to the remaining subscriptions,
+     * which skipped their messages so far.  The subscription took its groups' messages
+     * in order, so the ones it did not get to yet all come after its cursor.
+     */
+    private void handOffGroups(Subscription removed) {
+        if (groupedItems == 0 || removed.pos == null) {
+            return;
+        }
+        for (Subscription sub : subscriptions) {
+            if (sub.pos == null || sub.pos.seq > removed.pos.seq) {
+                sub.pos = removed.pos;
+            }
+        }
+    }
+
+    /**
+     * Moves the cursor of every subscription which is past the entry back to it so
+     * that the entry gets dispatched again.
+     */
+    private void rewindTo(QueueEntry entry) {
+        // the timer is ignored while the entry is acquired so it may have to be put back
+        scheduleExpiration(entry);
+        for (Subscription sub : subscriptions) {
+            if (sub.pos == null || sub.pos.seq > entry.seq) {
+                sub.pos = entry;
+            }
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////////
+    // Expiration
+    /////////////////////////////////////////////////////////////////////
+
+    private void scheduleExpiration(QueueEntry entry) {
+        if (entry.expiration != 0 && entry.expirationTimer == null) {
+            entry.expirationTimer = getExpirationWheel().schedule(entry, entry.expiration);
+        }
+    }
+
+    private void cancelExpiration(QueueEntry entry) {
+        if (entry.expirationTimer != null) {
+            getExpirationWheel().cancel(entry.expirationTimer);
+            entry.expirationTimer = null;
+        }
+    }
+
+    private ScheduledWheel<QueueEntry> getExpirationWheel() {
+        return router.getVirtualHost().getExpirationWheel();
+    }
+
+    /**
+     * Called by the expiration wheel with the timers of this queue's entries which
+     * came due.  Swapped ranges are dropped whole when all their entries expired,
+     * otherwise they are expanded so their entries get scheduled individually.
+     */
+    void expired(final List<TimingWheel.Timer<QueueEntry>> timers) {
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                long now = now();
+                for (TimingWheel.Timer<QueueEntry> timer : timers) {
+                    QueueEntry entry = timer.getValue();
+                    if (entry.expirationTimer != timer) {
+                        // cancelled while the timer was on its way
+                        continue;
+                    }
+                    entry.expirationTimer = null;
+                    if (!entry.isLinked() || entry.isAcquired()) {
+                        // an acquired entry gets rescheduled if it is ever handed back
+                        continue;
+                    }
+                    boolean deadLetter = dlqExpired && dlq != null;
+                    if (entry.isSwappedRange()) {
+                        if (entry.isRangeExpired(now) && !deadLetter) {
+                            expireRange(entry);
+                        } else {
+                            swapIn(entry);
+                        }
+                    } else if (!entry.isExpired(now)) {
+                        scheduleExpiration(entry);
+                    } else if (entry.isLoaded() || !deadLetter) {
+                        expire(entry);
+                    } else {
+                        // it has to be loaded to be dead lettered, that expires it
+                        swapIn(entry);
+                    }
+                }
+                triggerDispatch();
+            }
+        });
+    }
+
+    /**
+     * Drops a swapped range whose entries all expired without loading them.
+     */
+    private void expireRange(QueueEntry range) {
+        expiredItemCounter += range.count;
+        expiredSizeCounter += range.rangeSize;
+        expiredTs = now();
+        dequeueRange(range);
+    }
+
+    private void dequeueRange(QueueEntry range) {
+        Store store = getStore();
+        if (storeId != -1 && store != null) {
+            StoreUOW uow = store.createStoreUOW();
+            uow.dequeueRange(storeId, range.seq, range.lastSeq);
+            uow.release();
+        }
+        remove(range);
+    }
+
+    private void expire(QueueEntry entry) {
+        expiredItemCounter++;
+        expiredSizeCounter += entry.size;
+        expiredTs = now();
+        if (dlqExpired && entry.isLoaded()) {
+            deadLetter(entry, null);
+        } else {
+            dequeue(entry, null);
+        }
+    }
+
+    /**
+     * Moves the entry over to the dead letter queue or drops it when no dead letter
+     * queue is configured.  The dead letter queue gets the same message and, when it
+     * is stored, reuses the message record: only the entry moves from one queue to
+     * the other in a single unit of work.
+     */
+    private void deadLetter(QueueEntry entry, StoreUOW uow) {
+        if (dlq == null || !entry.isLoaded()) {
+            dequeue(entry, uow);
+            return;
+        }
+        Delivery delivery = entry.delivery.copy();
+        delivery.setSeq(0);
+        delivery.setAck(null);
+        delivery.setStoreKey(entry.messageKey);
+        delivery.setRedeliveries(entry.redeliveries);
+        // it's no longer a candidate for expiration once it's on the dead letter queue
+        delivery.setExpiration(0);
+
+        Store store = getStore();
+        StoreUOW dlqUow = null;
+        if (entry.isStored() && storeId != -1 && store != null) {
+            if (uow != null) {
+                uow.retain();
+                dlqUow = uow;
+            } else {
+                dlqUow = store.createStoreUOW();
+            }
+            dlqUow.dequeue(entry.toQueueEntryRecord());
+        }
+        delivery.setUow(dlqUow);
+        remove(entry);
+        router.deadLetter(dlq, delivery);
+    }
+
+    /**
+     * Takes in a message dead lettered by another queue.  The unit of work carried by
+     * the delivery, if any, is handed over to this queue and released once the
+     * message has been enqueued.
+     */
+    void enqueueDeadLetter(final Delivery delivery) {
+        tailBufferedSize.addAndGet(delivery.getSize());
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                enqueue(delivery);
+                if (delivery.getUow() != null) {
+                    delivery.getUow().release();
+                }
+            }
+        });
+    }
+
+    private void dequeue(QueueEntry entry, StoreUOW uow) {
+        Store store = getStore();
+        if (entry.isStored() && storeId != -1 && store != null) {
+            boolean ownUow = uow == null;
+            if (ownUow) {
+                uow = store.createStoreUOW();
+            }
+            uow.dequeue(entry.toQueueEntryRecord());
+            if (ownUow) {
+                uow.release();
+            }
+        }
+        remove(entry);
+    }
+
+    private void remove(QueueEntry entry) {
+        releaseTailCredit(entry);
+        cancelExpiration(entry);
+        if (entry.groupKey != 0) {
+            groupedItems--;
+        }
+        if (entry.lastValue != null && lastValues.get(entry.lastValue) == entry) {
+            lastValues.remove(entry.lastValue);
+        }
+        QueueEntry next = entry.getNext();
+        for (Subscription sub : subscriptions) {
+            if (sub.pos == entry) {
+                sub.pos = next;
+            }
+        }
+        queueItems -= entry.count;
+        queueSize -= entry.getMemorySize();
+        if (entry.isLoaded()) {
+            swappedInItems--;
+            swappedInSize -= entry.size;
+        }
+        entry.delivery = null;
+        unlink(entry);
+        updateQuotaFull();
+    }
+
+    /////////////////////////////////////////////////////////////////////
+    // Swapping
+    /////////////////////////////////////////////////////////////////////
+
+    private void swapOut(final QueueEntry entry) {
+        if (!entry.isLoaded() || entry.isAcquired() || entry.swappingOut || !isSwapEnabled()) {
+            return;
+        }
+        if (entry.isStored()) {
+            completeSwapOut(entry);
+            return;
+        }
+
+        entry.swappingOut = true;
+        swappingOutSize += entry.size;
+
+        StoreUOW uow = getStore().createStoreUOW();
+        entry.messageKey = uow.store(entry.delivery.createMessageRecord());
+        entry.delivery.setStoreKey(entry.messageKey);
+        uow.enqueue(entry.toQueueEntryRecord());
+        uow.onComplete(new Task() {
+            @Override
+            public void run() {
+                dispatchQueue.execute(new Task() {
+                    @Override
+                    public void run() {
+                        entry.swappingOut = false;
+                        swappingOutSize -= entry.size;
+                        // it may have been dispatched while it was being stored
+                        if (entry.isLinked() && entry.isLoaded() && !entry.isAcquired()) {
+                            completeSwapOut(entry);
+                        }
+                    }
+                });
+            }
+        });
+        uow.release();
+    }
+
+    private void completeSwapOut(QueueEntry entry) {
+        releaseTailCredit(entry);
+        entry.delivery = null;
+        entry.state = QueueEntry.State.SWAPPED;
+        swappedInItems--;
+        swappedInSize -= entry.size;
+        swapOutItemCounter++;
+        swapOutSizeCounter += entry.size;
+    }
+
+    private void swapIn(final QueueEntry entry) {
+        if (entry.isLoaded() || entry.swappingIn) {
+            return;
+        }
+        Store store = getStore();
+        if (store == null) {
+            return;
+        }
+        entry.swappingIn = true;
+        swappingInSize += entry.getMemorySize();
+
+        if (entry.isSwapped()) {
+            store.loadMessage(entry.messageKey, new Procedure1<MessageRecord>() {
+                @Override
+                public void execute(final MessageRecord record) {
+                    dispatchQueue.execute(new Task() {
+                        @Override
+                        public void run() {
+                            entry.swappingIn = false;
+                            swappingInSize -= entry.size;
+                            if (entry.isLinked() && entry.isSwapped()) {
+                                completeSwapIn(entry, record);
+                                if (entry.isLinked() && !entry.isAcquired() && entry.isExpired(now())) {
+                                    expire(entry);
+                                }
+                            }
+                            triggerDispatch();
+                        }
+                    });
+                }
+            });
+        } else {
+            final long rangeSize = entry.rangeSize;
+            store.listQueueEntries(storeId, entry.seq, entry.lastSeq, new Procedure1<List<QueueEntryRecord>>() {
+                @Override
+                public void execute(final List<QueueEntryRecord> records) {
+                    dispatchQueue.execute(new Task() {
+                        @Override
+                        public void run() {
+                            entry.swappingIn = false;
+                            swappingInSize -= rangeSize;
+                            if (entry.isLinked()) {
+                                expandRange(entry, records);
+                            }
+                            triggerDispatch();
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    private void completeSwapIn(QueueEntry entry, MessageRecord record) {
+        if (record == null) {
+            LOG.warn("{} could not load message {} from the store, dropping entry {}", new Object[]{this, entry.messageKey, entry.seq});
+            remove(entry);
+            return;
+        }
+        Delivery delivery = new Delivery();
+        delivery.setMessage(MessageCodecFactory.decode(record));
+        delivery.setSize(entry.size);
+        delivery.setExpiration(entry.expiration);
+        delivery.setPersistent(true);
+        delivery.setSeq(entry.seq);
+        delivery.setStoreKey(entry.messageKey);
+        delivery.setRedeliveries(entry.redeliveries);
+
+        if (entry.groupKey == 0) {
+            // entries restored from the store only learn their group once loaded
+            entry.groupKey = MessageGroups.groupKey(delivery);
+            if (entry.groupKey != 0) {
+                groupedItems++;
+            }
+        }
+        entry.delivery = delivery;
+        entry.state = QueueEntry.State.LOADED;
+        swappedInItems++;
+        swappedInSize += entry.size;
+        swapInItemCounter++;
+        swapInSizeCounter += entry.size;
+    }
+
+    /**
+     * Replaces a swapped range place holder with the individual swapped entries it stands for.
+     */
+    private void expandRange(QueueEntry range, List<QueueEntryRecord> records) {
+        QueueEntry first = null;
+        long size = 0;
+        for (QueueEntryRecord record : records) {
+            QueueEntry entry = QueueEntry.swapped(this, record);
+            range.linkBefore(entry);
+            scheduleExpiration(entry);
+            size += entry.size;
+            if (first == null) {
+                first = entry;
+            }
+        }
+        QueueEntry replacement = first != null ? first : range.getNext();
+        for (Subscription sub : subscriptions) {
+            if (sub.pos == range) {
+                sub.pos = replacement;
+            }
+        }
+        // the store has the final word on what the range held
+        queueItems += records.size() - range.count;
+        queueSize += size - range.rangeSize;
+        cancelExpiration(range);
+        unlink(range);
+        updateQuotaFull();
+    }
+
+    /**
+     * Loads the entries the subscriptions will need next, swaps out the entries that
+     * push the queue past its memory budget and collapses runs of swapped entries
+     * into swapped ranges.
+     */
+    void swapCheck() {
+        if (!isSwapEnabled()) {
+            return;
+        }
+
+        // the first tail_buffer worth of entries ahead of each subscription should be kept loaded
+        HashSet<QueueEntry> prefetch = new HashSet<QueueEntry>();
+        HashSet<QueueEntry> cursors = new HashSet<QueueEntry>();
+        for (Subscription sub : subscriptions) {
+            if (sub.pos != null) {
+                cursors.add(sub.pos);
+            }
+            long remaining = tailBuffer;
+            for (QueueEntry entry = sub.pos; entry != null && remaining > 0; entry = entry.getNext()) {
+                if (!entry.isAcquired()) {
+                    prefetch.add(entry);
+                    remaining -= entry.getMemorySize();
+                    swapIn(entry);
+                    // it now counts against the subscription's share of the memory budget
+                    // rather than the producers', or a stalled consumer would block them
+                    releaseTailCredit(entry);
+                }
+            }
+        }
+
+        // swap out the newest entries first, they are the last ones the subscriptions will get to
+        long max = getSwappedInSizeMax();
+        for (QueueEntry entry = entries.getTail(); entry != null && swappedInSize > max; entry = entry.getPrevious()) {
+            if (entry.isLoaded() && !entry.swappingOut && !prefetch.contains(entry)) {
+                swapOut(entry);
+            }
+        }
+
+        QueueEntry runStart = null;
+        int runCount = 0;
+        int runNodes = 0;
+        QueueEntry entry = entries.getHead();
+        while (entry != null) {
+            QueueEntry next = entry.getNext();
+            boolean collapsible = !entry.swappingIn && !entry.isAcquired() && !cursors.contains(entry)
+                    && !prefetch.contains(entry) && (entry.isSwapped() || entry.isSwappedRange())
+                    && entry.lastValue == null;
+            // ranges never run across priority levels, they get swapped in level by level
+            if (collapsible && runStart != null && (runCount + entry.count > swapRangeSize || entry.rank != runStart.rank)) {
+                collapse(runStart, entry, runNodes);
+                runStart = null;
+            }
+            if (collapsible) {
+                if (runStart == null) {
+                    runStart = entry;
+                    runCount = 0;
+                    runNodes = 0;
+                }
+                runCount += entry.count;
+                runNodes++;
+            } else if (runStart != null) {
+                collapse(runStart, entry, runNodes);
+                runStart = null;
+            }
+            entry = next;
+        }
+        if (runStart != null) {
+            collapse(runStart, null, runNodes);
+        }
+    }
+
+    /**
+     * Replaces the entries from start up to, but not including, end with one swapped range.
+     */
+    private void collapse(QueueEntry start, QueueEntry end, int nodes) {
+        if (nodes < 2) {
+            return;
+        }
+        QueueEntryRange range = new QueueEntryRange();
+        range.firstEntrySeq = start.seq;
+        QueueEntry entry = start;
+        while (entry != end) {
+            QueueEntry next = entry.getNext();
+            range.lastEntrySeq = entry.lastSeq;
+            range.count += entry.count;
+            range.size += entry.getMemorySize();
+            if (entry.expiration != 0 && (range.expiration == 0 || entry.expiration < range.expiration)) {
+                range.expiration = entry.expiration;
+            }
+            long maxExpiration = entry.isSwappedRange() ? entry.maxExpiration : entry.expiration;
+            if (entry == start) {
+                range.maxExpiration = maxExpiration;
+            } else if (range.maxExpiration != 0) {
+                range.maxExpiration = maxExpiration == 0 ? 0 : Math.max(range.maxExpiration, maxExpiration);
+            }
+            // the range is scheduled by its earliest expiration instead
+            cancelExpiration(entry);
+            if (entry.groupKey != 0) {
+                // the group is looked up again when the range gets loaded
+                groupedItems--;
+            }
+            if (entry != start) {
+                unlink(entry);
+            }
+            entry = next;
+        }
+        QueueEntry replacement = QueueEntry.swappedRange(this, range);
+        start.linkBefore(replacement);
+        unlink(start);
+        scheduleExpiration(replacement);
+    }
+
+    /////////////////////////////////////////////////////////////////////
+    // Status
+    /////////////////////////////////////////////////////////////////////
+
+    /**
+     * Must be called from the queue's dispatch queue.
+     */
+    public DestMetricsDTO getQueueMetrics() {
+        DestMetricsDTO rc = new DestMetricsDTO();
+        rc.current_time = now();
+        rc.enqueue_item_counter = enqueueItemCounter;
+        rc.enqueue_size_counter = enqueueSizeCounter;
+        rc.enqueue_ts = enqueueTs;
+        rc.dequeue_item_counter = dequeueItemCounter;
+        rc.dequeue_size_counter = dequeueSizeCounter;
+        rc.dequeue_ts = dequeueTs;
+        rc.expired_item_counter = expiredItemCounter;
+        rc.expired_size_counter = expiredSizeCounter;
+        rc.expired_ts = expiredTs;
+        rc.nack_item_counter = nackItemCounter;
+        rc.nack_size_counter = nackSizeCounter;
+        rc.nack_ts = nackTs;
+        rc.drop_head_item_counter = dropHeadItemCounter;
+        rc.drop_head_size_counter = dropHeadSizeCounter;
+        rc.drop_tail_item_counter = dropTailItemCounter;
+        rc.drop_tail_size_counter = dropTailSizeCounter;
+        rc.conflated_item_counter = conflatedItemCounter;
+        rc.conflated_size_counter = conflatedSizeCounter;
+        rc.duplicate_item_counter = duplicateItemCounter;
+        rc.duplicate_size_counter = duplicateSizeCounter;
+        rc.producer_counter = producerCounter;
+        rc.consumer_counter = consumerCounter;
+        rc.producer_count = producers.size();
+        rc.consumer_count = subscriptions.size();
+        rc.queue_size = queueSize;
+        rc.queue_items = queueItems;
+        rc.swapped_in_size_max = getSwappedInSizeMax();
+        rc.swapped_in_size = swappedInSize;
+        rc.swapped_in_items = swappedInItems;
+        rc.swapping_in_size = swappingInSize;
+        rc.swapping_out_size = swappingOutSize;
+        rc.swap_out_item_counter = swapOutItemCounter;
+        rc.swap_out_size_counter = swapOutSizeCounter;
+        rc.swap_in_item_counter = swapInItemCounter;
+        rc.swap_in_size_counter = swapInSizeCounter;
+        return rc;
+    }
+
+    /**
+     * Must be called from the queue's dispatch queue.
+     *
+     * @param includeEntries if the state of every entry should be reported.
+     */
+    public QueueStatusDTO getStatus(boolean includeEntries) {
+        QueueStatusDTO rc = new QueueStatusDTO();
+        rc.id = id;
+        rc.state = serviceState.toString();
+        rc.config = config;
+        rc.binding = address;
+        rc.metrics = getQueueMetrics();
+        rc.flow_mode = catchingUp ? "catchup" : "normal";
+        long limit = enqueueRateLimit;
+        if (limit >= 0) {
+            rc.max_enqueue_rate = (int) Math.min(limit, Integer.MAX_VALUE);
+        }
+        if (includeEntries) {
+            for (QueueEntry entry = entries.getHead(); entry != null; entry = entry.getNext()) {
+                rc.entries.add(entry.getStatus());
+            }
+            for (Subscription sub : subscriptions) {
+                if (sub.pos != null) {
+                    // entries can't tell how many cursors point at them, fill it in here
+                    for (int i = 0; i < rc.entries.size(); i++) {
+                        if (rc.entries.get(i).seq == sub.pos.seq) {
+                            rc.entries.get(i).consumer_count++;
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        for (ProducerSession session : producers) {
+            rc.producers.add(session.getStatus());
+        }
+        for (Subscription sub : subscriptions) {
+            rc.consumers.add(sub.getStatus());
+        }
+        return rc;
+    }
+
+    /**
+     * The browse cursors on the entry move to a neighbour before it is unlinked, a
+     * browse looks around the cursor for the seq it picks up at.
+     */
+    private void moveBrowseCursors(QueueEntry entry) {
+        QueueEntry neighbour = entry.getNext() != null ? entry.getNext() : entry.getPrevious();
+        Iterator<Map.Entry<Long, QueueEntry>> cursors = browseCursors.entrySet().iterator();
+        while (cursors.hasNext()) {
+            Map.Entry<Long, QueueEntry> cursor = cursors.next();
+            if (cursor.getValue() == entry) {
+                if (neighbour == null) {
+                    cursors.remove();
+                } else {
+                    cursor.setValue(neighbour);
+                }
+            }
+        }
+    }
+
+    /**
+     * Browses a page of up to <code>max</code> messages, starting at the first entry
+     * whose sequence is at or after <code>firstSeq</code>.  The page is built from the
+     * loaded entries and, for the swapped ones, from messages read out of the store just
+     * for the page.  Nothing is swapped into the queue, so browsing a large backlog does
+     * not push the entries the consumers are about to get out of memory.
+     *
+     * @param maxBodySize bodies longer than this are truncated
+     * @param callback called from the queue's dispatch queue once the page is complete
+     */
+    public void browse(final long firstSeq, final int max, final int maxBodySize, final Procedure1<BrowsePageDTO> callback) {
+        if (firstSeq < 0 || max <= 0 || maxBodySize < 0) {
+            throw new IllegalArgumentException("Invalid browse page, first seq: " + firstSeq + ", max: " + max + ", max body size: " + maxBodySize);
+        }
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                new Browse(firstSeq, max, maxBodySize, callback).walk();
+            }
+        });
+    }
+
+    /**
+     * The state of a browse in progress.  Swapped ranges are listed from the store, only
+     * as far as the page needs, and the walk picks up again from a browse cursor since
+     * the queue may have changed while the store was being read.
+     */
+    private class Browse {
+        private final int max;
+        private final int maxBodySize;
+        private final Procedure1<BrowsePageDTO> callback;
+        private final BrowsePageDTO page = new BrowsePageDTO();
+        private long nextSeq;
+        private int pendingLoads;
+        private boolean walked;
+
+        Browse(long firstSeq, int max, int maxBodySize, Procedure1<BrowsePageDTO> callback) {
+            this.nextSeq = firstSeq;
+            this.max = max;
+            this.maxBodySize = maxBodySize;
+            this.callback = callback;
+        }
+
+        /**
+         * @return the first entry at or after the next seq, or null if there is none.
+         */
+        private QueueEntry seek() {
+            QueueEntry entry = browseCursors.get(nextSeq);
+            if (entry == null || !entry.isLinked()) {
+                entry = entries.getHead();
+            } else {
+                // the cursor may have moved past the seq while entries were collapsed into ranges
+                while (entry.getPrevious() != null && entry.getPrevious().lastSeq >= nextSeq) {
+                    entry = entry.getPrevious();
+                }
+            }
+            while (entry != null && entry.lastSeq < nextSeq) {
+                entry = entry.getNext();
+            }
+            return entry;
+        }
+
+        void walk() {
+            QueueEntry entry = seek();
+            while (entry != null && page.messages.size() < max) {
+                if (entry.isSwappedRange()) {
+                    listRange(entry);
+                    return;
+                }
+                if (entry.isLoaded()) {
+                    MessageStatusDTO message = add(entry.getStatus(), entry.expiration, entry.delivery.isPersistent());
+                    body(message, entry.delivery.createMessageRecord());
+                } else {
+                    load(add(entry.getStatus(), entry.expiration, true), entry.messageKey);
+                }
+                nextSeq = entry.seq + 1;
+                entry = entry.getNext();
+            }
+            if (entry != null) {
+                // the next page most likely picks up here
+                browseCursors.put(nextSeq, entry);
+            }
+            walked = true;
+            checkComplete();
+        }
+
+        private void listRange(QueueEntry range) {
+            Store store = getStore();
+            if (store == null) {
+                nextSeq = range.lastSeq + 1;
+                walk();
+                return;
+            }
+            // holds the place while the store is read
+            browseCursors.put(nextSeq, range);
+            final long rangeLastSeq = range.lastSeq;
+            final int limit = max - page.messages.size();
+            store.listQueueEntries(storeId, Math.max(nextSeq, range.seq), rangeLastSeq, limit, new Procedure1<List<QueueEntryRecord>>() {
+                @Override
+                public void execute(final List<QueueEntryRecord> records) {
+                    dispatchQueue.execute(new Task() {
+                        @Override
+                        public void run() {
+                            long resumeSeq = nextSeq;
+                            for (QueueEntryRecord record : records) {
+                                EntryStatusDTO status = new EntryStatusDTO();
+                                status.seq = record.entrySeq;
+                                status.count = 1;
+                                status.size = record.size;
+                                status.state = QueueEntry.State.SWAPPED.name().toLowerCase();
+                                load(add(status, record.expiration, true), record.messageKey);
+                            }
+                            QueueEntry cursor = browseCursors.remove(resumeSeq);
+                            if (records.size() < limit) {
+                                nextSeq = rangeLastSeq + 1;
+                            } else {
+                                nextSeq = records.get(records.size() - 1).entrySeq + 1;
+                            }
+                            if (cursor != null) {
+                                browseCursors.put(nextSeq, cursor);
+                            }
+                            walk();
+                        }
+                    });
+                }
+            });
+        }
+
+        private MessageStatusDTO add(EntryStatusDTO status, long expiration, boolean persistent) {
+            MessageStatusDTO message = new MessageStatusDTO();
+            message.entry = status;
+            message.expiration = expiration;
+            message.persistent = persistent;
+            if (page.messages.isEmpty()) {
+                page.first_seq = status.seq;
+            }
+            page.last_seq = status.seq;
+            page.messages.add(message);
+            return message;
+        }
+
+        private void load(final MessageStatusDTO message, long messageKey) {
+            Store store = getStore();
+            if (store == null) {
+                return;
+            }
+            pendingLoads++;
+            store.loadMessage(messageKey, new Procedure1<MessageRecord>() {
+                @Override
+                public void execute(final MessageRecord record) {
+                    dispatchQueue.execute(new Task() {
+                        @Override
+                        public void run() {
+                            // a null record means the message got dequeued since, it's still
+                            // reported but without a body
+                            if (record != null) {
+                                body(message, record);
+                            }
+                            pendingLoads--;
+                            checkComplete();
+                        }
+                    });
+                }
+            });
+        }
+
+        private void body(MessageStatusDTO message, MessageRecord record) {
+            message.codec = record.codec;
+            Buffer body = record.buffer;
+            if (body == null) {
+                return;
+            }
+            if (body.length() > maxBodySize) {
+                body = body.slice(0, maxBodySize);
+                message.body_truncated = true;
+            }
+            message.base64_body = DatatypeConverter.printBase64Binary(body.toByteArray());
+        }
+
+        private void checkComplete() {
+            if (walked && pendingLoads == 0) {
+                walked = false;
+                page.total_messages = queueItems;
+                callback.execute(page);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "queue: " + id;
+    }
+
+    /**
+     * The session producers use to send to the queue.  Deliveries are handed over to
+     * the queue's dispatch queue.  The session reports itself full while the producers
+     * have more than <code>tail_buffer</code> bytes at the tail of the queue which have
+     * not been delivered or swapped out yet.
+     */
+    class ProducerSession implements DeliverySession {
+
+        final DeliveryProducer producer;
+        private volatile Task refiller = Dispatch.NOOP;
+        private final AtomicBoolean blocked = new AtomicBoolean();
+        // bytes the producer may still send while the enqueue rate is limited
+        private final AtomicLong enqueueCredit = new AtomicLong();
+        private long enqueueItemCounter;
+        private long enqueueSizeCounter;
+        private long enqueueTs;
+
+        ProducerSession(DeliveryProducer producer) {
+            this.producer = producer;
+        }
+
+        @Override
+        public DeliveryProducer getProducer() {
+            return producer;
+        }
+
+        @Override
+        public DeliveryConsumer getConsumer() {
+            return Queue.this;
+        }
+
+        /**
+         * @return true if the producer has to wait before it can send more.  May be
+         * called from the producer's thread.
+         */
+        boolean isIngressBlocked() {
+            if (isTailBufferFull() || isWaitingForCredit() || quotaFull) {
+                return true;
+            }
+            // the mirror topic can't take more either, so hold the producers back for it
+            DeliverySession mirror = Queue.this.mirror;
+            return mirror != null && mirror.full();
+        }
+
+        boolean isWaitingForCredit() {
+            return enqueueRateLimit >= 0 && enqueueCredit.get() <= 0;
+        }
+
+        /**
+         * Adds credit without letting the bucket grow past max.
+         *
+         * @return the part of the credit which did not fit in the bucket
+         */
+        long addEnqueueCredit(long credit, long max) {
+            while (true) {
+                long current = enqueueCredit.get();
+                long next = Math.min(current + credit, max);
+                if (enqueueCredit.compareAndSet(current, next)) {
+                    return current + credit - next;
+                }
+            }
+        }
+
+        /**
+         * May be called from the producer's thread.
+         */
+        @Override
+        public boolean full() {
+            if (!isIngressBlocked()) {
+                return false;
+            }
+            blocked.set(true);
+            // the queue may have freed up room before it could see the blocked flag
+            if (!isIngressBlocked() && blocked.compareAndSet(true, false)) {
+                return false;
+            }
+            return true;
+        }
+
+        void refill() {
+            if (blocked.compareAndSet(true, false)) {
+                DispatchQueue queue = producer.getDispatchQueue();
+                if (queue != null) {
+                    queue.execute(refiller);
+                } else {
+                    refiller.run();
+                }
+            }
+        }
+
+        @Override
+        public boolean offer(final Delivery delivery) {
+            tailBufferedSize.addAndGet(delivery.getSize());
+            if (enqueueRateLimit >= 0) {
+                enqueueCredit.addAndGet(-delivery.getSize());
+            }
+            final StoreUOW uow = delivery.getUow();
+            if (uow != null) {
+                uow.retain();
+            }
+            dispatchQueue.execute(new Task() {
+                @Override
+                public void run() {
+                    enqueueItemCounter++;
+                    enqueueSizeCounter += delivery.getSize();
+                    enqueueTs = now();
+                    accept(delivery);
+                    if (uow != null) {
+                        uow.release();
+                    }
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public Task refiller() {
+            return refiller;
+        }
+
+        @Override
+        public void setRefiller(Task value) {
+            refiller = value;
+        }
+
+        @Override
+        public void close() {
+            disconnect(producer);
+        }
+
+        LinkDTO getStatus() {
+            LinkDTO rc = new LinkDTO();
+            BrokerConnection connection = producer.getConnection();
+            if (connection != null) {
+                rc.kind = "connection";
+                rc.id = String.valueOf(connection.getId());
+                rc.label = connection.getSessionId();
+            } else {
+                rc.kind = "internal";
+                rc.label = producer.toString();
+            }
+            rc.enqueue_item_counter = enqueueItemCounter;
+            rc.enqueue_size_counter = enqueueSizeCounter;
+            rc.enqueue_ts = enqueueTs;
+            return rc;
+        }
+    }
 }
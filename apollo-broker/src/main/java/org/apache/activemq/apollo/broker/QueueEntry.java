@@ -0,0 +1,207 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.broker.store.QueueEntryRange;
+import org.apache.activemq.apollo.broker.store.QueueEntryRecord;
+import org.apache.activemq.apollo.dto.EntryStatusDTO;
+import org.apache.activemq.apollo.util.TimingWheel;
+import org.apache.activemq.apollo.util.list.LinkedNode;
+
+/**
+ * An entry in the sequence ordered list of a {@link Queue}.  An entry is in one of three
+ * states:
+ * <ul>
+ *     <li>LOADED: the delivery is held in memory</li>
+ *     <li>SWAPPED: only the store keys and the size of the message are held in memory</li>
+ *     <li>SWAPPED_RANGE: a place holder for a run of swapped entries, only the sequence
+ *     range, the number of entries and their total size are held in memory</li>
+ * </ul>
+ *
+ * The top bits of the sequence hold the rank of the priority level the entry belongs
+ * to, 0 being the highest level, so sequence order is the order the entries get
+ * dispatched in and every level is a contiguous run of the queue's list.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+class QueueEntry extends LinkedNode<QueueEntry> {
+
+    enum State {
+        LOADED, SWAPPED, SWAPPED_RANGE
+    }
+
+    static final int RANK_SHIFT = 56;
+    static final long COUNTER_MASK = (1L << RANK_SHIFT) - 1;
+
+    final Queue queue;
+    final long seq;
+    final int rank;
+    State state;
+
+    Delivery delivery;
+    long messageKey = -1;
+    int size;
+    long expiration;
+    int redeliveries;
+
+    // only used by swapped ranges
+    long lastSeq;
+    int count = 1;
+    long rangeSize;
+    // the latest expiration in the range, 0 if one of its entries never expires
+    long maxExpiration;
+
+    // pending in the virtual host's expiration wheel
+    TimingWheel.Timer<QueueEntry> expirationTimer;
+
+    Subscription acquirer;
+
+    // hash of the message group, 0 when the message is not part of a group
+    long groupKey;
+
+    // the value of the last value key header, null when the queue does not conflate
+    // or the message has no such header
+    Object lastValue;
+
+    // a load or a store of the entry is in progress
+    boolean swappingIn;
+    boolean swappingOut;
+
+    // the entry still counts against the tail buffer of the producers
+    boolean tailCredit;
+
+    QueueEntry(Queue queue, long seq) {
+        this.queue = queue;
+        this.seq = seq;
+        this.rank = rank(seq);
+        this.lastSeq = seq;
+    }
+
+    static long seq(int rank, long counter) {
+        return ((long) rank << RANK_SHIFT) | counter;
+    }
+
+    static int rank(long seq) {
+        return (int) (seq >>> RANK_SHIFT);
+    }
+
+    static long counter(long seq) {
+        return seq & COUNTER_MASK;
+    }
+
+    static QueueEntry loaded(Queue queue, Delivery delivery) {
+        QueueEntry entry = new QueueEntry(queue, delivery.getSeq());
+        entry.state = State.LOADED;
+        entry.delivery = delivery;
+        entry.messageKey = delivery.getStoreKey();
+        entry.size = delivery.getSize();
+        entry.expiration = delivery.getExpiration();
+        entry.redeliveries = delivery.getRedeliveries();
+        return entry;
+    }
+
+    static QueueEntry swapped(Queue queue, QueueEntryRecord record) {
+        QueueEntry entry = new QueueEntry(queue, record.entrySeq);
+        entry.state = State.SWAPPED;
+        entry.messageKey = record.messageKey;
+        entry.size = record.size;
+        entry.expiration = record.expiration;
+        entry.redeliveries = record.redeliveries;
+        return entry;
+    }
+
+    static QueueEntry swappedRange(Queue queue, QueueEntryRange range) {
+        QueueEntry entry = new QueueEntry(queue, range.firstEntrySeq);
+        entry.state = State.SWAPPED_RANGE;
+        entry.lastSeq = range.lastEntrySeq;
+        entry.count = range.count;
+        entry.rangeSize = range.size;
+        entry.expiration = range.expiration;
+        entry.maxExpiration = range.maxExpiration;
+        return entry;
+    }
+
+    boolean isLoaded() {
+        return state == State.LOADED;
+    }
+
+    boolean isSwapped() {
+        return state == State.SWAPPED;
+    }
+
+    boolean isSwappedRange() {
+        return state == State.SWAPPED_RANGE;
+    }
+
+    boolean isAcquired() {
+        return acquirer != null;
+    }
+
+    boolean isStored() {
+        return messageKey != -1;
+    }
+
+    /**
+     * @return the number of bytes of message data this entry stands for.
+     */
+    long getMemorySize() {
+        return state == State.SWAPPED_RANGE ? rangeSize : size;
+    }
+
+    boolean isExpired(long now) {
+        return state != State.SWAPPED_RANGE && expiration != 0 && expiration <= now;
+    }
+
+    /**
+     * @return true if this is a swapped range and every entry in it has expired.
+     */
+    boolean isRangeExpired(long now) {
+        return state == State.SWAPPED_RANGE && maxExpiration != 0 && maxExpiration <= now;
+    }
+
+    QueueEntryRecord toQueueEntryRecord() {
+        QueueEntryRecord record = new QueueEntryRecord();
+        record.queueKey = queue.getStoreId();
+        record.entrySeq = seq;
+        record.messageKey = messageKey;
+        record.size = size;
+        record.expiration = expiration;
+        record.redeliveries = redeliveries;
+        return record;
+    }
+
+    EntryStatusDTO getStatus() {
+        EntryStatusDTO rc = new EntryStatusDTO();
+        rc.seq = seq;
+        rc.count = count;
+        rc.size = (int) getMemorySize();
+        rc.state = state.name().toLowerCase();
+        rc.is_prefetched = state == State.LOADED;
+        if (acquirer != null) {
+            rc.acquirer = acquirer.getStatus();
+        }
+        return rc;
+    }
+
+    @Override
+    public String toString() {
+        if (state == State.SWAPPED_RANGE) {
+            return "range{" + seq + "-" + lastSeq + ", count=" + count + "}";
+        }
+        return state.name().toLowerCase() + "{" + seq + "}";
+    }
+}
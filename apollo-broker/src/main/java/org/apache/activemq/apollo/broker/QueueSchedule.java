@@ -0,0 +1,332 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.broker.store.QueueEntryRange;
+import org.apache.activemq.apollo.broker.store.QueueEntryRecord;
+import org.apache.activemq.apollo.broker.store.QueueRecord;
+import org.apache.activemq.apollo.broker.store.Store;
+import org.apache.activemq.apollo.broker.store.StoreUOW;
+import org.apache.activemq.apollo.util.Procedure1;
+import org.apache.activemq.apollo.util.TimingWheel;
+import org.fusesource.hawtbuf.UTF8Buffer;
+import org.fusesource.hawtdispatch.Task;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * The messages a {@link Queue} holds back until they are due.
+ *
+ * Persistent messages are kept in a queue of their own in the store whose entries are
+ * sequenced by due time, so the store is the time index and holding a large number of
+ * future messages does not take any heap: only the earliest due time is tracked.  When
+ * they come due they are moved over to the queue by one unit of work, without being
+ * loaded, and enter it as swapped entries.  Non persistent messages are held in memory,
+ * sequenced the same way.
+ *
+ * Only one timer, for the earliest message, is kept in the virtual host's delay
+ * wheel and everything which is due when it fires is released in one batch.
+ *
+ * All the state is only accessed from the queue's dispatch queue.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+class QueueSchedule {
+
+    // the due time takes the upper bits of a sequence, which is enough up to the year
+    // 2109, a counter the lower ones so messages due at the same time don't collide
+    private static final int COUNTER_BITS = 21;
+    private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+    private static final long MAX_DUE = (1L << (63 - COUNTER_BITS)) - 1;
+    // the granularity of the summary read from the store to find the earliest message
+    private static final int RANGE_LIMIT = 10000;
+
+    private final Queue queue;
+
+    // read by the router when the queue gets removed
+    private volatile long storeId = -1;
+    private boolean storeRequested;
+    // persistent messages waiting for the store to assign the schedule a key
+    private final ArrayList<Delivery> awaitingStore = new ArrayList<Delivery>();
+    private final TreeMap<Long, Delivery> held = new TreeMap<Long, Delivery>();
+    private long counter;
+
+    // the earliest stored sequence which has not been released yet, a lower bound
+    private long storedFirstSeq = Long.MAX_VALUE;
+    // everything up to here was moved over to the queue already
+    private long releasedSeq;
+    // the earliest sequence stored while the store is being read
+    private long addedFirstSeq = Long.MAX_VALUE;
+    private boolean reading;
+
+    private TimingWheel.Timer<Task> timer;
+
+    QueueSchedule(Queue queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * @return when the delivery should be released according to its deliver at and delay
+     * headers, 0 if it should not be held back.
+     */
+    static long dueTime(Delivery delivery, long now) {
+        Message message = delivery.getMessage();
+        long deliverAt = toLong(message.getProperty(Queue.DELIVER_AT_HEADER));
+        long delay = toLong(message.getProperty(Queue.DELAY_HEADER));
+        long due = Math.max(deliverAt, delay > 0 ? now + delay : 0);
+        return due > now ? Math.min(due, MAX_DUE) : 0;
+    }
+
+    private static long toLong(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return Long.parseLong(value.toString().trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private ScheduledWheel<Task> getDelayWheel() {
+        return queue.getRouter().getVirtualHost().getDelayWheel();
+    }
+
+    void hold(Delivery delivery, long due) {
+        Delivery copy = delivery.copy();
+        copy.setSeq((due << COUNTER_BITS) | (counter++ & COUNTER_MASK));
+        copy.setUow(null);
+        if (queue.isStored(copy)) {
+            if (storeId == -1) {
+                // keeps its ack until it got stored
+                awaitingStore.add(copy);
+                requestStore();
+            } else {
+                store(copy);
+            }
+        } else {
+            copy.setAck(null);
+            held.put(copy.getSeq(), copy);
+            DeliveryAck ack = delivery.getAck();
+            if (ack != null) {
+                ack.apply(DeliveryResult.CONSUMED, null);
+            }
+        }
+        arm(due);
+    }
+
+    private void requestStore() {
+        if (storeRequested) {
+            return;
+        }
+        storeRequested = true;
+        QueueRecord record = new QueueRecord(-1, LocalRouter.SCHEDULE_BINDING_KIND, new UTF8Buffer(String.valueOf(queue.getStoreId())));
+        queue.getStore().addQueue(record, new Procedure1<Long>() {
+            @Override
+            public void execute(final Long key) {
+                queue.getDispatchQueue().execute(new Task() {
+                    @Override
+                    public void run() {
+                        storeId = key;
+                        for (Delivery delivery : awaitingStore) {
+                            store(delivery);
+                        }
+                        awaitingStore.clear();
+                    }
+                });
+            }
+        });
+    }
+
+    private void store(Delivery delivery) {
+        StoreUOW uow = queue.getStore().createStoreUOW();
+        long messageKey = delivery.getStoreKey();
+        if (messageKey == -1) {
+            messageKey = uow.store(delivery.createMessageRecord());
+        }
+        QueueEntryRecord record = new QueueEntryRecord();
+        record.queueKey = storeId;
+        record.entrySeq = delivery.getSeq();
+        record.messageKey = messageKey;
+        record.size = delivery.getSize();
+        record.expiration = delivery.getExpiration();
+        record.redeliveries = delivery.getRedeliveries();
+        record.priority = delivery.getPriority();
+        uow.enqueue(record);
+        final DeliveryAck ack = delivery.getAck();
+        if (ack != null) {
+            // persistent messages are only acked once they are safely stored
+            uow.onComplete(new Task() {
+                @Override
+                public void run() {
+                    ack.apply(DeliveryResult.CONSUMED, null);
+                }
+            });
+        }
+        uow.release();
+        storedFirstSeq = Math.min(storedFirstSeq, record.entrySeq);
+        addedFirstSeq = Math.min(addedFirstSeq, record.entrySeq);
+    }
+
+    /**
+     * Picks up the messages a previous broker run left in the store.
+     */
+    void restore(long key) {
+        storeId = key;
+        storeRequested = true;
+        addedFirstSeq = Long.MAX_VALUE;
+        readFirst();
+    }
+
+    void stop() {
+        if (timer != null) {
+            getDelayWheel().cancel(timer);
+            timer = null;
+        }
+    }
+
+    /**
+     * @return true if no message is held.
+     */
+    boolean isEmpty() {
+        return held.isEmpty() && awaitingStore.isEmpty() && storedFirstSeq == Long.MAX_VALUE && !reading;
+    }
+
+    /**
+     * @return the key of the schedule's queue in the store, -1 if it has none.
+     */
+    long getStoreId() {
+        return storeId;
+    }
+
+    private void arm(long due) {
+        if (timer != null) {
+            if (timer.getDeadline() <= due) {
+                return;
+            }
+            getDelayWheel().cancel(timer);
+        }
+        timer = getDelayWheel().schedule(new Release(), due);
+    }
+
+    private void armNext() {
+        long next = Long.MAX_VALUE;
+        if (!held.isEmpty()) {
+            next = held.firstKey();
+        }
+        for (Delivery delivery : awaitingStore) {
+            next = Math.min(next, delivery.getSeq());
+        }
+        if (!reading) {
+            next = Math.min(next, storedFirstSeq);
+        }
+        if (next != Long.MAX_VALUE) {
+            arm(next >>> COUNTER_BITS);
+        }
+    }
+
+    private void release() {
+        long now = queue.now();
+        long dueSeq = ((Math.min(now, MAX_DUE) + 1) << COUNTER_BITS) - 1;
+        while (!held.isEmpty() && held.firstKey() <= dueSeq) {
+            queue.releaseScheduled(held.pollFirstEntry().getValue());
+        }
+        for (Iterator<Delivery> i = awaitingStore.iterator(); i.hasNext(); ) {
+            Delivery delivery = i.next();
+            if (delivery.getSeq() <= dueSeq) {
+                i.remove();
+                queue.releaseScheduled(delivery);
+            }
+        }
+        if (!reading && storedFirstSeq <= dueSeq) {
+            releaseStored(dueSeq);
+        }
+        armNext();
+    }
+
+    private void releaseStored(final long dueSeq) {
+        reading = true;
+        addedFirstSeq = Long.MAX_VALUE;
+        // starting past what was released already, the store may not have caught up
+        // with the units of work which moved it yet
+        queue.getStore().listQueueEntries(storeId, releasedSeq + 1, dueSeq, new Procedure1<List<QueueEntryRecord>>() {
+            @Override
+            public void execute(final List<QueueEntryRecord> records) {
+                queue.getDispatchQueue().execute(new Task() {
+                    @Override
+                    public void run() {
+                        releasedSeq = dueSeq;
+                        queue.moveScheduled(records);
+                        readFirst();
+                    }
+                });
+            }
+        });
+    }
+
+    private void readFirst() {
+        reading = true;
+        queue.getStore().listQueueEntryRanges(storeId, RANGE_LIMIT, new Procedure1<List<QueueEntryRange>>() {
+            @Override
+            public void execute(final List<QueueEntryRange> ranges) {
+                queue.getDispatchQueue().execute(new Task() {
+                    @Override
+                    public void run() {
+                        long first = Long.MAX_VALUE;
+                        for (QueueEntryRange range : ranges) {
+                            if (range.lastEntrySeq > releasedSeq) {
+                                first = Math.max(range.firstEntrySeq, releasedSeq + 1);
+                                break;
+                            }
+                        }
+                        for (QueueEntryRange range : ranges) {
+                            // new messages must not reuse the sequences of the restored ones
+                            counter = Math.max(counter, (range.lastEntrySeq & COUNTER_MASK) + 1);
+                        }
+                        storedFirstSeq = Math.min(first, addedFirstSeq);
+                        reading = false;
+                        armNext();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Fired by the delay wheel, hands the release over to the queue's dispatch queue.
+     */
+    private class Release extends Task {
+        @Override
+        public void run() {
+            queue.getDispatchQueue().execute(new Task() {
+                @Override
+                public void run() {
+                    if (timer != null && timer.getValue() == Release.this) {
+                        timer = null;
+                    }
+                    release();
+                }
+            });
+        }
+    }
+}
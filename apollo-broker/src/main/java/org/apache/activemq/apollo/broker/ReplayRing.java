@@ -0,0 +1,166 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import java.util.ArrayList;
+
+/**
+ * The most recent deliveries published to a {@link Topic}, kept so that they can be
+ * replayed to new subscriptions.  The ring only holds on to the deliveries the topic
+ * shares with its subscriptions, it never copies them.  It is always bound by the total
+ * size of the deliveries it holds and optionally also by their number and their age.
+ * The deliveries which got too old are dropped when new ones are added, when the ring
+ * is replayed and on every {@link #evict(long)} of the topic's maintenance.
+ *
+ * All the state is only accessed from the topic's dispatch queue.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+class ReplayRing {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // 0 when unlimited
+    private final int maxMessages;
+    private final long maxAge;
+    private final long maxSize;
+
+    private Delivery[] deliveries;
+    private long[] times;
+    private int head;
+    private int size;
+    private long totalSize;
+
+    ReplayRing(int maxMessages, long maxAge, long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("The replay ring has to be bound by a max size");
+        }
+        this.maxMessages = maxMessages;
+        this.maxAge = maxAge;
+        this.maxSize = maxSize;
+        int capacity = maxMessages > 0 ? Math.min(maxMessages, INITIAL_CAPACITY) : INITIAL_CAPACITY;
+        deliveries = new Delivery[capacity];
+        times = new long[capacity];
+    }
+
+    int getMaxMessages() {
+        return maxMessages;
+    }
+
+    long getMaxAge() {
+        return maxAge;
+    }
+
+    long getMaxSize() {
+        return maxSize;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the total size of the deliveries held.
+     */
+    long totalSize() {
+        return totalSize;
+    }
+
+    void add(Delivery delivery, long now) {
+        evict(now);
+        if (maxMessages > 0 && size == maxMessages) {
+            removeOldest();
+        }
+        // a delivery bigger than the whole ring still replaces everything else so the
+        // most recent one is always kept
+        while (size > 0 && totalSize + delivery.getSize() > maxSize) {
+            removeOldest();
+        }
+        if (size == deliveries.length) {
+            grow();
+        }
+        int pos = (head + size) % deliveries.length;
+        deliveries[pos] = delivery;
+        times[pos] = now;
+        size++;
+        totalSize += delivery.getSize();
+    }
+
+    /**
+     * Drops the deliveries which are older than the max age.
+     */
+    void evict(long now) {
+        if (maxAge <= 0) {
+            return;
+        }
+        while (size > 0 && times[head] + maxAge <= now) {
+            removeOldest();
+        }
+    }
+
+    /**
+     * @return the deliveries still held, oldest first.
+     */
+    ArrayList<Delivery> snapshot(long now) {
+        evict(now);
+        ArrayList<Delivery> rc = new ArrayList<Delivery>(size);
+        for (int i = 0; i < size; i++) {
+            rc.add(deliveries[(head + i) % deliveries.length]);
+        }
+        return rc;
+    }
+
+    /**
+     * Takes over the deliveries of a ring which had other limits.
+     */
+    void addAll(ReplayRing other) {
+        for (int i = 0; i < other.size; i++) {
+            int pos = (other.head + i) % other.deliveries.length;
+            add(other.deliveries[pos], other.times[pos]);
+        }
+    }
+
+    void clear() {
+        while (size > 0) {
+            removeOldest();
+        }
+    }
+
+    private void removeOldest() {
+        totalSize -= deliveries[head].getSize();
+        deliveries[head] = null;
+        head = (head + 1) % deliveries.length;
+        size--;
+    }
+
+    private void grow() {
+        int capacity = deliveries.length * 2;
+        if (maxMessages > 0) {
+            capacity = Math.min(capacity, maxMessages);
+        }
+        Delivery[] newDeliveries = new Delivery[capacity];
+        long[] newTimes = new long[capacity];
+        for (int i = 0; i < size; i++) {
+            int pos = (head + i) % deliveries.length;
+            newDeliveries[i] = deliveries[pos];
+            newTimes[i] = times[pos];
+        }
+        deliveries = newDeliveries;
+        times = newTimes;
+        head = 0;
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import java.util.List;
+
+/**
+ * Spreads the entries over all the subscriptions.  When <code>roundRobin</code> is
+ * enabled every subscription gets one entry per pass, otherwise each subscription
+ * is filled up before moving on to the next one.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class RoundRobinDispatchStrategy implements DispatchStrategy {
+
+    private final boolean roundRobin;
+
+    // where the next pass starts so entries trickling in one at a time still rotate
+    private int next;
+
+    public RoundRobinDispatchStrategy(boolean roundRobin) {
+        this.roundRobin = roundRobin;
+    }
+
+    @Override
+    public void dispatch(List<Subscription> subscriptions) {
+        int size = subscriptions.size();
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            // next moves on as entries go out, the pass itself keeps its starting point
+            int start = next;
+            for (int i = 0; i < size; i++) {
+                int index = (start + i) % size;
+                Subscription sub = subscriptions.get(index);
+                boolean dispatched = false;
+                if (roundRobin) {
+                    dispatched = sub.dispatch();
+                } else {
+                    while (sub.dispatch()) {
+                        dispatched = true;
+                    }
+                }
+                if (dispatched) {
+                    progress = true;
+                    if (roundRobin) {
+                        next = (index + 1) % size;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return roundRobin ? DefaultDispatchStrategyFactory.ROUND_ROBIN : "fill";
+    }
+}
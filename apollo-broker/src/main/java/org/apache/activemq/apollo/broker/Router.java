@@ -16,10 +16,11 @@
  */
 package org.apache.activemq.apollo.broker;
 
+import org.apache.activemq.apollo.dto.DestinationDTO;
 import org.apache.activemq.apollo.util.Service;
 import org.fusesource.hawtdispatch.Task;
 
-import java.util.Set;
+import java.util.Collection;
 
 /**
  * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
@@ -30,7 +31,33 @@ public interface Router extends Service{
 
     public Queue getQueue(long dto);
 
-    public void removeTempDestinations(Set<String> activeConnections);
+    /**
+     * Removes the temp destinations which were created by the session of a connection
+     * which is going away.
+     */
+    public void removeTempDestinations(String owner);
 
     void applyUpdate(Task onComplete);
+
+    /**
+     * Called on every broker maintenance tick.
+     */
+    public void maintenance();
+
+    /**
+     * Binds a consumer to all the destinations matching the address.  Wildcard addresses
+     * stay bound so destinations created later on are also bound to the consumer.
+     */
+    public void bind(DestinationDTO address, DeliveryConsumer consumer);
+
+    public void unbind(DestinationDTO address, DeliveryConsumer consumer);
+
+    /**
+     * Connects a producer to the destinations matching the address.
+     *
+     * @return the sessions to the destinations the producer is now connected to
+     */
+    public Collection<DeliverySession> connect(DestinationDTO address, DeliveryProducer producer);
+
+    public void disconnect(DestinationDTO address, DeliveryProducer producer);
 }
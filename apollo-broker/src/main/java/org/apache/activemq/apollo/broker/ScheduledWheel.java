@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.util.Procedure1;
+import org.apache.activemq.apollo.util.TimingWheel;
+import org.fusesource.hawtdispatch.Task;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A timing wheel the destinations of a virtual host share to schedule their timers:
+ * message expiration, delayed delivery and the idle checks of <code>auto_delete_after</code>.
+ * Timers are scheduled and cancelled from the destination threads while the wheel is
+ * advanced from the broker maintenance tick, so access to the wheel is synchronized.
+ * The timers which came due are handed to the wheel's handler in one batch, outside of
+ * the lock.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+class ScheduledWheel<T> {
+
+    private static final int SLOT_BITS = 6;
+
+    private final String name;
+    private final TimingWheel<T> wheel;
+    private final Procedure1<List<TimingWheel.Timer<T>>> handler;
+
+    /**
+     * @param name    shows up in the toString of the wheel
+     * @param tick    the resolution of the wheel in milliseconds
+     * @param levels  the number of levels of 64 slots, the wheel spans 2^(6*levels) ticks
+     * @param now     the broker time the wheel starts at
+     * @param handler gets the timers which came due, called from the thread advancing
+     *                the wheel
+     */
+    ScheduledWheel(String name, long tick, int levels, long now, Procedure1<List<TimingWheel.Timer<T>>> handler) {
+        this.name = name;
+        this.wheel = new TimingWheel<T>(tick, SLOT_BITS, levels, now);
+        this.handler = handler;
+    }
+
+    /**
+     * @return a wheel of tasks which get run from the maintenance tick once they are
+     * due, they have to hand themselves over to the dispatch queue of their destination.
+     */
+    static ScheduledWheel<Task> tasks(String name, long tick, int levels, long now) {
+        return new ScheduledWheel<Task>(name, tick, levels, now, new Procedure1<List<TimingWheel.Timer<Task>>>() {
+            @Override
+            public void execute(List<TimingWheel.Timer<Task>> due) {
+                for (TimingWheel.Timer<Task> timer : due) {
+                    timer.getValue().run();
+                }
+            }
+        });
+    }
+
+    synchronized TimingWheel.Timer<T> schedule(T value, long deadline) {
+        return wheel.schedule(value, deadline);
+    }
+
+    synchronized void cancel(TimingWheel.Timer<T> timer) {
+        wheel.cancel(timer);
+    }
+
+    synchronized int size() {
+        return wheel.size();
+    }
+
+    void advance(long now) {
+        final ArrayList<TimingWheel.Timer<T>> due = new ArrayList<TimingWheel.Timer<T>>();
+        synchronized (this) {
+            wheel.advance(now, new Procedure1<TimingWheel.Timer<T>>() {
+                @Override
+                public void execute(TimingWheel.Timer<T> timer) {
+                    due.add(timer);
+                }
+            });
+        }
+        if (!due.isEmpty()) {
+            handler.execute(due);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + wheel;
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.QueueConsumerLinkDTO;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.hawtdispatch.Task;
+
+import java.util.HashSet;
+
+/**
+ * Tracks the position of a consumer in a {@link Queue} and the entries it has acquired.
+ * All the state is only accessed from the queue's dispatch queue.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class Subscription implements DeliveryProducer {
+
+    final Queue queue;
+    final DeliveryConsumer consumer;
+    final long id;
+    DeliverySession session;
+
+    // the next entry the subscription will look at, null once it has caught up with the tail
+    QueueEntry pos;
+
+    // the queue's entries the consumer has not acked yet
+    final HashSet<QueueEntry> acquired = new HashSet<QueueEntry>();
+    int acquiredCount;
+    long acquiredSize;
+    long totalAckCount;
+    long totalNackCount;
+    long enqueueItemCounter;
+    long enqueueSizeCounter;
+    long enqueueTs;
+
+    // the running score the weighted dispatch strategy keeps for the subscription
+    long weightedScore;
+
+    Subscription(Queue queue, DeliveryConsumer consumer, long id) {
+        this.queue = queue;
+        this.consumer = consumer;
+        this.id = id;
+    }
+
+    void open() {
+        session = consumer.connect(this);
+        session.setRefiller(new Task() {
+            @Override
+            public void run() {
+                queue.triggerDispatch();
+            }
+        });
+    }
+
+    void close() {
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+    }
+
+    public DeliveryConsumer getConsumer() {
+        return consumer;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public boolean isFull() {
+        return session == null || session.full();
+    }
+
+    /**
+     * Hands the next entry the subscription can take over to its consumer.
+     *
+     * @return true if an entry was dispatched
+     */
+    public boolean dispatch() {
+        return queue.dispatchOne(this);
+    }
+
+    void offer(Delivery delivery) {
+        enqueueItemCounter++;
+        enqueueSizeCounter += delivery.getSize();
+        enqueueTs = queue.now();
+        session.offer(delivery);
+    }
+
+    @Override
+    public DispatchQueue getDispatchQueue() {
+        return queue.getDispatchQueue();
+    }
+
+    @Override
+    public BrokerConnection getConnection() {
+        return null;
+    }
+
+    QueueConsumerLinkDTO getStatus() {
+        QueueConsumerLinkDTO rc = new QueueConsumerLinkDTO();
+        BrokerConnection connection = consumer.getConnection();
+        if (connection != null) {
+            rc.kind = "connection";
+            rc.id = String.valueOf(connection.getId());
+            rc.label = connection.getSessionId();
+        } else {
+            rc.kind = "internal";
+            rc.label = consumer.toString();
+        }
+        rc.position = pos == null ? null : pos.seq;
+        rc.acquired_count = acquiredCount;
+        rc.acquired_size = acquiredSize;
+        rc.total_ack_count = totalAckCount;
+        rc.total_nack_count = totalNackCount;
+        rc.enqueue_item_counter = enqueueItemCounter;
+        rc.enqueue_size_counter = enqueueSizeCounter;
+        rc.enqueue_ts = enqueueTs;
+        if (isFull()) {
+            rc.waiting_on = "consumer";
+        } else if (pos == null) {
+            rc.waiting_on = "producer";
+        } else if (!pos.isLoaded()) {
+            rc.waiting_on = "load";
+        } else {
+            rc.waiting_on = "dispatch";
+        }
+        return rc;
+    }
+
+    @Override
+    public String toString() {
+        return "subscription: " + consumer;
+    }
+}
@@ -0,0 +1,742 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.broker.store.StoreUOW;
+import org.apache.activemq.apollo.dto.DestMetricsDTO;
+import org.apache.activemq.apollo.dto.DestinationDTO;
+import org.apache.activemq.apollo.dto.LinkDTO;
+import org.apache.activemq.apollo.dto.QueueDTO;
+import org.apache.activemq.apollo.dto.ReplayDTO;
+import org.apache.activemq.apollo.dto.TopicDTO;
+import org.apache.activemq.apollo.dto.TopicStatusDTO;
+import org.apache.activemq.apollo.util.BaseService;
+import org.apache.activemq.apollo.util.MemoryPropertyEditor;
+import org.apache.activemq.apollo.util.TimingWheel;
+import org.apache.activemq.apollo.util.list.LinkedNodeList;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.hawtdispatch.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A publish/subscribe destination.  A published message is stored once, in a
+ * {@link TopicEntry} which every subscription present at publish time references,
+ * and each {@link TopicSubscription} only tracks a cursor into the list of retained
+ * entries.  Subscribers all get handed the same delivery, so fanning a message out
+ * does not copy it no matter how many subscribers there are.  An entry is dropped
+ * as soon as the last subscription's cursor has gone past it.
+ *
+ * A subscription which falls more than a tail buffer behind is handled according to
+ * the <code>slow_consumer_policy</code>: under <code>block</code> the producers are
+ * held back while the retained entries add up to more than a tail buffer, under
+ * <code>queue</code> the subscription gets its messages through a private queue
+ * which can swap to the store and under <code>drop-oldest</code> the subscription
+ * keeps a window of at most a tail buffer of the newest messages.
+ *
+ * A topic configured with a <code>replay</code> element also keeps the most recent
+ * messages in a {@link ReplayRing} so subscriptions which ask for it get them before
+ * the live messages.  The ring holds the same deliveries the subscriptions share and
+ * does not count against the tail buffer, so it never holds back the producers.
+ *
+ * All the state of the topic is only accessed from the topic's dispatch queue.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class Topic extends BaseService implements DomainDestination, DeliveryConsumer {
+
+    private Logger LOG = LoggerFactory.getLogger(getClass().getName());
+
+    public static final long DEFAULT_TAIL_BUFFER = Queue.DEFAULT_TAIL_BUFFER;
+
+    public static final String BLOCK_POLICY = "block";
+    public static final String QUEUE_POLICY = "queue";
+    public static final String DROP_OLDEST_POLICY = "drop-oldest";
+    public static final int DEFAULT_AUTO_DELETE_AFTER = Queue.DEFAULT_AUTO_DELETE_AFTER;
+    public static final long DEFAULT_REPLAY_MAX_SIZE = 1024 * 1024 * 10;
+
+    private final LocalRouter router;
+    private final DestinationDTO address;
+    private final String id;
+    private TopicDTO config;
+
+    private long tailBuffer = DEFAULT_TAIL_BUFFER;
+    private String slowConsumerPolicy;
+    // producers are held back once the topic retains this many bytes
+    private volatile long retainedMax = DEFAULT_TAIL_BUFFER;
+    private int autoDeleteAfter;
+    // null unless the topic is configured to keep messages for replay
+    private ReplayRing replayRing;
+
+    // scheduled while the topic has neither subscribers nor producers
+    private TimingWheel.Timer<Task> idleTimer;
+    private final Task idleCheck = new Task() {
+        @Override
+        public void run() {
+            dispatchQueue.execute(new Task() {
+                @Override
+                public void run() {
+                    idleTimeout();
+                }
+            });
+        }
+    };
+
+    private final LinkedNodeList<TopicEntry> entries = new LinkedNodeList<TopicEntry>();
+    private long nextSeq = 1;
+
+    private final ArrayList<TopicSubscription> subscriptions = new ArrayList<TopicSubscription>();
+    private final HashMap<DeliveryConsumer, TopicSubscription> subscriptionsByConsumer = new HashMap<DeliveryConsumer, TopicSubscription>();
+    private final ArrayList<ProducerSession> producers = new ArrayList<ProducerSession>();
+
+    // bytes sent by the producers which are still retained for a subscription, updated
+    // from the producer threads so it has to be atomic.
+    private final AtomicLong retainedSize = new AtomicLong();
+    private long retainedItems;
+
+    private long enqueueItemCounter;
+    private long enqueueSizeCounter;
+    private long enqueueTs;
+    private long dequeueItemCounter;
+    private long dequeueSizeCounter;
+    private long dequeueTs;
+    private long expiredItemCounter;
+    private long expiredSizeCounter;
+    private long expiredTs;
+    private long dropHeadItemCounter;
+    private long dropHeadSizeCounter;
+    private long producerCounter;
+    private long consumerCounter;
+
+    public Topic(LocalRouter router, DestinationDTO address, TopicDTO config) {
+        super(Dispatch.createQueue("topic: " + address.name));
+        this.router = router;
+        this.address = address;
+        this.id = address.name;
+        this.config = config;
+        applySettings();
+    }
+
+    private void applySettings() {
+        String policy = config.slow_consumer_policy == null ? BLOCK_POLICY : config.slow_consumer_policy;
+        if (!BLOCK_POLICY.equals(policy) && !QUEUE_POLICY.equals(policy) && !DROP_OLDEST_POLICY.equals(policy)) {
+            LOG.warn("Unknown slow consumer policy '{}' on topic {}, using block", policy, id);
+            policy = BLOCK_POLICY;
+        }
+        slowConsumerPolicy = policy;
+        // the other policies keep every subscription within a tail buffer, the headroom
+        // keeps the producers going while they do
+        retainedMax = BLOCK_POLICY.equals(policy) ? tailBuffer : 2 * tailBuffer;
+        if (config.auto_delete_after != null) {
+            autoDeleteAfter = config.auto_delete_after;
+        } else {
+            // topics which are configured by their own id are meant to stay around
+            autoDeleteAfter = id.equals(config.id) ? 0 : DEFAULT_AUTO_DELETE_AFTER;
+        }
+        applyReplaySettings();
+    }
+
+    private void applyReplaySettings() {
+        ReplayDTO replay = null;
+        for (Object other : config.other) {
+            if (other instanceof ReplayDTO) {
+                replay = (ReplayDTO) other;
+            }
+        }
+        if (replay == null) {
+            replayRing = null;
+            return;
+        }
+        int maxMessages = replay.max_messages == null ? 0 : Math.max(replay.max_messages, 0);
+        long maxAge = replay.max_age == null ? 0 : TimeUnit.SECONDS.toMillis(Math.max(replay.max_age, 0));
+        long maxSize = MemoryPropertyEditor.parse(replay.max_size, DEFAULT_REPLAY_MAX_SIZE);
+        if (maxSize <= 0) {
+            LOG.warn("The replay buffer of topic {} needs a positive max_size, using the default", id);
+            maxSize = DEFAULT_REPLAY_MAX_SIZE;
+        }
+        if (replayRing == null || replayRing.getMaxMessages() != maxMessages || replayRing.getMaxAge() != maxAge
+                || replayRing.getMaxSize() != maxSize) {
+            ReplayRing ring = new ReplayRing(maxMessages, maxAge, maxSize);
+            if (replayRing != null) {
+                ring.addAll(replayRing);
+            }
+            replayRing = ring;
+        }
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public DestinationDTO getAddress() {
+        return address;
+    }
+
+    public TopicDTO getConfig() {
+        return config;
+    }
+
+    LocalRouter getRouter() {
+        return router;
+    }
+
+    @Override
+    public BrokerConnection getConnection() {
+        return null;
+    }
+
+    @Override
+    public boolean matches(Delivery delivery) {
+        return true;
+    }
+
+    @Override
+    public int getPriority() {
+        return 0;
+    }
+
+    long now() {
+        return router.getVirtualHost().getBroker().getNow();
+    }
+
+    public void update(final TopicDTO config, final Task onComplete) {
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                Topic.this.config = config;
+                applySettings();
+                cancelIdle();
+                checkIdle();
+                onComplete.run();
+            }
+        });
+    }
+
+    @Override
+    protected void _start(Task onCompleted) {
+        checkIdle();
+        onCompleted.run();
+    }
+
+    @Override
+    protected void _stop(Task onCompleted) {
+        for (TopicSubscription sub : subscriptions) {
+            sub.close();
+            sub.releaseAll();
+        }
+        if (replayRing != null) {
+            replayRing.clear();
+        }
+        cancelIdle();
+        onCompleted.run();
+    }
+
+    /**
+     * Called on every broker maintenance tick, drops the replay messages which got too old
+     * even while nothing is published to the topic.
+     */
+    public void maintenance() {
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                if (replayRing != null) {
+                    replayRing.evict(now());
+                }
+            }
+        });
+    }
+
+    /////////////////////////////////////////////////////////////////////
+    // Binding consumers and producers
+    /////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void bind(final DeliveryConsumer consumer) {
+        bind(consumer, false);
+    }
+
+    /**
+     * @param replay if the consumer should first get the messages held by the replay
+     * buffer, it is ignored when the topic does not keep one.
+     */
+    public void bind(final DeliveryConsumer consumer, final boolean replay) {
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                if (subscriptionsByConsumer.containsKey(consumer)) {
+                    return;
+                }
+                consumerCounter++;
+                // subscribers only get the messages published after they subscribed,
+                // and the ones from the replay buffer if they asked for them
+                TopicSubscription sub = new TopicSubscription(Topic.this, consumer, consumerCounter);
+                subscriptions.add(sub);
+                subscriptionsByConsumer.put(consumer, sub);
+                sub.open();
+                if (replay && replayRing != null) {
+                    sub.replay(replayRing.snapshot(now()));
+                }
+                checkIdle();
+            }
+        });
+    }
+
+    @Override
+    public void unbind(final DeliveryConsumer consumer) {
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                TopicSubscription sub = subscriptionsByConsumer.remove(consumer);
+                if (sub == null) {
+                    return;
+                }
+                subscriptions.remove(sub);
+                sub.close();
+                sub.releaseAll();
+                checkIdle();
+            }
+        });
+    }
+
+    @Override
+    public DeliverySession connect(DeliveryProducer producer) {
+        final ProducerSession session = new ProducerSession(producer);
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                producers.add(session);
+                producerCounter++;
+                checkIdle();
+            }
+        });
+        return session;
+    }
+
+    @Override
+    public void disconnect(final DeliveryProducer producer) {
+        dispatchQueue.execute(new Task() {
+            @Override
+            public void run() {
+                for (int i = 0; i < producers.size(); i++) {
+                    if (producers.get(i).producer == producer) {
+                        producers.remove(i);
+                        checkIdle();
+                        break;
+                    }
+                }
+            }
+        });
+    }
+
+    /////////////////////////////////////////////////////////////////////
+    // Fan out
+    /////////////////////////////////////////////////////////////////////
+
+    private void publish(Delivery delivery) {
+        enqueueItemCounter++;
+        enqueueSizeCounter += delivery.getSize();
+        enqueueTs = now();
+
+        final DeliveryAck ack = delivery.getAck();
+        if (subscriptions.isEmpty() && replayRing == null) {
+            if (ack != null) {
+                ack.apply(DeliveryResult.CONSUMED, null);
+            }
+            releaseRetained(delivery.getSize());
+            return;
+        }
+
+        // the one copy all the subscribers share, it must not be modified from here on.
+        // It keeps the store key, and the uow until the subscribed queues took it, of a
+        // message which was already stored by a mirrored queue so the subscriptions which
+        // persist it refer to the same record.
+        Delivery shared = delivery.copy();
+        shared.setSeq(nextSeq++);
+        shared.setAck(null);
+        if (replayRing != null) {
+            replayRing.add(shared, now());
+            if (subscriptions.isEmpty()) {
+                if (ack != null) {
+                    ack.apply(DeliveryResult.CONSUMED, null);
+                }
+                shared.setUow(null);
+                releaseRetained(delivery.getSize());
+                return;
+            }
+        }
+
+        StoreUOW uow = null;
+        if (shared.isPersistent() && shared.getStoreKey() == -1) {
+            // the queues subscribed to the topic enqueue the one stored record
+            ArrayList<DeliveryConsumer> consumers = new ArrayList<DeliveryConsumer>(subscriptions.size());
+            for (TopicSubscription sub : subscriptions) {
+                consumers.add(sub.consumer);
+            }
+            uow = Queue.storeShared(shared, consumers);
+        }
+        if (ack != null) {
+            if (uow != null) {
+                // persistent messages are only acked once the subscriptions stored them
+                uow.onComplete(new Task() {
+                    @Override
+                    public void run() {
+                        ack.apply(DeliveryResult.CONSUMED, null);
+                    }
+                });
+            } else {
+                ack.apply(DeliveryResult.CONSUMED, null);
+            }
+        }
+
+        TopicEntry entry = new TopicEntry(shared, subscriptions.size());
+        entries.addLast(entry);
+        retainedItems++;
+        if (shared.getUow() != null) {
+            // the queues which cannot take the entry right away still have to join the uow
+            for (TopicSubscription sub : subscriptions) {
+                if (sub.consumer instanceof Queue) {
+                    entry.storing++;
+                }
+            }
+            if (entry.storing > 0) {
+                entry.uow = shared.getUow();
+                entry.uow.retain();
+            }
+        }
+        for (TopicSubscription sub : subscriptions) {
+            if (sub.cursor == null) {
+                sub.cursor = entry;
+            }
+            sub.lagSize += entry.size;
+            sub.drain();
+            if (sub.lagSize > tailBuffer) {
+                slowConsumer(sub);
+            }
+        }
+        if (entry.uow == null) {
+            shared.setUow(null);
+        }
+        if (uow != null) {
+            uow.release();
+        }
+    }
+
+    /**
+     * Deals with a subscription which fell more than a tail buffer behind.  Under the
+     * block policy nothing is done here, the producers are held back until the
+     * subscription catches up.  Queues, the durable subscriptions and the consumer
+     * queues of virtual topics, are left alone as well, they swap their backlog out on
+     * their own and must not lose messages.
+     */
+    private void slowConsumer(TopicSubscription sub) {
+        if (sub.consumer instanceof Queue) {
+            return;
+        }
+        if (QUEUE_POLICY.equals(slowConsumerPolicy)) {
+            if (sub.spillQueue == null) {
+                LOG.debug("{} is too slow, sending its messages through a queue", sub);
+                sub.spill(router.createPrivateQueue(id + LocalRouter.PATH_SEPARATOR + "slow-consumer" + LocalRouter.PATH_SEPARATOR + sub.id, subscriptionQueueConfig()));
+            }
+        } else if (DROP_OLDEST_POLICY.equals(slowConsumerPolicy)) {
+            sub.dropOldest(tailBuffer);
+        }
+    }
+
+    private QueueDTO subscriptionQueueConfig() {
+        QueueDTO rc = new QueueDTO();
+        // the subscription removes the queue itself
+        rc.auto_delete_after = 0;
+        if (config.subscription != null) {
+            rc.copyFrom(config.subscription);
+        }
+        return rc;
+    }
+
+    void delivered(TopicEntry entry) {
+        dequeueItemCounter++;
+        dequeueSizeCounter += entry.size;
+        dequeueTs = now();
+    }
+
+    void expired(TopicEntry entry) {
+        expiredItemCounter++;
+        expiredSizeCounter += entry.size;
+        expiredTs = now();
+    }
+
+    /**
+     * Called when a subscription under the drop-oldest policy skips the entry.
+     */
+    void dropped(TopicEntry entry) {
+        dropHeadItemCounter++;
+        dropHeadSizeCounter += entry.size;
+    }
+
+    /**
+     * Called when a subscription's cursor goes past the entry.
+     */
+    void release(TopicEntry entry, TopicSubscription sub) {
+        if (entry.uow != null && sub.consumer instanceof Queue && --entry.storing == 0) {
+            StoreUOW uow = entry.uow;
+            entry.uow = null;
+            entry.delivery.setUow(null);
+            uow.release();
+        }
+        entry.refs--;
+        if (entry.refs == 0) {
+            entry.unlink();
+            entry.delivery = null;
+            retainedItems--;
+            releaseRetained(entry.size);
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////////
+    // Auto delete
+    /////////////////////////////////////////////////////////////////////
+
+    private boolean isIdle() {
+        return subscriptions.isEmpty() && producers.isEmpty();
+    }
+
+    private void checkIdle() {
+        if (autoDeleteAfter > 0 && isIdle() && serviceState.isStartingOrStarted()) {
+            if (idleTimer == null) {
+                idleTimer = getIdleWheel().schedule(idleCheck, now() + autoDeleteAfter * 1000L);
+            }
+        } else {
+            cancelIdle();
+        }
+    }
+
+    private void cancelIdle() {
+        if (idleTimer != null) {
+            getIdleWheel().cancel(idleTimer);
+            idleTimer = null;
+        }
+    }
+
+    private void idleTimeout() {
+        // the timer could have been replaced by a later one after this one fired
+        if (idleTimer == null || idleTimer.getDeadline() > now()) {
+            return;
+        }
+        idleTimer = null;
+        if (isIdle()) {
+            LOG.debug("{} has been idle for {} seconds, deleting it", this, autoDeleteAfter);
+            router.autoDelete(this);
+        }
+    }
+
+    private ScheduledWheel<Task> getIdleWheel() {
+        return router.getVirtualHost().getIdleWheel();
+    }
+
+    /////////////////////////////////////////////////////////////////////
+    // Producer flow control
+    /////////////////////////////////////////////////////////////////////
+
+    boolean isRetainedFull() {
+        return retainedSize.get() >= retainedMax;
+    }
+
+    private void releaseRetained(long size) {
+        retainedSize.addAndGet(-size);
+        if (!isRetainedFull()) {
+            for (ProducerSession session : producers) {
+                session.refill();
+            }
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////////
+    // Status
+    /////////////////////////////////////////////////////////////////////
+
+    /**
+     * Must be called from the topic's dispatch queue.
+     */
+    public DestMetricsDTO getTopicMetrics() {
+        DestMetricsDTO rc = new DestMetricsDTO();
+        rc.current_time = now();
+        rc.enqueue_item_counter = enqueueItemCounter;
+        rc.enqueue_size_counter = enqueueSizeCounter;
+        rc.enqueue_ts = enqueueTs;
+        rc.dequeue_item_counter = dequeueItemCounter;
+        rc.dequeue_size_counter = dequeueSizeCounter;
+        rc.dequeue_ts = dequeueTs;
+        rc.expired_item_counter = expiredItemCounter;
+        rc.expired_size_counter = expiredSizeCounter;
+        rc.expired_ts = expiredTs;
+        rc.drop_head_item_counter = dropHeadItemCounter;
+        rc.drop_head_size_counter = dropHeadSizeCounter;
+        rc.producer_counter = producerCounter;
+        rc.consumer_counter = consumerCounter;
+        rc.producer_count = producers.size();
+        rc.consumer_count = subscriptions.size();
+        rc.queue_items = retainedItems;
+        rc.queue_size = retainedSize.get();
+        return rc;
+    }
+
+    /**
+     * Must be called from the topic's dispatch queue.
+     */
+    public TopicStatusDTO getStatus() {
+        TopicStatusDTO rc = new TopicStatusDTO();
+        rc.id = id;
+        rc.state = serviceState.toString();
+        rc.config = config;
+        rc.retained = retainedItems;
+        rc.metrics = getTopicMetrics();
+        for (ProducerSession session : producers) {
+            rc.producers.add(session.getStatus());
+        }
+        for (TopicSubscription sub : subscriptions) {
+            if (sub.consumer instanceof DurableSubscription) {
+                rc.dsubs.add(((DurableSubscription) sub.consumer).getId());
+            } else {
+                rc.consumers.add(sub.getStatus());
+            }
+        }
+        return rc;
+    }
+
+    @Override
+    public String toString() {
+        return "topic: " + id;
+    }
+
+    /**
+     * The session producers use to publish to the topic.  It reports itself full
+     * while the topic retains more than <code>tail_buffer</code> bytes for its
+     * subscriptions.
+     */
+    class ProducerSession implements DeliverySession {
+
+        final DeliveryProducer producer;
+        private volatile Task refiller = Dispatch.NOOP;
+        private final AtomicBoolean blocked = new AtomicBoolean();
+        private long enqueueItemCounter;
+        private long enqueueSizeCounter;
+        private long enqueueTs;
+
+        ProducerSession(DeliveryProducer producer) {
+            this.producer = producer;
+        }
+
+        @Override
+        public DeliveryProducer getProducer() {
+            return producer;
+        }
+
+        @Override
+        public DeliveryConsumer getConsumer() {
+            return Topic.this;
+        }
+
+        /**
+         * May be called from the producer's thread.
+         */
+        @Override
+        public boolean full() {
+            if (!isRetainedFull()) {
+                return false;
+            }
+            blocked.set(true);
+            // the topic may have freed up room before it could see the blocked flag
+            if (!isRetainedFull() && blocked.compareAndSet(true, false)) {
+                return false;
+            }
+            return true;
+        }
+
+        void refill() {
+            if (blocked.compareAndSet(true, false)) {
+                DispatchQueue queue = producer.getDispatchQueue();
+                if (queue != null) {
+                    queue.execute(refiller);
+                } else {
+                    refiller.run();
+                }
+            }
+        }
+
+        @Override
+        public boolean offer(final Delivery delivery) {
+            retainedSize.addAndGet(delivery.getSize());
+            final StoreUOW uow = delivery.getUow();
+            if (uow != null) {
+                uow.retain();
+            }
+            dispatchQueue.execute(new Task() {
+                @Override
+                public void run() {
+                    enqueueItemCounter++;
+                    enqueueSizeCounter += delivery.getSize();
+                    enqueueTs = now();
+                    publish(delivery);
+                    if (uow != null) {
+                        uow.release();
+                    }
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public Task refiller() {
+            return refiller;
+        }
+
+        @Override
+        public void setRefiller(Task value) {
+            refiller = value;
+        }
+
+        @Override
+        public void close() {
+            disconnect(producer);
+        }
+
+        LinkDTO getStatus() {
+            LinkDTO rc = new LinkDTO();
+            BrokerConnection connection = producer.getConnection();
+            if (connection != null) {
+                rc.kind = "connection";
+                rc.id = String.valueOf(connection.getId());
+                rc.label = connection.getSessionId();
+            } else {
+                rc.kind = "internal";
+                rc.label = producer.toString();
+            }
+            rc.enqueue_item_counter = enqueueItemCounter;
+            rc.enqueue_size_counter = enqueueSizeCounter;
+            rc.enqueue_ts = enqueueTs;
+            return rc;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.broker.store.StoreUOW;
+import org.apache.activemq.apollo.util.list.LinkedNode;
+
+/**
+ * A message published to a {@link Topic}.  One entry, and the delivery it holds, is
+ * shared by all the subscriptions of the topic: the entry counts how many of them
+ * still have to get to it and is dropped once the last one went past it.
+ *
+ * All the state is only accessed from the topic's dispatch queue.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+class TopicEntry extends LinkedNode<TopicEntry> {
+
+    final long seq;
+    final int size;
+    Delivery delivery;
+
+    // the number of subscriptions whose cursor has not passed the entry yet
+    int refs;
+
+    // the uow the message is stored in, kept open until the queues subscribed to the
+    // topic have taken the entry so they all enqueue it in there
+    StoreUOW uow;
+    int storing;
+
+    TopicEntry(Delivery delivery, int refs) {
+        this.seq = delivery.getSeq();
+        this.size = delivery.getSize();
+        this.delivery = delivery;
+        this.refs = refs;
+    }
+
+    @Override
+    public String toString() {
+        return "topic entry{" + seq + ", refs=" + refs + "}";
+    }
+}
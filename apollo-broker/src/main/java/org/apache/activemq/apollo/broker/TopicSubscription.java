@@ -0,0 +1,220 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.LinkDTO;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.hawtdispatch.Task;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+
+/**
+ * A consumer of a {@link Topic}.  It only holds a cursor into the entries the topic
+ * retains, how far behind the cursor is and its delivery counters, the messages
+ * themselves are shared with the other subscriptions.
+ *
+ * All the state is only accessed from the topic's dispatch queue.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+class TopicSubscription implements DeliveryProducer {
+
+    final Topic topic;
+    final DeliveryConsumer consumer;
+    final long id;
+    DeliverySession session;
+
+    // the next entry to deliver, null once the subscription has caught up with the topic
+    TopicEntry cursor;
+    // deliveries from the topic's replay buffer which go out before the entries
+    ArrayDeque<Delivery> replay;
+    // bytes published to the topic which the cursor has not gone past yet
+    long lagSize;
+
+    // where the messages go once the subscription was found to be too slow under the
+    // queue policy, the consumer then gets them from that queue
+    Queue spillQueue;
+    long droppedItems;
+
+    long enqueueItemCounter;
+    long enqueueSizeCounter;
+    long enqueueTs;
+
+    private final Task refiller = new Task() {
+        @Override
+        public void run() {
+            topic.getDispatchQueue().execute(new Task() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+    };
+
+    TopicSubscription(Topic topic, DeliveryConsumer consumer, long id) {
+        this.topic = topic;
+        this.consumer = consumer;
+        this.id = id;
+    }
+
+    void open() {
+        session = consumer.connect(this);
+        session.setRefiller(refiller);
+    }
+
+    void close() {
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+        if (spillQueue != null) {
+            spillQueue.unbind(consumer);
+            topic.getRouter().removePrivateQueue(spillQueue);
+            spillQueue = null;
+        }
+    }
+
+    /**
+     * Sends everything from here on through the queue, which can swap the backlog out
+     * to the store, instead of straight to the consumer.
+     */
+    void spill(Queue queue) {
+        if (session != null) {
+            session.close();
+        }
+        spillQueue = queue;
+        queue.bind(consumer);
+        session = queue.connect(this);
+        session.setRefiller(refiller);
+        drain();
+    }
+
+    /**
+     * Drops the oldest entries the subscription has not received until it is no
+     * more than max bytes behind.
+     */
+    void dropOldest(long max) {
+        while (lagSize > max && cursor != null) {
+            TopicEntry entry = cursor;
+            cursor = entry.getNext();
+            lagSize -= entry.size;
+            droppedItems++;
+            topic.dropped(entry);
+            topic.release(entry, this);
+        }
+    }
+
+    /**
+     * Queues up deliveries published before the subscription was opened, they are
+     * handed to the consumer ahead of the entries.
+     */
+    void replay(Collection<Delivery> deliveries) {
+        if (deliveries.isEmpty()) {
+            return;
+        }
+        replay = new ArrayDeque<Delivery>(deliveries);
+        drain();
+    }
+
+    /**
+     * Hands the replayed deliveries and then the entries behind the cursor to the
+     * consumer until it is full or has caught up with the topic.
+     */
+    void drain() {
+        long now = topic.now();
+        while (replay != null && session != null && !session.full()) {
+            Delivery delivery = replay.poll();
+            if (delivery == null) {
+                replay = null;
+            } else if (!delivery.isExpired(now) && consumer.matches(delivery)) {
+                enqueueItemCounter++;
+                enqueueSizeCounter += delivery.getSize();
+                enqueueTs = now;
+                session.offer(delivery);
+            }
+        }
+        if (replay != null) {
+            return;
+        }
+        while (cursor != null && session != null && !session.full()) {
+            TopicEntry entry = cursor;
+            cursor = entry.getNext();
+            lagSize -= entry.size;
+            Delivery delivery = entry.delivery;
+            if (delivery.isExpired(now)) {
+                topic.expired(entry);
+            } else if (consumer.matches(delivery)) {
+                enqueueItemCounter++;
+                enqueueSizeCounter += entry.size;
+                enqueueTs = now;
+                topic.delivered(entry);
+                session.offer(delivery);
+            }
+            topic.release(entry, this);
+        }
+    }
+
+    /**
+     * Lets go of all the entries the subscription did not get to.
+     */
+    void releaseAll() {
+        while (cursor != null) {
+            TopicEntry entry = cursor;
+            cursor = entry.getNext();
+            topic.release(entry, this);
+        }
+        lagSize = 0;
+        replay = null;
+    }
+
+    @Override
+    public DispatchQueue getDispatchQueue() {
+        return topic.getDispatchQueue();
+    }
+
+    @Override
+    public BrokerConnection getConnection() {
+        return null;
+    }
+
+    LinkDTO getStatus() {
+        LinkDTO rc = new LinkDTO();
+        BrokerConnection connection = consumer.getConnection();
+        if (connection != null) {
+            rc.kind = "connection";
+            rc.id = String.valueOf(connection.getId());
+            rc.label = connection.getSessionId();
+        } else {
+            rc.kind = "internal";
+            rc.label = consumer.toString();
+        }
+        rc.enqueue_item_counter = enqueueItemCounter;
+        rc.enqueue_size_counter = enqueueSizeCounter;
+        rc.enqueue_ts = enqueueTs;
+        if (spillQueue != null) {
+            rc.label += " (via " + spillQueue.getId() + ")";
+        }
+        return rc;
+    }
+
+    @Override
+    public String toString() {
+        return "topic subscription: " + consumer;
+    }
+}
@@ -18,16 +18,25 @@ package org.apache.activemq.apollo.broker;
 
 import org.apache.activemq.apollo.broker.security.Authenticator;
 import org.apache.activemq.apollo.broker.security.JaasAuthenticator;
+import org.apache.activemq.apollo.broker.store.Store;
+import org.apache.activemq.apollo.broker.store.StoreFactoryFinder;
 import org.apache.activemq.apollo.dto.LogCategoryDTO;
 import org.apache.activemq.apollo.dto.VirtualHostDTO;
 import org.apache.activemq.apollo.util.BaseService;
+import org.apache.activemq.apollo.util.Procedure1;
 import org.apache.activemq.apollo.util.TaskTracker;
+import org.apache.activemq.apollo.util.TimingWheel;
 import org.fusesource.hawtdispatch.Dispatch;
 import org.fusesource.hawtdispatch.DispatchQueue;
 import org.fusesource.hawtdispatch.Task;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
  */
@@ -37,6 +46,18 @@ public class VirtualHost extends BaseService{
     private Router router;
     private VirtualHostDTO config;
     private Broker broker;
+    private Store store;
+    // Broker.now is only updated this often so a finer resolution would not buy anything,
+    // 4 levels span 2^24 ticks, about 19 days
+    static final long MESSAGE_TICK = 100;
+    private static final int MESSAGE_LEVELS = 4;
+    // auto_delete_after is configured in seconds, 3 levels span 2^18 ticks, about 3 days
+    static final long IDLE_TICK = 1000;
+    private static final int IDLE_LEVELS = 3;
+
+    private final ScheduledWheel<QueueEntry> expirationWheel;
+    private final ScheduledWheel<Task> idleWheel;
+    private final ScheduledWheel<Task> delayWheel;
 
     private Logger securityLog;
     private Logger auditLog;
@@ -48,14 +69,102 @@ public class VirtualHost extends BaseService{
     public VirtualHost(Broker broker) {
         super(Dispatch.createQueue("virtual-host"));
         this.broker = broker;
+        this.expirationWheel = new ScheduledWheel<QueueEntry>("expiration wheel", MESSAGE_TICK, MESSAGE_LEVELS, broker.getNow(),
+                new Procedure1<List<TimingWheel.Timer<QueueEntry>>>() {
+                    @Override
+                    public void execute(List<TimingWheel.Timer<QueueEntry>> due) {
+                        // the expired entries are handed back to their queues in one batch per queue
+                        HashMap<Queue, ArrayList<TimingWheel.Timer<QueueEntry>>> expired =
+                                new HashMap<Queue, ArrayList<TimingWheel.Timer<QueueEntry>>>();
+                        for (TimingWheel.Timer<QueueEntry> timer : due) {
+                            Queue queue = timer.getValue().queue;
+                            ArrayList<TimingWheel.Timer<QueueEntry>> timers = expired.get(queue);
+                            if (timers == null) {
+                                timers = new ArrayList<TimingWheel.Timer<QueueEntry>>();
+                                expired.put(queue, timers);
+                            }
+                            timers.add(timer);
+                        }
+                        for (Map.Entry<Queue, ArrayList<TimingWheel.Timer<QueueEntry>>> entry : expired.entrySet()) {
+                            entry.getKey().expired(entry.getValue());
+                        }
+                    }
+                });
+        this.idleWheel = ScheduledWheel.tasks("idle wheel", IDLE_TICK, IDLE_LEVELS, broker.getNow());
+        this.delayWheel = ScheduledWheel.tasks("delay wheel", MESSAGE_TICK, MESSAGE_LEVELS, broker.getNow());
     }
 
     @Override
-    protected void _start(Task onCompleted) {
+    protected void _start(final Task onCompleted) {
+        applyUpdate();
+        if (router == null) {
+            router = new LocalRouter(this);
+        }
+
+        // the router restores its destinations from the store so the store has to be up first
+        store = StoreFactoryFinder.create(config.store);
+        if (store != null) {
+            store.start(new Task() {
+                @Override
+                public void run() {
+                    router.start(onCompleted);
+                }
+            });
+        } else {
+            router.start(onCompleted);
+        }
     }
 
     @Override
-    protected void _stop(Task onCompleted) {
+    protected void _stop(final Task onCompleted) {
+        final Task stopStore = new Task() {
+            @Override
+            public void run() {
+                if (store != null) {
+                    store.stop(onCompleted);
+                } else {
+                    onCompleted.run();
+                }
+            }
+        };
+        if (router != null) {
+            router.stop(stopStore);
+        } else {
+            stopStore.run();
+        }
+    }
+
+    public Broker getBroker() {
+        return broker;
+    }
+
+    /**
+     * @return the store of the virtual host or null if messages are not persisted.
+     */
+    public Store getStore() {
+        return store;
+    }
+
+    /**
+     * @return the wheel the queue entries are scheduled in by their expiration.
+     */
+    ScheduledWheel<QueueEntry> getExpirationWheel() {
+        return expirationWheel;
+    }
+
+    /**
+     * @return the wheel the idle checks of the destinations which are configured to
+     * <code>auto_delete_after</code> some time are scheduled in.
+     */
+    ScheduledWheel<Task> getIdleWheel() {
+        return idleWheel;
+    }
+
+    /**
+     * @return the wheel the queues schedule the release of their delayed messages in.
+     */
+    ScheduledWheel<Task> getDelayWheel() {
+        return delayWheel;
     }
 
     public Router getRouter() {
@@ -93,6 +202,9 @@ public class VirtualHost extends BaseService{
                             @Override
                             public void run() {
                                 VirtualHost.this.config = config;
+                                // the destinations of the old router were restored from the old
+                                // store, the new one has to restore them from the new store
+                                router = null;
                                 start(onComplete);
                             }
                         });
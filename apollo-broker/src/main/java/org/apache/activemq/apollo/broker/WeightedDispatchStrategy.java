@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import java.util.List;
+
+/**
+ * Gives every subscription a share of the entries proportional to the priority of its
+ * consumer, using a smooth weighted round robin so the higher weighted consumers
+ * don't receive their share in bursts.  Subscriptions which can't take an entry are
+ * left out for the rest of the dispatch run without losing their turn.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class WeightedDispatchStrategy implements DispatchStrategy {
+
+    // scratch space of a dispatch run, the running scores are kept by the subscriptions
+    private boolean[] stalled = new boolean[0];
+
+    @Override
+    public void dispatch(List<Subscription> subscriptions) {
+        int size = subscriptions.size();
+        if (stalled.length < size) {
+            stalled = new boolean[size];
+        }
+        for (int i = 0; i < size; i++) {
+            stalled[i] = subscriptions.get(i).isFull();
+        }
+        while (true) {
+            long total = 0;
+            Subscription best = null;
+            int bestIndex = -1;
+            for (int i = 0; i < size; i++) {
+                if (stalled[i]) {
+                    continue;
+                }
+                Subscription sub = subscriptions.get(i);
+                long weight = weight(sub);
+                sub.weightedScore += weight;
+                total += weight;
+                if (best == null || sub.weightedScore > best.weightedScore) {
+                    best = sub;
+                    bestIndex = i;
+                }
+            }
+            if (best == null) {
+                return;
+            }
+            best.weightedScore -= total;
+            if (!best.dispatch()) {
+                // undo the pass so a consumer with nothing to take doesn't lose its turn
+                best.weightedScore += total;
+                for (int i = 0; i < size; i++) {
+                    if (!stalled[i]) {
+                        Subscription sub = subscriptions.get(i);
+                        sub.weightedScore -= weight(sub);
+                    }
+                }
+                stalled[bestIndex] = true;
+            }
+        }
+    }
+
+    private static long weight(Subscription sub) {
+        return Math.max(1, sub.getConsumer().getPriority());
+    }
+
+    @Override
+    public String toString() {
+        return DefaultDispatchStrategyFactory.WEIGHTED;
+    }
+}
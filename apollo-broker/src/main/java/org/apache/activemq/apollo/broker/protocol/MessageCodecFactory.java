@@ -0,0 +1,72 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.protocol;
+
+import org.apache.activemq.apollo.broker.Message;
+import org.apache.activemq.apollo.broker.store.MessageRecord;
+import org.apache.activemq.apollo.util.ClassFinder;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public final class MessageCodecFactory {
+
+    public interface Provider {
+        public MessageCodec[] create();
+    }
+
+    private static ClassFinder<Provider> finder =
+            new ClassFinder<Provider>("META-INF/services/org.apache.activemq.apollo/message-codec-factory.index", Provider.class);
+
+    private static Map<String, MessageCodec> codecs;
+
+    private static synchronized Map<String, MessageCodec> codecsById() {
+        if (codecs == null) {
+            HashMap<String, MessageCodec> rc = new HashMap<String, MessageCodec>();
+            for (Provider provider : finder.getSingletons()) {
+                for (MessageCodec codec : provider.create()) {
+                    rc.put(codec.getId(), codec);
+                }
+            }
+            codecs = rc;
+        }
+        return codecs;
+    }
+
+    public static MessageCodec get(String id) {
+        return codecsById().get(id);
+    }
+
+    public static MessageRecord encode(Message message) {
+        MessageCodec codec = get(message.getCodec());
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown message codec: " + message.getCodec());
+        }
+        return codec.encode(message);
+    }
+
+    public static Message decode(MessageRecord record) {
+        MessageCodec codec = get(record.codec);
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown message codec: " + record.codec);
+        }
+        return codec.decode(record);
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.protocol;
+
+import org.apache.activemq.apollo.broker.Message;
+import org.apache.activemq.apollo.filter.FilterException;
+import org.fusesource.hawtbuf.Buffer;
+
+/**
+ * A message which is just an opaque payload.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class RawMessage implements Message {
+
+    private final Buffer payload;
+
+    public RawMessage(Buffer payload) {
+        this.payload = payload;
+    }
+
+    public Buffer getPayload() {
+        return payload;
+    }
+
+    @Override
+    public String getCodec() {
+        return RawMessageCodec.ID;
+    }
+
+    @Override
+    public <T> T getBodyAs(Class<T> type) throws FilterException {
+        if (type == Buffer.class) {
+            return type.cast(payload);
+        }
+        return null;
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    @Override
+    public Object getLocalConnectionId() {
+        return null;
+    }
+}
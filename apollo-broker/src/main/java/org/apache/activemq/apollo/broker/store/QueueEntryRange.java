@@ -0,0 +1,40 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store;
+
+/**
+ * A summary of a run of consecutive queue entries.  Lets a queue keep track of
+ * a large backlog without loading every entry record.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class QueueEntryRange {
+
+    public long firstEntrySeq;
+    public long lastEntrySeq;
+    public int count;
+    public long size;
+    // the earliest expiration of the entries in the range, 0 if none of them expire
+    public long expiration;
+    // the latest expiration of the entries in the range, 0 if any of them never expires
+    public long maxExpiration;
+
+    @Override
+    public String toString() {
+        return "QueueEntryRange{" + firstEntrySeq + "-" + lastEntrySeq + ", count=" + count + ", size=" + size + "}";
+    }
+}
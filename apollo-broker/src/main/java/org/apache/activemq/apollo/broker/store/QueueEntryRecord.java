@@ -0,0 +1,40 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store;
+
+/**
+ * The position of a message in a queue as it is held by the store.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class QueueEntryRecord {
+
+    public long queueKey;
+    public long entrySeq;
+    public long messageKey;
+    public int size;
+    public long expiration;
+    public int redeliveries;
+    public int priority;
+    // only set on the entries of a duplicate window, which have no message
+    public long idHash;
+
+    @Override
+    public String toString() {
+        return "QueueEntryRecord{queueKey=" + queueKey + ", entrySeq=" + entrySeq + ", messageKey=" + messageKey + "}";
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store;
+
+import org.fusesource.hawtbuf.Buffer;
+
+/**
+ * Describes a queue held by the store.  The binding kind and data tell the
+ * broker which destination the queue should be restored as.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class QueueRecord {
+
+    public long key = -1;
+    public String bindingKind;
+    public Buffer bindingData;
+
+    public QueueRecord() {
+    }
+
+    public QueueRecord(long key, String bindingKind, Buffer bindingData) {
+        this.key = key;
+        this.bindingKind = bindingKind;
+        this.bindingData = bindingData;
+    }
+
+    @Override
+    public String toString() {
+        return "QueueRecord{key=" + key + ", bindingKind=" + bindingKind + "}";
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store;
+
+import org.apache.activemq.apollo.util.Procedure1;
+import org.apache.activemq.apollo.util.Service;
+
+import java.util.List;
+
+/**
+ * The interface to the message store of a virtual host.  All the operations
+ * are asynchronous, their results are passed to the callbacks which may be
+ * executed on any thread.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public interface Store extends Service {
+
+    public StoreUOW createStoreUOW();
+
+    /**
+     * Adds a queue, the callback receives the key assigned to the queue.
+     */
+    public void addQueue(QueueRecord record, Procedure1<Long> callback);
+
+    public void removeQueue(long queueKey, Procedure1<Boolean> callback);
+
+    public void listQueues(Procedure1<List<QueueRecord>> callback);
+
+    /**
+     * Lists the entries of a queue in groups of at most <code>limit</code> entries.
+     */
+    public void listQueueEntryRanges(long queueKey, int limit, Procedure1<List<QueueEntryRange>> callback);
+
+    public void listQueueEntries(long queueKey, long firstSeq, long lastSeq, Procedure1<List<QueueEntryRecord>> callback);
+
+    /**
+     * Lists the first <code>limit</code> entries of a queue which are between the seqs.
+     */
+    public void listQueueEntries(long queueKey, long firstSeq, long lastSeq, int limit, Procedure1<List<QueueEntryRecord>> callback);
+
+    /**
+     * The callback receives null if the message is not in the store.
+     */
+    public void loadMessage(long messageKey, Procedure1<MessageRecord> callback);
+}
@@ -0,0 +1,51 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store;
+
+import org.apache.activemq.apollo.util.Retained;
+import org.fusesource.hawtdispatch.Task;
+
+/**
+ * A unit of work against the store.  The work is committed once the last
+ * reference to the unit of work is released.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public interface StoreUOW extends Retained {
+
+    /**
+     * Stores a message.
+     *
+     * @return the key the message was assigned
+     */
+    public long store(MessageRecord record);
+
+    public void enqueue(QueueEntryRecord entry);
+
+    public void dequeue(QueueEntryRecord entry);
+
+    /**
+     * Dequeues all the entries of the queue with a sequence between first and last,
+     * inclusive, without the caller having to load them first.
+     */
+    public void dequeueRange(long queueKey, long firstEntrySeq, long lastEntrySeq);
+
+    /**
+     * Runs the task once the unit of work has been committed.
+     */
+    public void onComplete(Task task);
+}
@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.QueueDTO;
+import org.apache.activemq.apollo.dto.QueueDestinationDTO;
+import org.apache.activemq.apollo.dto.TopicDestinationDTO;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Covers the removal of destinations which stayed idle for longer than their
+ * auto_delete_after.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class AutoDeleteTest extends RouterTestSupport {
+
+    @Before
+    public void setUp() {
+        QueueDTO kept = new QueueDTO();
+        kept.id = "kept";
+        config.queues.add(kept);
+        QueueDTO users = new QueueDTO();
+        users.id = "user.*";
+        users.auto_delete_after = 10;
+        config.queues.add(users);
+        start();
+    }
+
+    private void advance(long time) {
+        elapsed = time;
+        host.getIdleWheel().advance(host.getBroker().getNow());
+        sync(router.getDispatchQueue());
+    }
+
+    @Test
+    public void testRemovesIdleEmptyQueues() {
+        final QueueDestinationDTO idle = new QueueDestinationDTO("user.idle");
+        connect(idle);
+        call(router.getDispatchQueue(), new Callable<Object>() {
+            @Override
+            public Object call() {
+                router.disconnect(idle, producer);
+                return null;
+            }
+        });
+        sync(queue("user.idle").getDispatchQueue());
+
+        advance(5000);
+        assertNotNull(queue("user.idle"));
+        advance(11000);
+        assertNull(queue("user.idle"));
+        // configured by their own id, so they stay around
+        assertNotNull(queue("kept"));
+    }
+
+    @Test
+    public void testKeepsQueuesWithConsumersOrMessages() {
+        bind(new QueueDestinationDTO("user.consumed"), new TestConsumer());
+        connect(new QueueDestinationDTO("user.full")).offer(delivery(10, false));
+        sync(queue("user.full").getDispatchQueue());
+
+        advance(11000);
+        assertNotNull(queue("user.consumed"));
+        assertNotNull(queue("user.full"));
+    }
+
+    @Test
+    public void testTopicsDefaultToFiveMinutes() {
+        TestConsumer consumer = new TestConsumer();
+        bind(new TopicDestinationDTO("tt"), consumer);
+        unbind(new TopicDestinationDTO("tt"), consumer);
+        sync(topic("tt").getDispatchQueue());
+
+        advance(11000);
+        assertNotNull(topic("tt"));
+        advance(Topic.DEFAULT_AUTO_DELETE_AFTER * 1000L + 1000);
+        assertNull(topic("tt"));
+        assertEquals(0, host.getIdleWheel().size());
+    }
+}
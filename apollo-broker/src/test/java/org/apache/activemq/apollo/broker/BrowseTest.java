@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.BrowsePageDTO;
+import org.apache.activemq.apollo.dto.EntryStatusDTO;
+import org.apache.activemq.apollo.dto.MessageStatusDTO;
+import org.apache.activemq.apollo.dto.QueueDTO;
+import org.apache.activemq.apollo.dto.QueueDestinationDTO;
+import org.apache.activemq.apollo.util.Procedure1;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class BrowseTest extends RouterTestSupport {
+
+    private final QueueDestinationDTO foo = new QueueDestinationDTO("foo");
+    private Queue queue;
+
+    @Before
+    public void setUp() {
+        QueueDTO settings = new QueueDTO();
+        settings.tail_buffer = "1k";
+        settings.swap_range_size = 20;
+        config.queues.add(settings);
+        start();
+        DeliverySession session = connect(foo);
+        for (int i = 0; i < 100; i++) {
+            session.offer(delivery(100, true));
+        }
+        queue = queue("foo");
+        // collapses the swapped entries into ranges
+        pump(queue);
+    }
+
+    private BrowsePageDTO browse(long firstSeq, int max) throws InterruptedException {
+        final BrowsePageDTO[] rc = new BrowsePageDTO[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        queue.browse(firstSeq, max, 10, new Procedure1<BrowsePageDTO>() {
+            @Override
+            public void execute(BrowsePageDTO page) {
+                rc[0] = page;
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        return rc[0];
+    }
+
+    private List<Long> browseAll(int pageSize) throws InterruptedException {
+        ArrayList<Long> seqs = new ArrayList<Long>();
+        long next = 0;
+        while (true) {
+            BrowsePageDTO page = browse(next, pageSize);
+            if (page.messages.isEmpty()) {
+                return seqs;
+            }
+            assertTrue(page.messages.size() <= pageSize);
+            for (MessageStatusDTO message : page.messages) {
+                seqs.add(message.entry.seq);
+            }
+            next = page.last_seq + 1;
+        }
+    }
+
+    @Test
+    public void testPagesThroughSwappedRanges() throws Exception {
+        assertTrue(metrics(queue).swapped_in_size <= 1024);
+        List<Long> seqs = browseAll(7);
+        assertEquals(100, seqs.size());
+        for (int i = 1; i < seqs.size(); i++) {
+            assertTrue(seqs.get(i) > seqs.get(i - 1));
+        }
+        // browsing does not swap anything in
+        assertTrue(metrics(queue).swapped_in_size <= 1024);
+    }
+
+    @Test
+    public void testOnlyListsTheEntriesThePageNeeds() throws Exception {
+        long rangeSeq = call(queue.getDispatchQueue(), new Callable<Long>() {
+            @Override
+            public Long call() {
+                for (EntryStatusDTO entry : queue.getStatus(true).entries) {
+                    if (entry.count > 1) {
+                        return entry.seq;
+                    }
+                }
+                return -1L;
+            }
+        });
+        assertTrue(rangeSeq != -1);
+        int listed = store.getEntriesListed();
+        BrowsePageDTO page = browse(rangeSeq, 3);
+        assertEquals(3, page.messages.size());
+        assertEquals(rangeSeq, page.first_seq);
+        assertEquals(3, store.getEntriesListed() - listed);
+        assertEquals(100, page.total_messages);
+        assertTrue(page.messages.get(0).body_truncated);
+    }
+
+    @Test
+    public void testPicksUpAfterTheQueueChanged() throws Exception {
+        BrowsePageDTO first = browse(0, 10);
+        assertEquals(10, first.messages.size());
+
+        // consume the messages the first page and the start of the second one covered
+        TestConsumer consumer = new TestConsumer();
+        consumer.capacity = 15;
+        bind(foo, consumer);
+        within(5000, new Runnable() {
+            @Override
+            public void run() {
+                pump(queue);
+            }
+        });
+        sync(queue.getDispatchQueue());
+        for (int i = 0; i < consumer.count(); i++) {
+            consumer.ack(i, DeliveryResult.CONSUMED);
+        }
+        sync(queue.getDispatchQueue());
+        assertEquals(100 - consumer.count(), metrics(queue).queue_items);
+
+        BrowsePageDTO second = browse(first.last_seq + 1, 10);
+        assertEquals(10, second.messages.size());
+        assertTrue(second.first_seq > first.last_seq);
+        assertTrue(second.first_seq > consumer.get(consumer.count() - 1).getSeq());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsANegativeBodySize() throws Exception {
+        queue.browse(0, 10, -1, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsAnEmptyPage() throws Exception {
+        queue.browse(0, 0, 10, null);
+    }
+}
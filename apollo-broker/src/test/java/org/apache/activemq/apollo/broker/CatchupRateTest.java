@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.QueueDTO;
+import org.apache.activemq.apollo.dto.QueueDestinationDTO;
+import org.apache.activemq.apollo.dto.QueueStatusDTO;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Covers the catch-up mode of a queue, where the producers are throttled to the
+ * catchup_enqueue_rate while fast consumers are working through a backlog.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class CatchupRateTest extends RouterTestSupport {
+
+    private final QueueDestinationDTO foo = new QueueDestinationDTO("foo");
+    private DeliverySession session;
+    private Queue queue;
+    private TestConsumer consumer;
+    private int acked;
+
+    @Before
+    public void setUp() {
+        QueueDTO settings = new QueueDTO();
+        settings.tail_buffer = "1k";
+        settings.fast_delivery_rate = "100";
+        settings.catchup_enqueue_rate = "1000";
+        config.queues.add(settings);
+        start();
+        session = connect(foo);
+        queue = queue("foo");
+        for (int i = 0; i < 100; i++) {
+            session.offer(delivery(100, false));
+        }
+        consumer = new TestConsumer();
+        consumer.capacity = 5;
+        bind(foo, consumer);
+        queue.maintenance();
+    }
+
+    /**
+     * Moves the clock one tick along while the consumer takes 5 messages and the
+     * producer sends the given number.
+     */
+    private void tick(int sends) {
+        elapsed += 100;
+        while (acked < consumer.count()) {
+            consumer.ack(acked++, DeliveryResult.CONSUMED);
+        }
+        consumer.capacity += 5;
+        consumer.refiller().run();
+        for (int i = 0; i < sends; i++) {
+            session.offer(delivery(100, false));
+        }
+        pump(queue);
+        queue.maintenance();
+        sync(queue.getDispatchQueue());
+    }
+
+    private QueueStatusDTO status() {
+        return call(queue.getDispatchQueue(), new Callable<QueueStatusDTO>() {
+            @Override
+            public QueueStatusDTO call() {
+                return queue.getStatus(false);
+            }
+        });
+    }
+
+    @Test
+    public void testThrottlesTheProducersWhileTheConsumersCatchUp() {
+        for (int i = 0; i < 12; i++) {
+            tick(20);
+        }
+        QueueStatusDTO status = status();
+        assertEquals("catchup", status.flow_mode);
+        assertEquals(Integer.valueOf(1000), status.max_enqueue_rate);
+    }
+
+    @Test
+    public void testLeavesCatchupModeOnceTheConsumersSlowDown() {
+        for (int i = 0; i < 12; i++) {
+            tick(20);
+        }
+        assertEquals("catchup", status().flow_mode);
+
+        // the rates are sampled every second, the sample in progress still has deliveries
+        consumer.full = true;
+        for (int i = 0; i < 20; i++) {
+            tick(0);
+        }
+        assertEquals("normal", status().flow_mode);
+    }
+}
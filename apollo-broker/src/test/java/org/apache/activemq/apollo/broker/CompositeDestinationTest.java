@@ -0,0 +1,134 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.CompositeDestinationDTO;
+import org.apache.activemq.apollo.dto.ForwardDTO;
+import org.apache.activemq.apollo.dto.QueueDestinationDTO;
+import org.apache.activemq.apollo.dto.TopicDestinationDTO;
+import org.apache.activemq.apollo.dto.VirtualTopicDTO;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Covers composite destinations, which forward what is sent to them to several queues
+ * and topics, and virtual topics, whose subscribers are queues.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class CompositeDestinationTest extends RouterTestSupport {
+
+    private final AckCounter acks = new AckCounter();
+
+    private static ForwardDTO forward(String queue, String topic, String selector) {
+        ForwardDTO rc = new ForwardDTO();
+        rc.queue = queue;
+        rc.topic = topic;
+        rc.selector = selector;
+        return rc;
+    }
+
+    @Before
+    public void setUp() {
+        CompositeDestinationDTO orders = new CompositeDestinationDTO();
+        orders.id = "orders";
+        orders.forwards.add(forward("q1", null, null));
+        orders.forwards.add(forward("q2", null, null));
+        orders.forwards.add(forward("q3", null, "kind = 'big'"));
+        orders.forwards.add(forward(null, "t1", null));
+        config.composite_destinations.add(orders);
+        VirtualTopicDTO virtual = new VirtualTopicDTO();
+        virtual.id = "vt.*";
+        config.virtual_topics.add(virtual);
+        start();
+    }
+
+    private void send(DeliverySession session, String kind) {
+        Delivery delivery = delivery(10, true, "kind", kind);
+        delivery.setAck(acks);
+        session.offer(delivery);
+    }
+
+    private long items(String queue) {
+        Queue rc = queue(queue);
+        sync(rc.getDispatchQueue());
+        return metrics(rc).queue_items;
+    }
+
+    @Test
+    public void testForwardsToEveryMatchingTarget() {
+        TestConsumer subscriber = new TestConsumer();
+        bind(new TopicDestinationDTO("t1"), subscriber);
+        Collection<DeliverySession> sessions = call(router.getDispatchQueue(), new Callable<Collection<DeliverySession>>() {
+            @Override
+            public Collection<DeliverySession> call() {
+                return router.connect(new QueueDestinationDTO("orders"), producer);
+            }
+        });
+        assertEquals(1, sessions.size());
+        assertNull(queue("orders"));
+
+        int stored = store.getMessageCount();
+        DeliverySession session = sessions.iterator().next();
+        for (int i = 0; i < 5; i++) {
+            send(session, "small");
+            send(session, "big");
+        }
+        assertEquals(10, items("q1"));
+        assertEquals(10, items("q2"));
+        assertEquals(5, items("q3"));
+        sync(topic("t1").getDispatchQueue());
+        assertEquals(10, subscriber.count());
+        // the targets share one stored copy and the producer hears back once per message
+        assertEquals(stored + 10, store.getMessageCount());
+        assertEquals(10, acks.get());
+    }
+
+    @Test
+    public void testVirtualTopicQueuesKeepCollectingWhileTheirConsumersAreAway() {
+        TestConsumer a = new TestConsumer();
+        TestConsumer b = new TestConsumer();
+        QueueDestinationDTO queueA = new QueueDestinationDTO("Consumer.A.vt.x");
+        bind(queueA, a);
+        bind(new QueueDestinationDTO("Consumer.B.vt.x"), b);
+
+        int stored = store.getMessageCount();
+        DeliverySession session = connect(new TopicDestinationDTO("vt.x"));
+        for (int i = 0; i < 3; i++) {
+            send(session, null);
+        }
+        sync(topic("vt.x").getDispatchQueue());
+        assertEquals(3, items("Consumer.A.vt.x"));
+        assertEquals(3, a.count());
+        assertEquals(3, b.count());
+        assertEquals(stored + 3, store.getMessageCount());
+
+        unbind(queueA, a);
+        for (int i = 0; i < 2; i++) {
+            send(session, null);
+        }
+        sync(topic("vt.x").getDispatchQueue());
+        assertEquals(5, items("Consumer.A.vt.x"));
+        assertEquals(5, b.count());
+    }
+}
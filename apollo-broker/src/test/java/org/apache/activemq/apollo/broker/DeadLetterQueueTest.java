@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.QueueDTO;
+import org.apache.activemq.apollo.dto.QueueDestinationDTO;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Covers how poisoned and expired messages get moved to the dead letter queue.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class DeadLetterQueueTest extends RouterTestSupport {
+
+    private final QueueDestinationDTO foo = new QueueDestinationDTO("foo");
+    private DeliverySession session;
+    private Queue queue;
+
+    @Before
+    public void setUp() {
+        QueueDTO settings = new QueueDTO();
+        settings.dlq = "dlq.*";
+        settings.nak_limit = 3;
+        settings.dlq_expired = true;
+        config.queues.add(settings);
+        start();
+        session = connect(foo);
+        queue = queue("foo");
+    }
+
+    private TestConsumer drain(String id) {
+        TestConsumer consumer = new TestConsumer();
+        bind(new QueueDestinationDTO(id), consumer);
+        sync(queue(id).getDispatchQueue());
+        return consumer;
+    }
+
+    @Test
+    public void testMovesPoisonedMessagesPastTheNakLimit() {
+        Delivery sent = delivery(10, true);
+        session.offer(sent);
+        TestConsumer consumer = drain("foo");
+        int naks = 0;
+        while (naks < consumer.count() && naks < 10) {
+            consumer.ack(naks++, DeliveryResult.POISONED);
+            sync(queue.getDispatchQueue());
+        }
+        assertEquals(3, naks);
+        assertEquals(0, metrics(queue).queue_items);
+        assertTrue(store.getEntries(queue.getStoreId()).isEmpty());
+
+        Queue dlq = queue("dlq.foo");
+        assertEquals(1, store.getEntries(dlq.getStoreId()).size());
+        TestConsumer dead = drain("dlq.foo");
+        assertEquals(1, dead.count());
+        assertTrue(dead.get(0).getMessage() == sent.getMessage());
+        assertEquals(3, dead.get(0).getRedeliveries());
+    }
+
+    @Test
+    public void testMovesExpiredMessages() {
+        Delivery sent = delivery(10, false);
+        sent.setExpiration(1);
+        session.offer(sent);
+        drain("foo");
+
+        assertEquals(1, metrics(queue).expired_item_counter);
+        TestConsumer dead = drain("dlq.foo");
+        assertEquals(1, dead.count());
+        // the copy in the dead letter queue does not expire again
+        assertEquals(0, dead.get(0).getExpiration());
+    }
+}
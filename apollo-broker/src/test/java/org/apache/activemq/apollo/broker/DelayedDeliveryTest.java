@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.QueueDTO;
+import org.apache.activemq.apollo.dto.QueueDestinationDTO;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Covers messages with a delay header, which the queue holds in its schedule until
+ * they are due.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class DelayedDeliveryTest extends RouterTestSupport {
+
+    private final QueueDestinationDTO foo = new QueueDestinationDTO("foo");
+    private DeliverySession session;
+    private Queue queue;
+    private TestConsumer consumer;
+
+    @Before
+    public void setUp() {
+        QueueDTO settings = new QueueDTO();
+        settings.id = "foo";
+        config.queues.add(settings);
+        start();
+        session = connect(foo);
+        queue = queue("foo");
+        consumer = new TestConsumer();
+        bind(foo, consumer);
+    }
+
+    private void send(Object delay, boolean persistent) {
+        session.offer(delivery(10, persistent, "delay", delay));
+    }
+
+    private void advance(long time) {
+        elapsed = time;
+        host.getDelayWheel().advance(host.getBroker().getNow());
+        pump(queue);
+    }
+
+    @Test
+    public void testHoldsDelayedMessagesUntilTheyAreDue() {
+        for (int i = 0; i < 5; i++) {
+            send("1000", true);
+            send(1000L, false);
+        }
+        send(null, true);
+        send("junk", false);
+        sync(queue.getDispatchQueue());
+        // messages without a valid delay are not held
+        assertEquals(2, consumer.count());
+        // the schedule only keeps a timer for its earliest message
+        assertEquals(1, host.getDelayWheel().size());
+
+        advance(500);
+        assertEquals(2, consumer.count());
+        advance(1100);
+        for (int i = 0; i < 20 && consumer.count() < 12; i++) {
+            pump(queue);
+        }
+        assertEquals(12, consumer.count());
+    }
+
+    @Test
+    public void testRestoresTheScheduleFromTheStore() {
+        for (int i = 0; i < 3; i++) {
+            send(5000, true);
+        }
+        sync(queue.getDispatchQueue());
+        long scheduleId = queue.getScheduleStoreId();
+        assertTrue(scheduleId != -1);
+        assertEquals(3, store.getEntries(scheduleId).size());
+        assertTrue(store.getEntries(queue.getStoreId()).isEmpty());
+
+        unbind(foo, consumer);
+        restart();
+        queue = queue("foo");
+        assertEquals(scheduleId, queue.getScheduleStoreId());
+        TestConsumer restored = new TestConsumer();
+        bind(foo, restored);
+
+        advance(5100);
+        for (int i = 0; i < 20 && restored.count() < 3; i++) {
+            pump(queue);
+        }
+        assertEquals(3, restored.count());
+        assertTrue(store.getEntries(scheduleId).isEmpty());
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class DispatchStrategyTest {
+
+    /**
+     * Takes entries from a shared backlog and counts them.
+     */
+    static class CountingSubscription extends Subscription {
+
+        final int[] backlog;
+        int received;
+        int cap = Integer.MAX_VALUE;
+
+        CountingSubscription(int[] backlog, final int priority) {
+            super(null, new DeliveryConsumer() {
+                @Override
+                public DispatchQueue getDispatchQueue() {
+                    return null;
+                }
+
+                @Override
+                public BrokerConnection getConnection() {
+                    return null;
+                }
+
+                @Override
+                public DeliverySession connect(DeliveryProducer producer) {
+                    return null;
+                }
+
+                @Override
+                public boolean matches(Delivery delivery) {
+                    return true;
+                }
+
+                @Override
+                public int getPriority() {
+                    return priority;
+                }
+            }, 0);
+            this.backlog = backlog;
+        }
+
+        @Override
+        public boolean isFull() {
+            return received >= cap;
+        }
+
+        @Override
+        public boolean dispatch() {
+            if (backlog[0] == 0 || isFull()) {
+                return false;
+            }
+            backlog[0]--;
+            received++;
+            return true;
+        }
+    }
+
+    private static List<Subscription> subscriptions(int[] backlog, int... priorities) {
+        ArrayList<Subscription> rc = new ArrayList<Subscription>();
+        for (int priority : priorities) {
+            rc.add(new CountingSubscription(backlog, priority));
+        }
+        return rc;
+    }
+
+    private static int received(List<Subscription> subscriptions, int index) {
+        return ((CountingSubscription) subscriptions.get(index)).received;
+    }
+
+    @Test
+    public void testRoundRobinSpreadsEvenly() {
+        for (int count = 2; count <= 4; count++) {
+            int[] backlog = {count * 25};
+            List<Subscription> subscriptions = subscriptions(backlog, new int[count]);
+            new RoundRobinDispatchStrategy(true).dispatch(subscriptions);
+            for (int i = 0; i < count; i++) {
+                assertEquals("consumers: " + count, 25, received(subscriptions, i));
+            }
+        }
+    }
+
+    @Test
+    public void testRoundRobinRotatesEntriesArrivingOneAtATime() {
+        for (int count = 2; count <= 4; count++) {
+            int[] backlog = {0};
+            RoundRobinDispatchStrategy strategy = new RoundRobinDispatchStrategy(true);
+            List<Subscription> subscriptions = subscriptions(backlog, new int[count]);
+            for (int pass = 0; pass < count * 5; pass++) {
+                backlog[0] = 1;
+                strategy.dispatch(subscriptions);
+            }
+            for (int i = 0; i < count; i++) {
+                assertEquals("consumers: " + count, 5, received(subscriptions, i));
+            }
+        }
+    }
+
+    @Test
+    public void testRoundRobinSkipsFullConsumers() {
+        int[] backlog = {35};
+        List<Subscription> subscriptions = subscriptions(backlog, 0, 0, 0);
+        ((CountingSubscription) subscriptions.get(1)).cap = 5;
+        new RoundRobinDispatchStrategy(true).dispatch(subscriptions);
+        assertEquals(15, received(subscriptions, 0));
+        assertEquals(5, received(subscriptions, 1));
+        assertEquals(15, received(subscriptions, 2));
+    }
+
+    @Test
+    public void testFillFillsUpOneConsumerAtATime() {
+        int[] backlog = {30};
+        List<Subscription> subscriptions = subscriptions(backlog, 0, 0);
+        ((CountingSubscription) subscriptions.get(0)).cap = 20;
+        new RoundRobinDispatchStrategy(false).dispatch(subscriptions);
+        assertEquals(20, received(subscriptions, 0));
+        assertEquals(10, received(subscriptions, 1));
+    }
+
+    @Test
+    public void testWeightedSharesByPriority() {
+        int[] backlog = {40};
+        List<Subscription> subscriptions = subscriptions(backlog, 1, 3);
+        new WeightedDispatchStrategy().dispatch(subscriptions);
+        assertEquals(10, received(subscriptions, 0));
+        assertEquals(30, received(subscriptions, 1));
+    }
+
+    @Test
+    public void testWeightedScoresFollowTheSubscriptions() {
+        int[] backlog = {1};
+        WeightedDispatchStrategy strategy = new WeightedDispatchStrategy();
+        List<Subscription> subscriptions = subscriptions(backlog, 1, 1);
+        strategy.dispatch(subscriptions);
+        Subscription first = subscriptions.get(0);
+        assertEquals(1, received(subscriptions, 0));
+
+        // the subscription which got the entry goes away and a new one takes its place,
+        // the one which is left is owed the next entry
+        CountingSubscription replacement = new CountingSubscription(backlog, 1);
+        subscriptions.set(0, replacement);
+        backlog[0] = 1;
+        strategy.dispatch(subscriptions);
+        assertEquals(0, replacement.received);
+        assertEquals(1, received(subscriptions, 1));
+        assertEquals(1, ((CountingSubscription) first).received);
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.DestMetricsDTO;
+import org.apache.activemq.apollo.dto.QueueDTO;
+import org.apache.activemq.apollo.dto.QueueDestinationDTO;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Covers queues with a duplicate_key, which drop the messages whose id was seen within
+ * the duplicate_window.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class DuplicateWindowTest extends RouterTestSupport {
+
+    private final QueueDestinationDTO foo = new QueueDestinationDTO("foo");
+    private final AckCounter acks = new AckCounter();
+    private DeliverySession session;
+    private Queue queue;
+
+    @Before
+    public void setUp() {
+        QueueDTO settings = new QueueDTO();
+        settings.id = "foo";
+        settings.duplicate_key = "mid";
+        settings.duplicate_window = 4;
+        config.queues.add(settings);
+        start();
+        session = connect(foo);
+        queue = queue("foo");
+    }
+
+    private void send(String id, boolean persistent) {
+        Delivery delivery = delivery(10, persistent, "mid", id);
+        delivery.setAck(acks);
+        session.offer(delivery);
+        sync(queue.getDispatchQueue());
+    }
+
+    @Test
+    public void testDropsDuplicatesWithinTheWindow() {
+        for (String id : new String[]{"a", "b", "a", "c", "d", "e", "a"}) {
+            send(id, true);
+        }
+        // messages without an id are never duplicates
+        send(null, true);
+        send(null, true);
+        send("x", false);
+        send("x", false);
+
+        DestMetricsDTO metrics = metrics(queue);
+        assertEquals(9, metrics.queue_items);
+        assertEquals(2, metrics.duplicate_item_counter);
+        // the producer hears back about the dropped ones as well
+        assertEquals(11, acks.get());
+    }
+
+    @Test
+    public void testRestoresTheWindowFromTheStore() {
+        for (String id : new String[]{"a", "b", "c", "d", "e"}) {
+            send(id, true);
+        }
+        long windowId = queue.getDuplicatesStoreId();
+        assertTrue(windowId != -1);
+
+        restart();
+        session = connect(foo);
+        queue = queue("foo");
+        assertEquals(windowId, queue.getDuplicatesStoreId());
+        send("e", true);
+        send("f", true);
+
+        DestMetricsDTO metrics = metrics(queue);
+        assertEquals(1, metrics.duplicate_item_counter);
+        assertEquals(6, metrics.queue_items);
+    }
+}
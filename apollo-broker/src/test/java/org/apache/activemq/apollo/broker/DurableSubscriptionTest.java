@@ -0,0 +1,147 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.broker.store.QueueEntryRecord;
+import org.apache.activemq.apollo.dto.DurableSubscriptionDestinationDTO;
+import org.apache.activemq.apollo.dto.TopicDestinationDTO;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Covers durable subscriptions, the queues which collect the messages of their topics
+ * while their consumers are away.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class DurableSubscriptionTest extends RouterTestSupport {
+
+    private final TopicDestinationDTO foo = new TopicDestinationDTO("foo");
+    private DeliverySession session;
+
+    @Before
+    public void setUp() {
+        start();
+        session = connect(foo);
+    }
+
+    private DurableSubscription subscribe(final String id, String selector) {
+        DurableSubscriptionDestinationDTO address = new DurableSubscriptionDestinationDTO(id);
+        address.topics.add(foo);
+        address.selector = selector;
+        TestConsumer consumer = new TestConsumer();
+        bind(address, consumer);
+        unbind(address, consumer);
+        return call(router.getDispatchQueue(), new Callable<DurableSubscription>() {
+            @Override
+            public DurableSubscription call() {
+                return router.getDsubDomain().get(id);
+            }
+        });
+    }
+
+    private void send(String color) {
+        session.offer(delivery(10, true, "color", color));
+        sync(topic("foo").getDispatchQueue());
+    }
+
+    @Test
+    public void testOnlyStoresTheMatchingMessages() {
+        DurableSubscription red = subscribe("red", "color = 'red'");
+        int stored = store.getMessageCount();
+        send("red");
+        send("blue");
+        send("red");
+        sync(red.getDispatchQueue());
+
+        assertEquals(2, metrics(red).queue_items);
+        assertEquals(2, store.getEntries(red.getStoreId()).size());
+        assertEquals(stored + 2, store.getMessageCount());
+    }
+
+    @Test
+    public void testMatchingSelectorEnqueuesTheSharedRecord() {
+        DurableSubscription all1 = subscribe("all1", null);
+        DurableSubscription all2 = subscribe("all2", null);
+        DurableSubscription red = subscribe("red", "color = 'red'");
+        int stored = store.getMessageCount();
+        send("red");
+        send("blue");
+        sync(all1.getDispatchQueue());
+        sync(all2.getDispatchQueue());
+        sync(red.getDispatchQueue());
+
+        // the two subscriptions which take everything share one copy of each message, and
+        // the filtered one enqueues the copy of the message it matched
+        assertEquals(stored + 2, store.getMessageCount());
+        List<QueueEntryRecord> reds = store.getEntries(red.getStoreId());
+        assertEquals(1, reds.size());
+        assertEquals(store.getEntries(all1.getStoreId()).get(0).messageKey, reds.get(0).messageKey);
+        assertEquals(store.getEntries(all2.getStoreId()).get(0).messageKey, reds.get(0).messageKey);
+    }
+
+    @Test
+    public void testMatchingSelectorSharesTheRecordWithAnUnfilteredSubscription() {
+        DurableSubscription all = subscribe("all", null);
+        DurableSubscription red = subscribe("red", "color = 'red'");
+        int stored = store.getMessageCount();
+        send("red");
+        sync(all.getDispatchQueue());
+        sync(red.getDispatchQueue());
+
+        assertEquals(stored + 1, store.getMessageCount());
+        assertEquals(1, store.getEntries(red.getStoreId()).size());
+        assertEquals(store.getEntries(all.getStoreId()).get(0).messageKey, store.getEntries(red.getStoreId()).get(0).messageKey);
+    }
+
+    @Test
+    public void testProducerIsAckedOnceTheMessageIsStored() {
+        DurableSubscription all = subscribe("all", null);
+        store.suspendCompletions();
+        AckCounter ack = new AckCounter();
+        Delivery delivery = delivery(10, true, "color", "red");
+        delivery.setAck(ack);
+        session.offer(delivery);
+        sync(topic("foo").getDispatchQueue());
+        sync(all.getDispatchQueue());
+
+        assertEquals(1, store.getEntries(all.getStoreId()).size());
+        assertEquals(0, ack.get());
+        store.resumeCompletions();
+        assertEquals(1, ack.get());
+    }
+
+    @Test
+    public void testProducerIsAckedRightAwayWhenNothingStoresTheMessage() {
+        DurableSubscription red = subscribe("red", "color = 'red'");
+        store.suspendCompletions();
+        AckCounter ack = new AckCounter();
+        Delivery delivery = delivery(10, false, "color", "red");
+        delivery.setAck(ack);
+        session.offer(delivery);
+        sync(topic("foo").getDispatchQueue());
+        sync(red.getDispatchQueue());
+
+        assertEquals(1, metrics(red).queue_items);
+        assertEquals(1, ack.get());
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.EntryStatusDTO;
+import org.apache.activemq.apollo.dto.QueueDTO;
+import org.apache.activemq.apollo.dto.QueueDestinationDTO;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Covers the expiration of queued messages through the expiration wheel of the
+ * virtual host.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class ExpirationTest extends RouterTestSupport {
+
+    private final QueueDestinationDTO foo = new QueueDestinationDTO("foo");
+    private DeliverySession session;
+    private Queue queue;
+
+    @Before
+    public void setUp() {
+        QueueDTO settings = new QueueDTO();
+        settings.tail_buffer = "1k";
+        settings.swap_range_size = 10;
+        config.queues.add(settings);
+        start();
+        session = connect(foo);
+        queue = queue("foo");
+    }
+
+    private void send(int count, long expiration) {
+        for (int i = 0; i < count; i++) {
+            Delivery delivery = delivery(100, true);
+            delivery.setExpiration(expiration);
+            session.offer(delivery);
+        }
+    }
+
+    private int swappedRanges() {
+        return call(queue.getDispatchQueue(), new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int rc = 0;
+                for (EntryStatusDTO entry : queue.getStatus(true).entries) {
+                    if ("swapped_range".equals(entry.state)) {
+                        rc++;
+                    }
+                }
+                return rc;
+            }
+        });
+    }
+
+    private void advance(long time) {
+        elapsed = time;
+        host.getExpirationWheel().advance(host.getBroker().getNow());
+        sync(queue.getDispatchQueue());
+    }
+
+    @Test
+    public void testExpiresSwappedRangesWithoutLoadingThem() {
+        long now = host.getBroker().getNow();
+        send(100, now + 5000);
+        send(5, 0);
+        pump(queue);
+        assertTrue(swappedRanges() > 0);
+        // a swapped range is scheduled once for its earliest expiration
+        assertTrue(host.getExpirationWheel().size() < 40);
+
+        advance(1000);
+        assertEquals(105, metrics(queue).queue_items);
+
+        int loads = store.getMessageLoads();
+        for (int i = 0; i < 5; i++) {
+            advance(6000 + i * 100);
+        }
+        assertEquals(5, metrics(queue).queue_items);
+        assertEquals(100, metrics(queue).expired_item_counter);
+        assertEquals(loads, store.getMessageLoads());
+        assertEquals(5, store.getEntries(queue.getStoreId()).size());
+        assertEquals(0, host.getExpirationWheel().size());
+    }
+
+    @Test
+    public void testUnscheduledOnceConsumed() {
+        long now = host.getBroker().getNow();
+        send(3, now + 5000);
+        assertEquals(3, host.getExpirationWheel().size());
+
+        TestConsumer consumer = new TestConsumer();
+        bind(foo, consumer);
+        sync(queue.getDispatchQueue());
+        for (int i = 0; i < consumer.count(); i++) {
+            consumer.ack(i, DeliveryResult.CONSUMED);
+        }
+        sync(queue.getDispatchQueue());
+        assertEquals(0, host.getExpirationWheel().size());
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.broker.store.QueueEntryRecord;
+import org.apache.activemq.apollo.dto.QueueDTO;
+import org.apache.activemq.apollo.dto.QueueDestinationDTO;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Covers queues with a last_value_key, where a new message replaces the queued one
+ * which has the same value.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class LastValueQueueTest extends RouterTestSupport {
+
+    private final QueueDestinationDTO foo = new QueueDestinationDTO("foo");
+    private DeliverySession session;
+    private Queue queue;
+
+    @Before
+    public void setUp() {
+        QueueDTO settings = new QueueDTO();
+        settings.last_value_key = "symbol";
+        settings.priorities = 10;
+        config.queues.add(settings);
+        start();
+        session = connect(foo);
+        queue = queue("foo");
+    }
+
+    private Delivery send(String symbol, int priority, boolean persistent) {
+        Delivery delivery = delivery(10, persistent, "symbol", symbol);
+        delivery.setPriority(priority);
+        session.offer(delivery);
+        sync(queue.getDispatchQueue());
+        return delivery;
+    }
+
+    private TestConsumer drain() {
+        TestConsumer consumer = new TestConsumer();
+        bind(foo, consumer);
+        sync(queue.getDispatchQueue());
+        return consumer;
+    }
+
+    @Test
+    public void testReplacesTheQueuedValueInPlace() {
+        Delivery first = send("a", 4, false);
+        send("b", 4, false);
+        Delivery last = send("a", 4, false);
+        assertEquals(2, metrics(queue).queue_items);
+        assertEquals(1, metrics(queue).conflated_item_counter);
+
+        TestConsumer consumer = drain();
+        assertEquals(2, consumer.count());
+        assertTrue(consumer.get(0).getMessage() == last.getMessage());
+        assertTrue(consumer.get(0).getMessage() != first.getMessage());
+    }
+
+    @Test
+    public void testStoredValueIsReplacedInOneUnitOfWork() {
+        send("a", 4, true);
+        int before = store.getUnitsOfWork();
+        send("a", 4, true);
+        assertEquals(before + 1, store.getUnitsOfWork());
+
+        List<QueueEntryRecord> stored = store.getEntries(queue.getStoreId());
+        assertEquals(1, stored.size());
+        assertEquals(1, store.getMessageCount());
+        assertTrue(store.getMessage(stored.get(0).messageKey) != null);
+        assertEquals(1, drain().count());
+    }
+
+    @Test
+    public void testValueWithAnotherPriorityMovesToItsLevel() {
+        send("a", 4, true);
+        send("b", 4, true);
+        send("c", 4, true);
+        // a higher priority goes in front of the other values
+        Delivery urgent = send("c", 9, true);
+        assertEquals(3, metrics(queue).queue_items);
+        assertEquals(3, store.getEntries(queue.getStoreId()).size());
+
+        TestConsumer consumer = drain();
+        assertEquals(3, consumer.count());
+        assertTrue(consumer.get(0).getMessage() == urgent.getMessage());
+        assertEquals(9, consumer.get(0).getPriority());
+    }
+}
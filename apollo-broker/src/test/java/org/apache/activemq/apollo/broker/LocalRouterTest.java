@@ -0,0 +1,85 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.QueueDestinationDTO;
+import org.apache.activemq.apollo.dto.TopicDestinationDTO;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Covers how the router resolves concrete and wildcard addresses to its destinations.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class LocalRouterTest extends RouterTestSupport {
+
+    @Before
+    public void setUp() {
+        start();
+    }
+
+    private void publish(String topic) {
+        connect(new TopicDestinationDTO(topic)).offer(delivery(10, false));
+        sync(topic(topic).getDispatchQueue());
+    }
+
+    @Test
+    public void testWildcardBindsToDestinationsCreatedLater() {
+        TestConsumer one = new TestConsumer();
+        TestConsumer any = new TestConsumer();
+        bind(new TopicDestinationDTO("foo.*"), one);
+        bind(new TopicDestinationDTO("foo.**"), any);
+
+        publish("foo.bar");
+        publish("foo.bar.baz");
+        publish("other.bar");
+
+        assertEquals(1, one.count());
+        assertEquals(2, any.count());
+    }
+
+    @Test
+    public void testWildcardBindsToExistingDestinations() {
+        connect(new TopicDestinationDTO("foo.bar"));
+        connect(new TopicDestinationDTO("foo.baz"));
+        TestConsumer consumer = new TestConsumer();
+        bind(new TopicDestinationDTO("foo.*"), consumer);
+
+        publish("foo.bar");
+        publish("foo.baz");
+        assertEquals(2, consumer.count());
+
+        unbind(new TopicDestinationDTO("foo.*"), consumer);
+        publish("foo.bar");
+        assertEquals(2, consumer.count());
+    }
+
+    @Test
+    public void testConcreteBindCreatesTheQueue() {
+        bind(new QueueDestinationDTO("foo.bar"), new TestConsumer());
+        assertNotNull(queue("foo.bar"));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testProducersCanNotSendToWildcards() {
+        connect(new QueueDestinationDTO("foo.*"));
+    }
+}
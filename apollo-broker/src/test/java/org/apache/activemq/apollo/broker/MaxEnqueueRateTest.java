@@ -0,0 +1,93 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.QueueDTO;
+import org.apache.activemq.apollo.dto.QueueDestinationDTO;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Covers the max_enqueue_rate of a queue, which its producers share.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class MaxEnqueueRateTest extends RouterTestSupport {
+
+    private final QueueDestinationDTO foo = new QueueDestinationDTO("foo");
+    private Queue queue;
+
+    @Before
+    public void setUp() {
+        QueueDTO settings = new QueueDTO();
+        settings.tail_buffer = "100m";
+        settings.max_enqueue_rate = "10k";
+        config.queues.add(settings);
+        start();
+    }
+
+    private void tick() {
+        elapsed += 100;
+        queue.maintenance();
+        sync(queue.getDispatchQueue());
+    }
+
+    @Test
+    public void testBoundsTheEnqueueRate() {
+        DeliverySession session = connect(foo);
+        queue = queue("foo");
+        tick();
+        long sent = 0;
+        for (int i = 0; i < 50; i++) {
+            tick();
+            while (!session.full()) {
+                session.offer(delivery(100, false));
+                sent += 100;
+            }
+        }
+        // 5 seconds at 10k per second, give or take the message which crosses the limit
+        assertTrue("sent " + sent, sent <= 10240 * 5 + 2000);
+        assertTrue("sent " + sent, sent >= 10240 * 4);
+    }
+
+    @Test
+    public void testGreedyProducersDoNotStarveTheOthers() {
+        DeliverySession greedy = connect(foo);
+        DeliverySession modest = connect(foo);
+        queue = queue("foo");
+        tick();
+        long sent = 0;
+        int modestSends = 0;
+        for (int i = 0; i < 50; i++) {
+            tick();
+            if (!modest.full()) {
+                modest.offer(delivery(200, false));
+                modestSends++;
+                sent += 200;
+            }
+            while (!greedy.full()) {
+                greedy.offer(delivery(100, false));
+                sent += 100;
+            }
+        }
+        assertEquals(50, modestSends);
+        assertTrue("sent " + sent, sent <= 10240 * 5 + 2000);
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.QueueConsumerLinkDTO;
+import org.apache.activemq.apollo.dto.QueueDestinationDTO;
+import org.apache.activemq.apollo.util.ConsistentHashRing;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class MessageGroupsTest extends RouterTestSupport {
+
+    private final QueueDestinationDTO foo = new QueueDestinationDTO("foo");
+    private DeliverySession session;
+    private Queue queue;
+
+    @Before
+    public void setUp() {
+        start();
+        session = connect(foo);
+        queue = queue("foo");
+    }
+
+    /**
+     * @return a group the subscription with the id gets when the subscriptions with the
+     * ids up to count are bound.
+     */
+    static String groupOwnedBy(long id, int count) {
+        ConsistentHashRing<Long> ring = new ConsistentHashRing<Long>();
+        for (long i = 1; i <= count; i++) {
+            ring.add(i, i);
+        }
+        for (int i = 0; ; i++) {
+            String group = "group-" + i;
+            if (ring.get(ConsistentHashRing.hash(group)).longValue() == id) {
+                return group;
+            }
+        }
+    }
+
+    private Delivery send(String group) {
+        Delivery delivery = group == null ? delivery(10, false) : delivery(10, false, MessageGroups.GROUP_PROPERTY, group);
+        session.offer(delivery);
+        sync(queue.getDispatchQueue());
+        return delivery;
+    }
+
+    private QueueConsumerLinkDTO link(final int index) {
+        return call(queue.getDispatchQueue(), new Callable<QueueConsumerLinkDTO>() {
+            @Override
+            public QueueConsumerLinkDTO call() {
+                return (QueueConsumerLinkDTO) queue.getStatus(false).consumers.get(index);
+            }
+        });
+    }
+
+    private static String group(Delivery delivery) {
+        return (String) delivery.getMessage().getProperty(MessageGroups.GROUP_PROPERTY);
+    }
+
+    @Test
+    public void testGroupSticksToOneConsumer() {
+        TestConsumer first = new TestConsumer();
+        TestConsumer second = new TestConsumer();
+        bind(foo, first);
+        bind(foo, second);
+        for (int i = 0; i < 20; i++) {
+            send("group-" + (i % 5));
+        }
+        sync(queue.getDispatchQueue());
+        assertEquals(20, first.count() + second.count());
+        HashSet<String> groups = new HashSet<String>();
+        for (Delivery delivery : first.received()) {
+            groups.add(group(delivery));
+        }
+        for (Delivery delivery : second.received()) {
+            assertTrue(!groups.contains(group(delivery)));
+        }
+    }
+
+    @Test
+    public void testHandOffRewindsToTheGroupsOldestEntry() {
+        String moving = groupOwnedBy(2, 2);
+        TestConsumer first = new TestConsumer();
+        first.capacity = 1;
+        bind(foo, first);
+        send(moving);
+        assertEquals(1, first.count());
+
+        // the group is in flight with the first consumer so the second one has to skip it
+        TestConsumer second = new TestConsumer();
+        second.capacity = 4;
+        bind(foo, second);
+        send(null);
+        send(null);
+        send(null);
+        Delivery held = send(moving);
+        send(null);
+        assertEquals(4, second.count());
+
+        first.ack(0, DeliveryResult.CONSUMED);
+        sync(queue.getDispatchQueue());
+        // it's full, so its cursor stays where the hand off put it instead of the head
+        QueueConsumerLinkDTO link = link(1);
+        assertTrue(link.position > second.get(2).getSeq());
+        assertTrue(link.position < second.get(3).getSeq());
+
+        second.refill();
+        sync(queue.getDispatchQueue());
+        assertEquals(5, second.count());
+        assertEquals(moving, group(second.get(4)));
+        assertTrue(held.getMessage() == second.get(4).getMessage());
+    }
+
+    @Test
+    public void testUnbindHandsTheGroupsOver() {
+        String leaving = groupOwnedBy(1, 2);
+        TestConsumer first = new TestConsumer();
+        first.capacity = 2;
+        TestConsumer second = new TestConsumer();
+        second.capacity = 0;
+        bind(foo, first);
+        bind(foo, second);
+        send(null);
+        send(null);
+        assertEquals(2, first.count());
+        assertEquals(2, link(0).acquired_count.intValue());
+        second.refill();
+        send(leaving);
+        send(leaving);
+        sync(queue.getDispatchQueue());
+        assertEquals(0, second.count());
+
+        unbind(foo, first);
+        sync(queue.getDispatchQueue());
+        // the entries it did not ack go back out along with its group's messages
+        assertEquals(4, second.count());
+        assertEquals(leaving, group(second.get(2)));
+        assertEquals(leaving, group(second.get(3)));
+        assertEquals(4, link(0).acquired_count.intValue());
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.DurableSubscriptionDestinationDTO;
+import org.apache.activemq.apollo.dto.QueueDTO;
+import org.apache.activemq.apollo.dto.QueueDestinationDTO;
+import org.apache.activemq.apollo.dto.TopicDestinationDTO;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Covers mirrored queues, which also publish their messages to the topic of the
+ * same name.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class MirroredQueueTest extends RouterTestSupport {
+
+    private final QueueDestinationDTO work = new QueueDestinationDTO("work");
+    private final TestConsumer audit = new TestConsumer();
+    private final TestConsumer worker = new TestConsumer();
+    private DeliverySession session;
+    private Queue queue;
+
+    @Before
+    public void setUp() {
+        QueueDTO settings = new QueueDTO();
+        settings.id = "work";
+        settings.mirrored = true;
+        config.queues.add(settings);
+        start();
+        bind(new TopicDestinationDTO("work"), audit);
+        session = connect(work);
+        queue = queue("work");
+        bind(work, worker);
+    }
+
+    private void send(int count, boolean persistent) {
+        for (int i = 0; i < count; i++) {
+            session.offer(delivery(100, persistent));
+        }
+        sync(queue.getDispatchQueue());
+        sync(topic("work").getDispatchQueue());
+    }
+
+    @Test
+    public void testTopicSubscribersShareTheQueuedMessages() {
+        DurableSubscriptionDestinationDTO address = new DurableSubscriptionDestinationDTO("audit");
+        address.topics.add(new TopicDestinationDTO("work"));
+        TestConsumer away = new TestConsumer();
+        bind(address, away);
+        unbind(address, away);
+        int stored = store.getMessageCount();
+
+        send(10, true);
+        assertEquals(10, worker.count());
+        assertEquals(10, audit.count());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(audit.get(i).getMessage() == worker.get(i).getMessage());
+        }
+        // the queue and the durable subscription on the topic share the stored message
+        assertEquals(stored + 10, store.getMessageCount());
+    }
+
+    @Test
+    public void testBlockedTopicBlocksTheQueueProducers() {
+        audit.full = true;
+        for (int i = 0; i < 10000 && !session.full(); i++) {
+            session.offer(delivery(100, false));
+        }
+        assertTrue(session.full());
+
+        audit.refill();
+        sync(topic("work").getDispatchQueue());
+        assertFalse(session.full());
+    }
+
+    @Test
+    public void testStopsMirroringOnceUpdated() {
+        QueueDTO settings = new QueueDTO();
+        settings.id = "work";
+        config.queues.set(0, settings);
+        call(router.getDispatchQueue(), new Callable<Object>() {
+            @Override
+            public Object call() {
+                router.applyUpdate(Dispatch.NOOP);
+                return null;
+            }
+        });
+        sync(queue.getDispatchQueue());
+
+        send(1, false);
+        assertEquals(1, worker.count());
+        assertEquals(0, audit.count());
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.QueueDTO;
+import org.apache.activemq.apollo.dto.QueueDestinationDTO;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Covers partitioned queues, whose messages are spread over several queues which each
+ * run on their own dispatch queue.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class PartitionedQueueTest extends RouterTestSupport {
+
+    private final QueueDestinationDTO foo = new QueueDestinationDTO("foo");
+    private DeliverySession session;
+    private Queue front;
+
+    @Before
+    public void setUp() {
+        QueueDTO settings = new QueueDTO();
+        settings.id = "foo";
+        settings.partitions = 3;
+        settings.partition_key = "pk";
+        config.queues.add(settings);
+        start();
+        session = connect(foo);
+        front = queue("foo");
+    }
+
+    private Queue[] all() {
+        Queue[] partitions = front.getPartitions();
+        Queue[] rc = new Queue[partitions.length + 1];
+        rc[0] = front;
+        System.arraycopy(partitions, 0, rc, 1, partitions.length);
+        for (Queue queue : rc) {
+            sync(queue.getDispatchQueue());
+        }
+        return rc;
+    }
+
+    private void send(int count, String key) {
+        for (int i = 0; i < count; i++) {
+            session.offer(delivery(10, true, "pk", key));
+        }
+    }
+
+    private void update(int partitions) {
+        QueueDTO settings = new QueueDTO();
+        settings.id = "foo";
+        settings.partitions = partitions;
+        settings.partition_key = "pk";
+        config.queues.set(0, settings);
+        call(router.getDispatchQueue(), new Callable<Object>() {
+            @Override
+            public Object call() {
+                router.applyUpdate(Dispatch.NOOP);
+                return null;
+            }
+        });
+        sync(front.getDispatchQueue());
+    }
+
+    private void assertQueueItems(long... expected) {
+        Queue[] queues = all();
+        assertEquals(expected.length, queues.length);
+        for (int i = 0; i < queues.length; i++) {
+            assertEquals(expected[i], metrics(queues[i]).queue_items);
+        }
+    }
+
+    @Test
+    public void testPartitionsHaveTheirOwnDispatchQueueAndStoreQueue() {
+        Queue[] queues = all();
+        assertEquals(3, queues.length);
+        for (int i = 0; i < queues.length; i++) {
+            assertTrue(queues[i].getStoreId() != -1);
+            for (int j = i + 1; j < queues.length; j++) {
+                assertTrue(queues[i].getDispatchQueue() != queues[j].getDispatchQueue());
+                assertTrue(queues[i].getStoreId() != queues[j].getStoreId());
+            }
+        }
+    }
+
+    @Test
+    public void testKeyedMessagesStayOnOnePartition() {
+        send(10, "k1");
+        int holding = 0;
+        for (Queue queue : all()) {
+            if (metrics(queue).queue_items == 10) {
+                holding++;
+            }
+        }
+        assertEquals(1, holding);
+    }
+
+    @Test
+    public void testSpreadsMessagesWithoutAKey() {
+        send(30, null);
+        for (Queue queue : all()) {
+            assertEquals(10, metrics(queue).queue_items);
+        }
+    }
+
+    @Test
+    public void testRestoresThePartitions() {
+        send(10, "k1");
+        send(30, null);
+        Queue[] before = all();
+
+        restart();
+        front = queue("foo");
+        Queue[] after = all();
+        assertEquals(before.length, after.length);
+        for (int i = 0; i < before.length; i++) {
+            assertEquals(before[i].getStoreId(), after[i].getStoreId());
+        }
+
+        TestConsumer consumer = new TestConsumer();
+        bind(foo, consumer);
+        for (int i = 0; i < 20 && consumer.count() < 40; i++) {
+            for (Queue queue : after) {
+                pump(queue);
+            }
+        }
+        assertEquals(40, consumer.count());
+    }
+
+    @Test
+    public void testChangedPartitionCountTakesEffectOnRestart() {
+        update(2);
+        session = connect(foo);
+        send(30, null);
+        assertQueueItems(10, 10, 10);
+
+        update(5);
+        session = connect(foo);
+        send(30, null);
+        assertQueueItems(20, 20, 20);
+
+        update(2);
+        restart();
+        front = queue("foo");
+        session = connect(foo);
+        send(30, null);
+        // the third partition only holds on to what it had
+        assertQueueItems(35, 35, 20);
+    }
+}
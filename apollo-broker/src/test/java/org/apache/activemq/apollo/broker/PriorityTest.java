@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.QueueDTO;
+import org.apache.activemq.apollo.dto.QueueDestinationDTO;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Covers the priority levels of queues and their starvation guard.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class PriorityTest extends RouterTestSupport {
+
+    private final QueueDestinationDTO foo = new QueueDestinationDTO("foo");
+    private DeliverySession session;
+    private Queue queue;
+
+    private void start(Integer priorities, int starvationLimit) {
+        QueueDTO settings = new QueueDTO();
+        settings.priorities = priorities;
+        settings.priority_starvation_limit = starvationLimit;
+        config.queues.add(settings);
+        start();
+        session = connect(foo);
+        queue = queue("foo");
+    }
+
+    /**
+     * Sends a message whose size ends with the priority digit so the order the
+     * consumer got them in can be read back.
+     */
+    private void send(int count, int priority) {
+        for (int i = 0; i < count; i++) {
+            Delivery delivery = delivery(100 + i * 10 + priority, false);
+            delivery.setPriority(priority);
+            session.offer(delivery);
+        }
+        sync(queue.getDispatchQueue());
+    }
+
+    private static String order(TestConsumer consumer) {
+        StringBuilder rc = new StringBuilder();
+        for (Delivery delivery : consumer.received()) {
+            rc.append(delivery.getSize() % 10);
+        }
+        return rc.toString();
+    }
+
+    private TestConsumer drain(int capacity) {
+        TestConsumer consumer = new TestConsumer();
+        consumer.capacity = capacity;
+        bind(foo, consumer);
+        pump(queue);
+        return consumer;
+    }
+
+    @Test
+    public void testHigherPrioritiesGoFirst() {
+        start(10, 0);
+        send(5, 1);
+        send(3, 9);
+        send(2, 5);
+        TestConsumer consumer = drain(4);
+        assertEquals("9995", order(consumer));
+
+        send(1, 9);
+        send(1, 0);
+        consumer.refill();
+        pump(queue);
+        assertEquals("999595111110", order(consumer));
+    }
+
+    @Test
+    public void testFifoWithinALevel() {
+        start(10, 0);
+        send(5, 1);
+        send(1, 9);
+        TestConsumer consumer = drain(Integer.MAX_VALUE);
+        assertEquals(6, consumer.count());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(101 + i * 10, consumer.get(i + 1).getSize());
+        }
+    }
+
+    @Test
+    public void testStarvationGuardLetsTheOldestLowerPriorityThrough() {
+        start(10, 3);
+        send(4, 0);
+        send(4, 4);
+        send(20, 9);
+        TestConsumer consumer = drain(Integer.MAX_VALUE);
+        String order = order(consumer);
+        assertEquals(28, order.length());
+        assertTrue(order, order.startsWith("9990999"));
+        assertTrue(order, order.indexOf('4') < 20);
+    }
+
+    @Test
+    public void testPlainQueuesIgnorePriorities() {
+        start(null, 0);
+        send(1, 1);
+        send(1, 9);
+        assertEquals("19", order(drain(Integer.MAX_VALUE)));
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.broker.store.MemoryStore;
+import org.apache.activemq.apollo.broker.store.MemoryStoreDTO;
+import org.apache.activemq.apollo.dto.DestMetricsDTO;
+import org.apache.activemq.apollo.dto.QueueDTO;
+import org.apache.activemq.apollo.dto.QueueDestinationDTO;
+import org.apache.activemq.apollo.dto.VirtualHostDTO;
+import org.fusesource.hawtdispatch.Task;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class QueueTest extends RouterTestSupport {
+
+    private final QueueDestinationDTO foo = new QueueDestinationDTO("foo");
+
+    @Before
+    public void setUp() {
+        QueueDTO queue = new QueueDTO();
+        queue.tail_buffer = "1k";
+        queue.swap_range_size = 5;
+        config.queues.add(queue);
+        start();
+    }
+
+    @Test
+    public void testSwapsOutPastTheTailBuffer() {
+        DeliverySession session = connect(foo);
+        for (int i = 0; i < 100; i++) {
+            session.offer(delivery(100, false));
+        }
+        final Queue queue = queue("foo");
+        sync(queue.getDispatchQueue());
+        assertTrue(queue.getStoreId() != -1);
+        DestMetricsDTO metrics = metrics(queue);
+        assertEquals(100, metrics.queue_items);
+        assertTrue("swapped in " + metrics.swapped_in_size, metrics.swapped_in_size <= 1024);
+
+        final TestConsumer consumer = new TestConsumer();
+        bind(foo, consumer);
+        within(5000, new Runnable() {
+            @Override
+            public void run() {
+                pump(queue);
+                assertEquals(100, consumer.count());
+            }
+        });
+        long last = 0;
+        for (Delivery delivery : consumer.received()) {
+            assertTrue(delivery.getSeq() > last);
+            last = delivery.getSeq();
+        }
+        for (int i = 0; i < 100; i++) {
+            consumer.ack(i, DeliveryResult.CONSUMED);
+        }
+        sync(queue.getDispatchQueue());
+        metrics = metrics(queue);
+        assertEquals(0, metrics.queue_items);
+        assertEquals(0, metrics.queue_size);
+        assertEquals(0, store.getEntries(queue.getStoreId()).size());
+        assertEquals(0, store.getMessageCount());
+    }
+
+    @Test
+    public void testRestoresPersistentMessages() {
+        DeliverySession session = connect(foo);
+        // few enough to stay in the tail buffer, so only the persistent ones get stored
+        for (int i = 0; i < 8; i++) {
+            session.offer(delivery(100, i % 2 == 0));
+        }
+        Queue queue = queue("foo");
+        sync(queue.getDispatchQueue());
+        assertEquals(8, metrics(queue).queue_items);
+
+        restart();
+        queue = queue("foo");
+        sync(queue.getDispatchQueue());
+        assertEquals(4, metrics(queue).queue_items);
+        assertEquals(4, store.getEntries(queue.getStoreId()).size());
+
+        final TestConsumer consumer = new TestConsumer();
+        bind(foo, consumer);
+        final Queue restored = queue;
+        within(5000, new Runnable() {
+            @Override
+            public void run() {
+                pump(restored);
+                assertEquals(4, consumer.count());
+            }
+        });
+        for (Delivery delivery : consumer.received()) {
+            assertTrue(delivery.isPersistent());
+        }
+    }
+
+    @Test
+    public void testStoreChangeRebuildsTheRouter() throws Exception {
+        DeliverySession session = connect(foo);
+        session.offer(delivery(100, true));
+        sync(queue("foo").getDispatchQueue());
+
+        MemoryStore other = new MemoryStore();
+        VirtualHostDTO update = new VirtualHostDTO();
+        update.queues.addAll(config.queues);
+        update.store = new MemoryStoreDTO(other);
+        final CountDownLatch done = new CountDownLatch(1);
+        host.update(update, new Task() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        LocalRouter rebuilt = (LocalRouter) host.getRouter();
+        assertTrue(rebuilt != router);
+        assertTrue(host.getStore() == other);
+        router = rebuilt;
+        assertTrue(queue("foo") == null);
+    }
+}
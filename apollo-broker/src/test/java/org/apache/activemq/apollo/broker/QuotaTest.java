@@ -0,0 +1,122 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.DestMetricsDTO;
+import org.apache.activemq.apollo.dto.QueueDTO;
+import org.apache.activemq.apollo.dto.QueueDestinationDTO;
+import org.fusesource.hawtdispatch.Task;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Covers the quota of queues and the policies applied once a queue is full.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class QuotaTest extends RouterTestSupport {
+
+    private final QueueDestinationDTO foo = new QueueDestinationDTO("foo");
+
+    private QueueDTO settings() {
+        QueueDTO settings = new QueueDTO();
+        config.queues.add(settings);
+        return settings;
+    }
+
+    @Test
+    public void testBlockPolicyHoldsBackTheProducers() {
+        settings().quota_messages = 10L;
+        start();
+        DeliverySession session = connect(foo);
+        final AtomicInteger refills = new AtomicInteger();
+        session.setRefiller(new Task() {
+            @Override
+            public void run() {
+                refills.incrementAndGet();
+            }
+        });
+        for (int i = 0; i < 10; i++) {
+            session.offer(delivery(10, false));
+        }
+        assertTrue(session.full());
+
+        TestConsumer consumer = new TestConsumer();
+        bind(foo, consumer);
+        consumer.ack(0, DeliveryResult.CONSUMED);
+        sync(queue("foo").getDispatchQueue());
+        assertFalse(session.full());
+        assertTrue(refills.get() > 0);
+    }
+
+    @Test
+    public void testDropTailPolicyDropsTheNewMessages() {
+        QueueDTO settings = settings();
+        settings.quota = "1000";
+        settings.full_policy = "drop tail";
+        start();
+        DeliverySession session = connect(foo);
+        for (int i = 0; i < 25; i++) {
+            session.offer(delivery(100, false));
+        }
+        assertFalse(session.full());
+
+        DestMetricsDTO metrics = metrics(queue("foo"));
+        assertEquals(10, metrics.queue_items);
+        assertEquals(15, metrics.drop_tail_item_counter);
+        assertEquals(1500, metrics.drop_tail_size_counter);
+    }
+
+    @Test
+    public void testDropHeadPolicyKeepsTheNewestWithoutLoading() {
+        QueueDTO settings = settings();
+        settings.quota_messages = 50L;
+        settings.full_policy = "drop-head";
+        settings.tail_buffer = "1k";
+        settings.swap_range_size = 5;
+        start();
+        DeliverySession session = connect(foo);
+        Queue queue = queue("foo");
+        for (int i = 0; i < 200; i++) {
+            session.offer(delivery(100, true));
+        }
+        assertEquals(50, metrics(queue).queue_items);
+        assertEquals(150, metrics(queue).drop_head_item_counter);
+
+        pump(queue);
+        int loads = store.getMessageLoads();
+        for (int i = 0; i < 200; i++) {
+            session.offer(delivery(100, true));
+        }
+        assertEquals(50, metrics(queue).queue_items);
+        assertEquals(loads, store.getMessageLoads());
+        assertEquals(50, store.getEntries(queue.getStoreId()).size());
+
+        TestConsumer consumer = new TestConsumer();
+        bind(foo, consumer);
+        for (int i = 0; i < 100 && consumer.count() < 50; i++) {
+            pump(queue);
+        }
+        assertEquals(50, consumer.count());
+        assertEquals(351, consumer.get(0).getSeq());
+    }
+}
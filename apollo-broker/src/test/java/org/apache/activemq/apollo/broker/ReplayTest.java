@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.ReplayDTO;
+import org.apache.activemq.apollo.dto.TopicDTO;
+import org.apache.activemq.apollo.dto.TopicDestinationDTO;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Covers topics which keep their most recent messages around for the subscriptions
+ * which ask to get them replayed.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class ReplayTest extends RouterTestSupport {
+
+    private final TopicDestinationDTO foo = new TopicDestinationDTO("foo");
+
+    private DeliverySession start(ReplayDTO replay) {
+        TopicDTO settings = new TopicDTO();
+        settings.id = "foo";
+        settings.other.add(replay);
+        config.topics.add(settings);
+        start();
+        return connect(foo);
+    }
+
+    private TestConsumer replay() {
+        TopicDestinationDTO address = new TopicDestinationDTO("foo");
+        address.replay = true;
+        TestConsumer consumer = new TestConsumer();
+        bind(address, consumer);
+        sync(topic("foo").getDispatchQueue());
+        return consumer;
+    }
+
+    @Test
+    public void testReplaysTheLatestWithinMaxMessages() {
+        ReplayDTO replay = new ReplayDTO();
+        replay.max_messages = 3;
+        DeliverySession session = start(replay);
+        for (int i = 0; i < 5; i++) {
+            session.offer(delivery(100 + i, false));
+        }
+
+        TestConsumer consumer = replay();
+        assertEquals(3, consumer.count());
+        assertEquals(102, consumer.get(0).getSize());
+        assertEquals(104, consumer.get(2).getSize());
+    }
+
+    @Test
+    public void testMaxAgeAloneIsStillBoundBySize() {
+        ReplayDTO replay = new ReplayDTO();
+        replay.max_age = 60;
+        replay.max_size = "1k";
+        DeliverySession session = start(replay);
+        for (int i = 0; i < 10; i++) {
+            session.offer(delivery(300, false));
+        }
+
+        TestConsumer consumer = replay();
+        assertEquals(3, consumer.count());
+    }
+
+    @Test
+    public void testMaxAgeAloneDefaultsTheMaxSize() {
+        ReplayDTO replay = new ReplayDTO();
+        replay.max_age = 60;
+        DeliverySession session = start(replay);
+        int count = (int) (Topic.DEFAULT_REPLAY_MAX_SIZE / (1024 * 1024)) + 5;
+        for (int i = 0; i < count; i++) {
+            session.offer(delivery(1024 * 1024, false));
+        }
+
+        TestConsumer consumer = replay();
+        assertEquals(Topic.DEFAULT_REPLAY_MAX_SIZE / (1024 * 1024), consumer.count());
+    }
+
+    @Test
+    public void testKeepsADeliveryBiggerThanTheMaxSize() {
+        ReplayRing ring = new ReplayRing(0, 0, 100);
+        ring.add(delivery(60, false), 0);
+        ring.add(delivery(500, false), 0);
+        assertEquals(1, ring.size());
+        assertEquals(500, ring.totalSize());
+    }
+
+    @Test
+    public void testEvictsWithoutNewDeliveries() {
+        ReplayRing ring = new ReplayRing(0, 1000, 1024);
+        ring.add(delivery(10, false), 0);
+        ring.add(delivery(10, false), 500);
+        ring.evict(1000);
+        assertEquals(1, ring.size());
+        assertEquals(10, ring.totalSize());
+        ring.evict(1500);
+        assertEquals(0, ring.size());
+        assertEquals(0, ring.totalSize());
+    }
+
+    @Test
+    public void testMaintenanceEvictsTheReplayRing() {
+        ReplayDTO replay = new ReplayDTO();
+        replay.max_age = 1;
+        DeliverySession session = start(replay);
+        session.offer(delivery(10, false));
+        Topic topic = topic("foo");
+        sync(topic.getDispatchQueue());
+
+        // nothing is published or replayed from here on, only the maintenance tick runs
+        elapsed = 1000;
+        router.maintenance();
+        sync(router.getDispatchQueue());
+        sync(topic.getDispatchQueue());
+        // a replay at the time of the publish would still get the message if the tick
+        // had not dropped it
+        elapsed = 0;
+
+        assertTrue(replay().received().isEmpty());
+    }
+}
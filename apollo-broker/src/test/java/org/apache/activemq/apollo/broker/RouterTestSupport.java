@@ -0,0 +1,381 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.broker.protocol.RawMessage;
+import org.apache.activemq.apollo.broker.store.MemoryStore;
+import org.apache.activemq.apollo.broker.store.MemoryStoreDTO;
+import org.apache.activemq.apollo.broker.store.StoreUOW;
+import org.apache.activemq.apollo.dto.DestMetricsDTO;
+import org.apache.activemq.apollo.dto.DestinationDTO;
+import org.apache.activemq.apollo.dto.VirtualHostDTO;
+import org.apache.activemq.apollo.util.ServiceControl;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtdispatch.Dispatch;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.hawtdispatch.Task;
+import org.junit.After;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a virtual host, without any connectors, on a {@link MemoryStore} so the
+ * destinations of its router can be driven directly by the tests.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class RouterTestSupport {
+
+    protected final MemoryStore store = new MemoryStore();
+    protected final VirtualHostDTO config = new VirtualHostDTO();
+    protected final TestProducer producer = new TestProducer();
+    protected VirtualHost host;
+    protected LocalRouter router;
+    // added to the broker's time so the tests can move the clock along
+    protected volatile long elapsed;
+
+    /**
+     * Starts a virtual host with the test's config.
+     */
+    protected LocalRouter start() {
+        config.store = new MemoryStoreDTO(store);
+        host = new VirtualHost(new Broker() {
+            @Override
+            public long getNow() {
+                return super.getNow() + elapsed;
+            }
+        });
+        host.setConfig(config);
+        ServiceControl.start(host);
+        router = (LocalRouter) host.getRouter();
+        return router;
+    }
+
+    /**
+     * Stops the virtual host and starts a new one on the same store, the way a broker
+     * restart would.
+     */
+    protected LocalRouter restart() {
+        ServiceControl.stop(host);
+        return start();
+    }
+
+    @After
+    public void stopHost() {
+        if (host != null) {
+            ServiceControl.stop(host);
+            host = null;
+        }
+    }
+
+    /**
+     * Runs the callable on the dispatch queue and waits for its result.
+     */
+    protected static <T> T call(DispatchQueue queue, final Callable<T> callable) {
+        final Object[] rc = new Object[1];
+        final Exception[] failure = new Exception[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        queue.execute(new Task() {
+            @Override
+            public void run() {
+                try {
+                    rc[0] = callable.call();
+                } catch (Exception e) {
+                    failure[0] = e;
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        try {
+            if (!done.await(5, TimeUnit.SECONDS)) {
+                throw new AssertionError("timed out waiting on " + queue);
+            }
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+        if (failure[0] != null) {
+            throw new RuntimeException(failure[0]);
+        }
+        @SuppressWarnings("unchecked")
+        T result = (T) rc[0];
+        return result;
+    }
+
+    protected DeliverySession connect(final DestinationDTO address) {
+        return call(router.getDispatchQueue(), new Callable<DeliverySession>() {
+            @Override
+            public DeliverySession call() {
+                Collection<DeliverySession> sessions = router.connect(address, producer);
+                return sessions.isEmpty() ? null : sessions.iterator().next();
+            }
+        });
+    }
+
+    protected void bind(final DestinationDTO address, final DeliveryConsumer consumer) {
+        call(router.getDispatchQueue(), new Callable<Object>() {
+            @Override
+            public Object call() {
+                router.bind(address, consumer);
+                return null;
+            }
+        });
+    }
+
+    protected void unbind(final DestinationDTO address, final DeliveryConsumer consumer) {
+        call(router.getDispatchQueue(), new Callable<Object>() {
+            @Override
+            public Object call() {
+                router.unbind(address, consumer);
+                return null;
+            }
+        });
+    }
+
+    protected Queue queue(final String id) {
+        return call(router.getDispatchQueue(), new Callable<Queue>() {
+            @Override
+            public Queue call() {
+                return router.getQueueDomain().get(id);
+            }
+        });
+    }
+
+    protected Topic topic(final String id) {
+        return call(router.getDispatchQueue(), new Callable<Topic>() {
+            @Override
+            public Topic call() {
+                return router.getTopicDomain().get(id);
+            }
+        });
+    }
+
+    protected static DestMetricsDTO metrics(final Queue queue) {
+        return call(queue.getDispatchQueue(), new Callable<DestMetricsDTO>() {
+            @Override
+            public DestMetricsDTO call() {
+                return queue.getQueueMetrics();
+            }
+        });
+    }
+
+    /**
+     * Gives the queue a chance to swap in and dispatch what it has.
+     */
+    protected static void pump(final Queue queue) {
+        call(queue.getDispatchQueue(), new Callable<Object>() {
+            @Override
+            public Object call() {
+                queue.swapCheck();
+                queue.triggerDispatch();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Waits for everything the destination had been asked to do so far to be done.
+     */
+    protected static void sync(DispatchQueue queue) {
+        call(queue, new Callable<Object>() {
+            @Override
+            public Object call() {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Retries the assertion until it passes or the timeout is up.
+     */
+    protected static void within(long timeout, Runnable assertion) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            try {
+                assertion.run();
+                return;
+            } catch (AssertionError e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    /**
+     * @param headers the names and values of the message's headers
+     */
+    protected static Delivery delivery(int size, boolean persistent, Object... headers) {
+        final HashMap<String, Object> properties = new HashMap<String, Object>();
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            properties.put((String) headers[i], headers[i + 1]);
+        }
+        Delivery rc = new Delivery();
+        rc.setMessage(new RawMessage(new Buffer(new byte[size])) {
+            @Override
+            public Object getProperty(String name) {
+                return properties.get(name);
+            }
+        });
+        rc.setSize(size);
+        rc.setPersistent(persistent);
+        return rc;
+    }
+
+    /**
+     * Counts the acks a delivery gets back from the destination it was sent to.
+     */
+    protected static class AckCounter implements DeliveryAck {
+
+        final AtomicInteger count = new AtomicInteger();
+        volatile DeliveryResult last;
+
+        @Override
+        public void apply(DeliveryResult result, StoreUOW uow) {
+            last = result;
+            count.incrementAndGet();
+        }
+
+        public int get() {
+            return count.get();
+        }
+    }
+
+    protected static class TestProducer implements DeliveryProducer {
+
+        @Override
+        public DispatchQueue getDispatchQueue() {
+            return null;
+        }
+
+        @Override
+        public BrokerConnection getConnection() {
+            return null;
+        }
+    }
+
+    /**
+     * A consumer which keeps the deliveries it gets, it only acks them when told to.
+     */
+    protected static class TestConsumer implements DeliveryConsumer, DeliverySession {
+
+        private final List<Delivery> received = new ArrayList<Delivery>();
+        private volatile Task refiller = Dispatch.NOOP;
+        private volatile DeliveryProducer producer;
+        volatile int capacity = Integer.MAX_VALUE;
+        volatile boolean full;
+        int priority;
+
+        @Override
+        public DispatchQueue getDispatchQueue() {
+            return null;
+        }
+
+        @Override
+        public BrokerConnection getConnection() {
+            return null;
+        }
+
+        @Override
+        public DeliverySession connect(DeliveryProducer producer) {
+            this.producer = producer;
+            return this;
+        }
+
+        @Override
+        public boolean matches(Delivery delivery) {
+            return true;
+        }
+
+        @Override
+        public int getPriority() {
+            return priority;
+        }
+
+        @Override
+        public DeliveryProducer getProducer() {
+            return producer;
+        }
+
+        @Override
+        public DeliveryConsumer getConsumer() {
+            return this;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public synchronized boolean full() {
+            return full || received.size() >= capacity;
+        }
+
+        @Override
+        public synchronized boolean offer(Delivery delivery) {
+            received.add(delivery);
+            return true;
+        }
+
+        @Override
+        public Task refiller() {
+            return refiller;
+        }
+
+        @Override
+        public void setRefiller(Task value) {
+            refiller = value;
+        }
+
+        public synchronized int count() {
+            return received.size();
+        }
+
+        public synchronized Delivery get(int index) {
+            return received.get(index);
+        }
+
+        public synchronized List<Delivery> received() {
+            return new ArrayList<Delivery>(received);
+        }
+
+        public void ack(int index, DeliveryResult result) {
+            get(index).getAck().apply(result, null);
+        }
+
+        /**
+         * Makes room again and lets the destination know.
+         */
+        public void refill() {
+            full = false;
+            capacity = Integer.MAX_VALUE;
+            refiller.run();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.util.Procedure1;
+import org.apache.activemq.apollo.util.TimingWheel;
+import org.fusesource.hawtdispatch.Task;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class ScheduledWheelTest {
+
+    static class Counter extends Task {
+        int runs;
+
+        @Override
+        public void run() {
+            runs++;
+        }
+    }
+
+    @Test
+    public void testRunsTheTasksOnceTheyAreDue() {
+        ScheduledWheel<Task> wheel = ScheduledWheel.tasks("test", 100, 3, 0);
+        Counter early = new Counter();
+        Counter late = new Counter();
+        Counter cancelled = new Counter();
+        wheel.schedule(early, 250);
+        wheel.schedule(late, 5000);
+        wheel.cancel(wheel.schedule(cancelled, 250));
+        assertEquals(2, wheel.size());
+
+        wheel.advance(200);
+        assertEquals(0, early.runs);
+        wheel.advance(300);
+        assertEquals(1, early.runs);
+        assertEquals(0, late.runs);
+        wheel.advance(6000);
+        assertEquals(1, early.runs);
+        assertEquals(1, late.runs);
+        assertEquals(0, cancelled.runs);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testHandsTheDueTimersOverInOneBatch() {
+        final List<Integer> batches = new ArrayList<Integer>();
+        ScheduledWheel<String> wheel = new ScheduledWheel<String>("test", 100, 3, 0, new Procedure1<List<TimingWheel.Timer<String>>>() {
+            @Override
+            public void execute(List<TimingWheel.Timer<String>> due) {
+                batches.add(due.size());
+            }
+        });
+        for (int i = 0; i < 10; i++) {
+            wheel.schedule("timer-" + i, 100 + i * 10);
+        }
+        wheel.advance(100);
+        wheel.advance(1000);
+        wheel.advance(2000);
+        assertEquals(2, batches.size());
+        assertEquals(10, batches.get(0) + batches.get(1));
+    }
+}
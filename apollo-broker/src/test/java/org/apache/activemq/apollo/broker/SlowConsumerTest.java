@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.DestMetricsDTO;
+import org.apache.activemq.apollo.dto.LinkDTO;
+import org.apache.activemq.apollo.dto.QueueSettingsDTO;
+import org.apache.activemq.apollo.dto.TopicDTO;
+import org.apache.activemq.apollo.dto.TopicDestinationDTO;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Covers the slow_consumer_policy of topics, which decides what happens to a
+ * subscriber that falls a tail buffer behind.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class SlowConsumerTest extends RouterTestSupport {
+
+    private final TopicDestinationDTO foo = new TopicDestinationDTO("foo");
+    private final TestConsumer fast = new TestConsumer();
+    private final TestConsumer slow = new TestConsumer();
+    private DeliverySession session;
+    private Topic topic;
+
+    private void start(String policy) {
+        TopicDTO settings = new TopicDTO();
+        settings.slow_consumer_policy = policy;
+        settings.subscription = new QueueSettingsDTO();
+        settings.subscription.tail_buffer = "10m";
+        config.topics.add(settings);
+        start();
+        bind(foo, fast);
+        bind(foo, slow);
+        session = connect(foo);
+        topic = topic("foo");
+        slow.full = true;
+    }
+
+    /**
+     * @return true if the producer got blocked along the way.
+     */
+    private boolean send(int count) {
+        boolean blocked = false;
+        for (int i = 0; i < count; i++) {
+            blocked |= session.full();
+            session.offer(delivery(100, false));
+        }
+        sync(topic.getDispatchQueue());
+        return blocked;
+    }
+
+    private DestMetricsDTO metrics() {
+        return call(topic.getDispatchQueue(), new Callable<DestMetricsDTO>() {
+            @Override
+            public DestMetricsDTO call() {
+                return topic.getTopicMetrics();
+            }
+        });
+    }
+
+    private List<LinkDTO> consumers() {
+        return call(topic.getDispatchQueue(), new Callable<List<LinkDTO>>() {
+            @Override
+            public List<LinkDTO> call() {
+                return topic.getStatus().consumers;
+            }
+        });
+    }
+
+    @Test
+    public void testDropOldestKeepsTheProducerGoing() {
+        start(Topic.DROP_OLDEST_POLICY);
+        assertFalse(send(20000));
+        assertEquals(20000, fast.count());
+        assertTrue(metrics().queue_size <= Topic.DEFAULT_TAIL_BUFFER);
+
+        slow.refill();
+        sync(topic.getDispatchQueue());
+        assertTrue(slow.count() > 0);
+        assertTrue(slow.count() <= Topic.DEFAULT_TAIL_BUFFER / 100);
+        // what the slow subscriber missed is the oldest, it still gets the newest
+        assertTrue(slow.get(slow.count() - 1) == fast.get(19999));
+    }
+
+    @Test
+    public void testQueueSpillsTheSlowSubscriber() {
+        start(Topic.QUEUE_POLICY);
+        assertFalse(send(10000));
+        assertEquals(10000, fast.count());
+        assertTrue(consumers().get(1).label.contains("(via "));
+
+        int acked = 0;
+        for (int i = 0; i < 1000 && slow.count() < 10000; i++) {
+            slow.refill();
+            while (acked < slow.count()) {
+                slow.ack(acked++, DeliveryResult.CONSUMED);
+            }
+        }
+        assertEquals(10000, slow.count());
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(slow.get(i).getMessage() == fast.get(i).getMessage());
+        }
+    }
+}
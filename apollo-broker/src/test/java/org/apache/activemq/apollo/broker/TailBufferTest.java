@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.QueueDTO;
+import org.apache.activemq.apollo.dto.QueueDestinationDTO;
+import org.fusesource.hawtdispatch.Task;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Covers how the tail_buffer of a queue holds back its producers.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class TailBufferTest extends RouterTestSupport {
+
+    private final QueueDestinationDTO foo = new QueueDestinationDTO("foo");
+
+    private DeliverySession start(boolean swap) {
+        QueueDTO settings = new QueueDTO();
+        settings.tail_buffer = "1k";
+        settings.swap = swap;
+        config.queues.add(settings);
+        start();
+        return connect(foo);
+    }
+
+    @Test
+    public void testBlocksTheProducersUntilTheTailDrains() {
+        DeliverySession session = start(false);
+        final AtomicInteger refills = new AtomicInteger();
+        session.setRefiller(new Task() {
+            @Override
+            public void run() {
+                refills.incrementAndGet();
+            }
+        });
+        int sent = 0;
+        while (!session.full()) {
+            session.offer(delivery(100, false));
+            sent++;
+        }
+        // the message which crosses the tail buffer is still taken
+        assertEquals(11, sent);
+
+        bind(foo, new TestConsumer());
+        sync(queue("foo").getDispatchQueue());
+        assertEquals(1, refills.get());
+        assertFalse(session.full());
+    }
+
+    @Test
+    public void testSwappingKeepsTheProducersGoing() {
+        DeliverySession session = start(true);
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(session.full());
+            session.offer(delivery(100, false));
+        }
+        assertEquals(1000, metrics(queue("foo")).queue_items);
+    }
+}
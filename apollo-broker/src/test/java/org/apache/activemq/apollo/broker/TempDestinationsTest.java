@@ -0,0 +1,156 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.DestinationDTO;
+import org.apache.activemq.apollo.dto.QueueDestinationDTO;
+import org.apache.activemq.apollo.dto.TopicDestinationDTO;
+import org.apache.activemq.apollo.util.ServiceState;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Covers the removal of the temp destinations of a session once its connection stops.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class TempDestinationsTest extends RouterTestSupport {
+
+    private String prefix;
+
+    @Before
+    public void setUp() {
+        start();
+        prefix = LocalRouter.TEMP_PREFIX + "." + host.getBroker().getId() + ".";
+        TestConsumer consumer = new TestConsumer();
+        bind(new QueueDestinationDTO(prefix + "s1.q1"), consumer);
+        bind(new QueueDestinationDTO(prefix + "s1.q2"), consumer);
+        bind(new QueueDestinationDTO(prefix + "s2.q1"), consumer);
+        bind(new TopicDestinationDTO(prefix + "s1.t"), consumer);
+        bind(new QueueDestinationDTO("plain"), consumer);
+    }
+
+    private void remove(final String owner) {
+        call(router.getDispatchQueue(), new Callable<Object>() {
+            @Override
+            public Object call() {
+                router.removeTempDestinations(owner);
+                return null;
+            }
+        });
+        sync(router.getDispatchQueue());
+    }
+
+    private int owners(final LocalRouter.Domain<? extends DomainDestination> domain) {
+        return call(router.getDispatchQueue(), new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return domain.tempDestinationsByOwner.size();
+            }
+        });
+    }
+
+    private static BrokerConnection connection(final String sessionId, final ServiceState state) {
+        return new BrokerConnection(null, 1L) {
+            {
+                serviceState = state;
+            }
+
+            @Override
+            public String getSessionId() {
+                return sessionId;
+            }
+        };
+    }
+
+    private static TestConsumer consumer(final BrokerConnection connection) {
+        return new TestConsumer() {
+            @Override
+            public BrokerConnection getConnection() {
+                return connection;
+            }
+        };
+    }
+
+    private Collection<DeliverySession> connect(final DestinationDTO address, final BrokerConnection connection) {
+        return call(router.getDispatchQueue(), new Callable<Collection<DeliverySession>>() {
+            @Override
+            public Collection<DeliverySession> call() {
+                return router.connect(address, new TestProducer() {
+                    @Override
+                    public BrokerConnection getConnection() {
+                        return connection;
+                    }
+                });
+            }
+        });
+    }
+
+    @Test
+    public void testRemovesOnlyTheDestinationsOfTheSession() {
+        remove("s1");
+        assertNull(queue(prefix + "s1.q1"));
+        assertNull(queue(prefix + "s1.q2"));
+        assertNull(topic(prefix + "s1.t"));
+        assertNotNull(queue(prefix + "s2.q1"));
+        assertNotNull(queue("plain"));
+        assertEquals(1, owners(router.getQueueDomain()));
+        assertEquals(0, owners(router.getTopicDomain()));
+
+        remove("s2");
+        assertNull(queue(prefix + "s2.q1"));
+        assertNotNull(queue("plain"));
+        assertEquals(0, owners(router.getQueueDomain()));
+    }
+
+    @Test
+    public void testTempDestinationsOfOtherBrokersAreNotOwned() {
+        DestinationDTO other = new QueueDestinationDTO(LocalRouter.TEMP_PREFIX + ".other.s1.q1");
+        bind(other, new TestConsumer());
+        remove("s1");
+        assertNotNull(queue(other.name));
+    }
+
+    @Test
+    public void testTempDestinationsAreOnlyCreatedForTheirLiveOwner() {
+        remove("s1");
+        DestinationDTO gone = new QueueDestinationDTO(prefix + "s1.q1");
+        BrokerConnection other = connection("s3", ServiceState.STARTED);
+        bind(gone, consumer(other));
+        assertTrue(connect(gone, other).isEmpty());
+        assertNull(queue(gone.name));
+
+        BrokerConnection stopped = connection("s1", ServiceState.STOPPED);
+        bind(gone, consumer(stopped));
+        assertTrue(connect(gone, stopped).isEmpty());
+        assertNull(queue(gone.name));
+        assertEquals(1, owners(router.getQueueDomain()));
+
+        BrokerConnection owner = connection("s1", ServiceState.STARTED);
+        bind(gone, consumer(owner));
+        assertNotNull(queue(gone.name));
+        assertEquals(1, connect(gone, other).size());
+    }
+}
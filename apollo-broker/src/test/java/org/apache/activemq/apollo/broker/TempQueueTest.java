@@ -0,0 +1,191 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.DestMetricsDTO;
+import org.apache.activemq.apollo.dto.QueueConsumerLinkDTO;
+import org.apache.activemq.apollo.dto.QueueDTO;
+import org.apache.activemq.apollo.dto.QueueDestinationDTO;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Covers replies sent to a temp queue going straight to the connection which owns it.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class TempQueueTest extends RouterTestSupport {
+
+    /**
+     * A consumer which belongs to the connection of the session.
+     */
+    static class OwnerConsumer extends TestConsumer {
+
+        private final BrokerConnection connection;
+
+        OwnerConsumer(final String sessionId) {
+            connection = new BrokerConnection(null, 1L) {
+                @Override
+                public String getSessionId() {
+                    return sessionId;
+                }
+            };
+        }
+
+        @Override
+        public BrokerConnection getConnection() {
+            return connection;
+        }
+    }
+
+    private QueueDestinationDTO reply;
+    private OwnerConsumer owner;
+    private DeliverySession session;
+    private Queue queue;
+
+    @Before
+    public void setUp() {
+        QueueDTO settings = new QueueDTO();
+        settings.nak_limit = 2;
+        settings.dlq = "dlq";
+        config.queues.add(settings);
+        start();
+        reply = new QueueDestinationDTO(LocalRouter.TEMP_PREFIX + "." + host.getBroker().getId() + ".s1.reply");
+        owner = new OwnerConsumer("s1");
+        bind(reply, owner);
+        session = connect(reply);
+        queue = queue(reply.name);
+    }
+
+    private AckCounter send() {
+        AckCounter ack = new AckCounter();
+        Delivery delivery = delivery(10, true);
+        delivery.setAck(ack);
+        session.offer(delivery);
+        sync(queue.getDispatchQueue());
+        return ack;
+    }
+
+    private QueueConsumerLinkDTO link() {
+        return call(queue.getDispatchQueue(), new Callable<QueueConsumerLinkDTO>() {
+            @Override
+            public QueueConsumerLinkDTO call() {
+                return (QueueConsumerLinkDTO) queue.getStatus(false).consumers.get(0);
+            }
+        });
+    }
+
+    private void ack(int index, DeliveryResult result) {
+        owner.ack(index, result);
+        sync(queue.getDispatchQueue());
+    }
+
+    @Test
+    public void testAcceptedReplyAcksTheProducerOnceConsumed() {
+        AckCounter ack = send();
+        assertEquals(1, owner.count());
+        assertEquals(0, metrics(queue).queue_items);
+        assertEquals(0, store.getMessageCount());
+        assertEquals(1, link().acquired_count.intValue());
+        // nobody has the message for sure until the consumer acks it
+        assertEquals(0, ack.get());
+
+        ack(0, DeliveryResult.CONSUMED);
+        assertEquals(1, ack.get());
+        assertEquals(DeliveryResult.CONSUMED, ack.last);
+        assertEquals(0, link().acquired_count.intValue());
+        DestMetricsDTO metrics = metrics(queue);
+        assertEquals(1, metrics.enqueue_item_counter);
+        assertEquals(1, metrics.dequeue_item_counter);
+        assertEquals(0, metrics.queue_items);
+    }
+
+    @Test
+    public void testRejectedReplyIsStoredAndRedelivered() {
+        AckCounter ack = send();
+        ack(0, DeliveryResult.DELIVERED);
+
+        // the queue holds it now, so it's stored before the producer hears back
+        assertEquals(1, store.getEntries(queue.getStoreId()).size());
+        assertEquals(1, ack.get());
+        assertEquals(2, owner.count());
+        assertEquals(1, owner.get(1).getRedeliveries());
+        assertEquals(1, link().acquired_count.intValue());
+        DestMetricsDTO metrics = metrics(queue);
+        assertEquals(1, metrics.enqueue_item_counter);
+        assertEquals(1, metrics.queue_items);
+
+        ack(1, DeliveryResult.CONSUMED);
+        metrics = metrics(queue);
+        assertEquals(0, metrics.queue_items);
+        assertEquals(1, metrics.dequeue_item_counter);
+        assertEquals(0, link().acquired_count.intValue());
+        assertEquals(0, store.getEntries(queue.getStoreId()).size());
+        assertEquals(1, ack.get());
+    }
+
+    @Test
+    public void testPoisonedReplyGoesToTheDeadLetterQueue() {
+        send();
+        ack(0, DeliveryResult.POISONED);
+        assertEquals(2, owner.count());
+        ack(1, DeliveryResult.POISONED);
+
+        // the nak limit is 2
+        assertEquals(2, owner.count());
+        DestMetricsDTO metrics = metrics(queue);
+        assertEquals(0, metrics.queue_items);
+        assertEquals(2, metrics.nack_item_counter);
+        assertEquals(0, link().acquired_count.intValue());
+        final Queue dlq = queue("dlq");
+        sync(dlq.getDispatchQueue());
+        assertEquals(1, metrics(dlq).queue_items);
+    }
+
+    @Test
+    public void testFullOwnerGetsTheReplyThroughTheQueue() {
+        owner.full = true;
+        AckCounter ack = send();
+        assertEquals(0, owner.count());
+        assertEquals(1, metrics(queue).queue_items);
+        assertEquals(1, ack.get());
+
+        owner.refill();
+        within(5000, new Runnable() {
+            @Override
+            public void run() {
+                assertEquals(1, owner.count());
+            }
+        });
+    }
+
+    @Test
+    public void testOtherConsumersDoNotGetTheFastPath() {
+        QueueDestinationDTO other = new QueueDestinationDTO(LocalRouter.TEMP_PREFIX + "." + host.getBroker().getId() + ".s2.reply");
+        OwnerConsumer stranger = new OwnerConsumer("s3");
+        bind(other, stranger);
+        connect(other).offer(delivery(10, false));
+        Queue queue = queue(other.name);
+        sync(queue.getDispatchQueue());
+        assertEquals(1, stranger.count());
+        assertEquals(1, metrics(queue).queue_items);
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker;
+
+import org.apache.activemq.apollo.dto.DestMetricsDTO;
+import org.apache.activemq.apollo.dto.TopicDestinationDTO;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Covers the fan-out of topics to their subscribers.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class TopicTest extends RouterTestSupport {
+
+    private final TopicDestinationDTO foo = new TopicDestinationDTO("foo");
+    private final List<TestConsumer> consumers = new ArrayList<TestConsumer>();
+    private DeliverySession session;
+    private Topic topic;
+
+    @Before
+    public void setUp() {
+        start();
+        for (int i = 0; i < 10; i++) {
+            TestConsumer consumer = new TestConsumer();
+            bind(foo, consumer);
+            consumers.add(consumer);
+        }
+        session = connect(foo);
+        topic = topic("foo");
+    }
+
+    private void send(int count) {
+        for (int i = 0; i < count; i++) {
+            session.offer(delivery(100, false));
+        }
+        sync(topic.getDispatchQueue());
+    }
+
+    private DestMetricsDTO metrics() {
+        return call(topic.getDispatchQueue(), new Callable<DestMetricsDTO>() {
+            @Override
+            public DestMetricsDTO call() {
+                return topic.getTopicMetrics();
+            }
+        });
+    }
+
+    @Test
+    public void testSubscribersShareTheDelivery() {
+        send(100);
+        for (TestConsumer consumer : consumers) {
+            assertEquals(100, consumer.count());
+            for (int i = 0; i < 100; i++) {
+                assertTrue(consumer.get(i) == consumers.get(0).get(i));
+            }
+        }
+        assertEquals(0, metrics().queue_items);
+    }
+
+    @Test
+    public void testSlowSubscriberHoldsBackTheProducer() {
+        TestConsumer slow = consumers.get(5);
+        slow.full = true;
+        send(50);
+        assertEquals(50, metrics().queue_items);
+
+        int sent = 50;
+        while (!session.full() && sent < 100000) {
+            session.offer(delivery(100, false));
+            sent++;
+        }
+        assertTrue(session.full());
+        assertTrue(metrics().queue_size >= Topic.DEFAULT_TAIL_BUFFER);
+
+        unbind(foo, slow);
+        sync(topic.getDispatchQueue());
+        assertEquals(0, metrics().queue_items);
+        assertFalse(session.full());
+        assertEquals(sent, consumers.get(0).count());
+    }
+
+    @Test
+    public void testLateSubscribersOnlySeeNewMessages() {
+        send(10);
+        TestConsumer late = new TestConsumer();
+        bind(foo, late);
+        send(1);
+        assertEquals(1, late.count());
+    }
+}
@@ -0,0 +1,349 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store;
+
+import org.apache.activemq.apollo.util.BaseRetained;
+import org.apache.activemq.apollo.util.Procedure1;
+import org.fusesource.hawtdispatch.Task;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * A store which keeps everything on the heap so the swapping and restoring of the
+ * broker's destinations can be tested.  It survives the virtual host being stopped, so
+ * a test restarts a broker by starting a new virtual host on the same store.
+ *
+ * Units of work are applied as they are built and completed when their last
+ * reference is released.  A message is dropped once the last entry which refers to it
+ * is dequeued.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class MemoryStore implements Store {
+
+    private long nextKey = 1;
+    private final TreeMap<Long, MessageRecord> messages = new TreeMap<Long, MessageRecord>();
+    private final HashMap<Long, Integer> references = new HashMap<Long, Integer>();
+    private final HashMap<Long, QueueRecord> queues = new HashMap<Long, QueueRecord>();
+    private final HashMap<Long, TreeMap<Long, QueueEntryRecord>> entries = new HashMap<Long, TreeMap<Long, QueueEntryRecord>>();
+    private int messageLoads;
+    private int unitsOfWork;
+    private int entriesListed;
+    // completions of units of work held back, like a store which has not flushed yet
+    private ArrayList<Task> heldCompletions;
+
+    @Override
+    public void start(Task onCompleted) {
+        onCompleted.run();
+    }
+
+    @Override
+    public void stop(Task onCompleted) {
+        onCompleted.run();
+    }
+
+    @Override
+    public Throwable serviceFailure() {
+        return null;
+    }
+
+    @Override
+    public synchronized StoreUOW createStoreUOW() {
+        unitsOfWork++;
+        return new MemoryUOW();
+    }
+
+    @Override
+    public synchronized void addQueue(QueueRecord record, Procedure1<Long> callback) {
+        long key = nextKey++;
+        queues.put(key, new QueueRecord(key, record.bindingKind, record.bindingData));
+        callback.execute(key);
+    }
+
+    @Override
+    public void removeQueue(long queueKey, Procedure1<Boolean> callback) {
+        boolean removed;
+        synchronized (this) {
+            removed = queues.remove(queueKey) != null;
+            TreeMap<Long, QueueEntryRecord> queue = entries.remove(queueKey);
+            if (queue != null) {
+                for (QueueEntryRecord entry : queue.values()) {
+                    if (unreference(entry.messageKey)) {
+                        messages.remove(entry.messageKey);
+                    }
+                }
+            }
+        }
+        callback.execute(removed);
+    }
+
+    @Override
+    public void listQueues(Procedure1<List<QueueRecord>> callback) {
+        ArrayList<QueueRecord> rc;
+        synchronized (this) {
+            rc = new ArrayList<QueueRecord>(queues.values());
+        }
+        callback.execute(rc);
+    }
+
+    @Override
+    public void listQueueEntryRanges(long queueKey, int limit, Procedure1<List<QueueEntryRange>> callback) {
+        ArrayList<QueueEntryRange> rc = new ArrayList<QueueEntryRange>();
+        synchronized (this) {
+            QueueEntryRange range = null;
+            for (QueueEntryRecord entry : queue(queueKey).values()) {
+                if (range == null || range.count >= limit) {
+                    range = new QueueEntryRange();
+                    range.firstEntrySeq = entry.entrySeq;
+                    range.maxExpiration = entry.expiration;
+                    rc.add(range);
+                } else if (range.maxExpiration != 0) {
+                    range.maxExpiration = entry.expiration == 0 ? 0 : Math.max(range.maxExpiration, entry.expiration);
+                }
+                range.lastEntrySeq = entry.entrySeq;
+                range.count++;
+                range.size += entry.size;
+                if (entry.expiration != 0 && (range.expiration == 0 || entry.expiration < range.expiration)) {
+                    range.expiration = entry.expiration;
+                }
+            }
+        }
+        callback.execute(rc);
+    }
+
+    @Override
+    public void listQueueEntries(long queueKey, long firstSeq, long lastSeq, Procedure1<List<QueueEntryRecord>> callback) {
+        ArrayList<QueueEntryRecord> rc;
+        synchronized (this) {
+            rc = new ArrayList<QueueEntryRecord>(queue(queueKey).subMap(firstSeq, true, lastSeq, true).values());
+            entriesListed += rc.size();
+        }
+        callback.execute(rc);
+    }
+
+    @Override
+    public void listQueueEntries(long queueKey, long firstSeq, long lastSeq, int limit, Procedure1<List<QueueEntryRecord>> callback) {
+        ArrayList<QueueEntryRecord> rc = new ArrayList<QueueEntryRecord>();
+        synchronized (this) {
+            for (QueueEntryRecord entry : queue(queueKey).subMap(firstSeq, true, lastSeq, true).values()) {
+                if (rc.size() >= limit) {
+                    break;
+                }
+                rc.add(entry);
+            }
+            entriesListed += rc.size();
+        }
+        callback.execute(rc);
+    }
+
+    @Override
+    public void loadMessage(long messageKey, Procedure1<MessageRecord> callback) {
+        MessageRecord rc;
+        synchronized (this) {
+            messageLoads++;
+            rc = messages.get(messageKey);
+        }
+        callback.execute(rc);
+    }
+
+    private TreeMap<Long, QueueEntryRecord> queue(long queueKey) {
+        TreeMap<Long, QueueEntryRecord> rc = entries.get(queueKey);
+        if (rc == null) {
+            rc = new TreeMap<Long, QueueEntryRecord>();
+            entries.put(queueKey, rc);
+        }
+        return rc;
+    }
+
+    private void reference(long messageKey) {
+        if (messageKey != -1) {
+            Integer count = references.get(messageKey);
+            references.put(messageKey, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * @return true if no entry refers to the message anymore.
+     */
+    private boolean unreference(long messageKey) {
+        Integer count = references.get(messageKey);
+        if (count == null) {
+            return false;
+        }
+        if (count == 1) {
+            references.remove(messageKey);
+            return true;
+        }
+        references.put(messageKey, count - 1);
+        return false;
+    }
+
+    /**
+     * @return the number of messages held, including the ones no entry refers to yet.
+     */
+    public synchronized int getMessageCount() {
+        return messages.size();
+    }
+
+    public synchronized MessageRecord getMessage(long messageKey) {
+        return messages.get(messageKey);
+    }
+
+    public synchronized int getMessageLoads() {
+        return messageLoads;
+    }
+
+    /**
+     * @return the number of units of work created so far.
+     */
+    public synchronized int getUnitsOfWork() {
+        return unitsOfWork;
+    }
+
+    /**
+     * @return the number of queue entry records listed so far.
+     */
+    public synchronized int getEntriesListed() {
+        return entriesListed;
+    }
+
+    public synchronized List<QueueRecord> getQueues() {
+        return new ArrayList<QueueRecord>(queues.values());
+    }
+
+    /**
+     * @return the entries of the queue ordered by their sequence.
+     */
+    /**
+     * Holds back the completion of the units of work released from here on until
+     * {@link #resumeCompletions()} is called.
+     */
+    public synchronized void suspendCompletions() {
+        if (heldCompletions == null) {
+            heldCompletions = new ArrayList<Task>();
+        }
+    }
+
+    public void resumeCompletions() {
+        ArrayList<Task> tasks;
+        synchronized (this) {
+            tasks = heldCompletions;
+            heldCompletions = null;
+        }
+        if (tasks != null) {
+            for (Task task : tasks) {
+                task.run();
+            }
+        }
+    }
+
+    public synchronized List<QueueEntryRecord> getEntries(long queueKey) {
+        TreeMap<Long, QueueEntryRecord> queue = entries.get(queueKey);
+        return queue == null ? new ArrayList<QueueEntryRecord>() : new ArrayList<QueueEntryRecord>(queue.values());
+    }
+
+    class MemoryUOW extends BaseRetained implements StoreUOW {
+
+        private final ArrayList<Task> completed = new ArrayList<Task>();
+        // like a real store, a message is only dropped once the whole unit of work is done,
+        // so it can be dequeued from one queue and enqueued into another in the same one
+        private final ArrayList<Long> unreferenced = new ArrayList<Long>();
+
+        @Override
+        public long store(MessageRecord record) {
+            synchronized (MemoryStore.this) {
+                long key = nextKey++;
+                record.messageKey = key;
+                messages.put(key, record);
+                return key;
+            }
+        }
+
+        @Override
+        public void enqueue(QueueEntryRecord entry) {
+            synchronized (MemoryStore.this) {
+                QueueEntryRecord previous = queue(entry.queueKey).put(entry.entrySeq, entry);
+                reference(entry.messageKey);
+                if (previous != null) {
+                    unreference(previous);
+                }
+            }
+        }
+
+        @Override
+        public void dequeue(QueueEntryRecord entry) {
+            synchronized (MemoryStore.this) {
+                QueueEntryRecord removed = queue(entry.queueKey).remove(entry.entrySeq);
+                if (removed != null) {
+                    unreference(removed);
+                }
+            }
+        }
+
+        @Override
+        public void dequeueRange(long queueKey, long firstEntrySeq, long lastEntrySeq) {
+            synchronized (MemoryStore.this) {
+                NavigableMap<Long, QueueEntryRecord> range = queue(queueKey).subMap(firstEntrySeq, true, lastEntrySeq, true);
+                for (QueueEntryRecord entry : range.values()) {
+                    unreference(entry);
+                }
+                range.clear();
+            }
+        }
+
+        @Override
+        public void onComplete(Task task) {
+            synchronized (completed) {
+                completed.add(task);
+            }
+        }
+
+        private void unreference(QueueEntryRecord entry) {
+            if (MemoryStore.this.unreference(entry.messageKey)) {
+                unreferenced.add(entry.messageKey);
+            }
+        }
+
+        @Override
+        protected void dispose() {
+            synchronized (MemoryStore.this) {
+                for (Long messageKey : unreferenced) {
+                    if (!references.containsKey(messageKey)) {
+                        messages.remove(messageKey);
+                    }
+                }
+            }
+            ArrayList<Task> tasks;
+            synchronized (completed) {
+                tasks = new ArrayList<Task>(completed);
+            }
+            synchronized (MemoryStore.this) {
+                if (heldCompletions != null) {
+                    heldCompletions.addAll(tasks);
+                    return;
+                }
+            }
+            for (Task task : tasks) {
+                task.run();
+            }
+        }
+    }
+}
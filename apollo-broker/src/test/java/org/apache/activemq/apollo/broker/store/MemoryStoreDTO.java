@@ -0,0 +1,43 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store;
+
+import org.apache.activemq.apollo.dto.StoreDTO;
+
+/**
+ * Hands a test's {@link MemoryStore} to the virtual host it configures.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class MemoryStoreDTO extends StoreDTO {
+
+    public final transient MemoryStore store;
+
+    public MemoryStoreDTO(MemoryStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof MemoryStoreDTO && ((MemoryStoreDTO) o).store == store && super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(store);
+    }
+}
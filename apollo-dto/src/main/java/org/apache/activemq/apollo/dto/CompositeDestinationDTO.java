@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import javax.xml.bind.annotation.*;
+import java.util.ArrayList;
+
+/**
+ * A destination producers send to which does not hold any messages itself, it forwards
+ * every message to a list of queues and topics instead.  Every target shares the one
+ * message, and the one store record when more than one of them persists it.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+@XmlRootElement(name = "composite_destination")
+@XmlAccessorType(XmlAccessType.FIELD)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class CompositeDestinationDTO {
+
+    /**
+     * The name producers send to.
+     */
+    @XmlAttribute
+    public String id;
+
+    /**
+     * Either <code>queue</code> or <code>topic</code>, the kind of destination producers
+     * address.  Defaults to <code>queue</code>.
+     */
+    @XmlAttribute
+    public String kind;
+
+    /**
+     * The destinations the messages are forwarded to.  Forwarding is not recursive, a
+     * target is never resolved to another composite destination.
+     */
+    @XmlElement(name="forward")
+    public ArrayList<ForwardDTO> forwards = new ArrayList<ForwardDTO>();
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CompositeDestinationDTO)) return false;
+
+        CompositeDestinationDTO that = (CompositeDestinationDTO) o;
+
+        if (forwards != null ? !forwards.equals(that.forwards) : that.forwards != null) return false;
+        if (id != null ? !id.equals(that.id) : that.id != null) return false;
+        if (kind != null ? !kind.equals(that.kind) : that.kind != null) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = id != null ? id.hashCode() : 0;
+        result = 31 * result + (kind != null ? kind.hashCode() : 0);
+        result = 31 * result + (forwards != null ? forwards.hashCode() : 0);
+        return result;
+    }
+}
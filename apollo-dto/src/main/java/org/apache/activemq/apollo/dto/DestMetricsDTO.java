@@ -155,6 +155,62 @@ public class DestMetricsDTO {
     @XmlAttribute(name="nack_ts")
     public long nack_ts;
 
+    /**
+     * The number of messages which were dropped from the head of
+     * the destination to make room for new ones.
+     */
+    @XmlAttribute(name="drop_head_item_counter")
+    public long drop_head_item_counter;
+
+    /**
+     * The total size in bytes of messages which were dropped from
+     * the head of the destination to make room for new ones.
+     */
+    @XmlAttribute(name="drop_head_size_counter")
+    public long drop_head_size_counter;
+
+    /**
+     * The number of messages which were dropped as they were sent
+     * because the destination was full.
+     */
+    @XmlAttribute(name="drop_tail_item_counter")
+    public long drop_tail_item_counter;
+
+    /**
+     * The total size in bytes of messages which were dropped as they
+     * were sent because the destination was full.
+     */
+    @XmlAttribute(name="drop_tail_size_counter")
+    public long drop_tail_size_counter;
+
+    /**
+     * The number of messages which were replaced by a newer message
+     * with the same last value key before they were dispatched.
+     */
+    @XmlAttribute(name="conflated_item_counter")
+    public long conflated_item_counter;
+
+    /**
+     * The total size in bytes of messages which were replaced by a newer
+     * message with the same last value key before they were dispatched.
+     */
+    @XmlAttribute(name="conflated_size_counter")
+    public long conflated_size_counter;
+
+    /**
+     * The number of messages which were dropped because a message with
+     * the same duplicate key had already been sent to the destination.
+     */
+    @XmlAttribute(name="duplicate_item_counter")
+    public long duplicate_item_counter;
+
+    /**
+     * The total size in bytes of the messages which were dropped as
+     * duplicates.
+     */
+    @XmlAttribute(name="duplicate_size_counter")
+    public long duplicate_size_counter;
+
     /**
      * The total size in bytes of messages that are sitting in the queue.
      */
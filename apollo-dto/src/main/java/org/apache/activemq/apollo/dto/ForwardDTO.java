@@ -0,0 +1,66 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import javax.xml.bind.annotation.*;
+
+/**
+ * One of the targets of a composite destination.  Set either the queue or the topic.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+@XmlRootElement(name = "forward")
+@XmlAccessorType(XmlAccessType.FIELD)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ForwardDTO {
+
+    @XmlAttribute
+    public String queue;
+
+    @XmlAttribute
+    public String topic;
+
+    /**
+     * Only the messages which match the selector get forwarded to the target.
+     */
+    @XmlAttribute
+    public String selector;
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ForwardDTO)) return false;
+
+        ForwardDTO that = (ForwardDTO) o;
+
+        if (queue != null ? !queue.equals(that.queue) : that.queue != null) return false;
+        if (selector != null ? !selector.equals(that.selector) : that.selector != null) return false;
+        if (topic != null ? !topic.equals(that.topic) : that.topic != null) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = queue != null ? queue.hashCode() : 0;
+        result = 31 * result + (topic != null ? topic.hashCode() : 0);
+        result = 31 * result + (selector != null ? selector.hashCode() : 0);
+        return result;
+    }
+}
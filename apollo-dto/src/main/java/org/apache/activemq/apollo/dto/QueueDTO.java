@@ -44,7 +44,10 @@ public class QueueDTO extends QueueSettingsDTO {
      * delete, otherwise the queue will auto delete
      * after it has been unused for the number
      * of seconds configured in this field.  If unset,
-     * it defaults to 5 minutes.
+     * it defaults to 5 minutes, except for a queue
+     * configured with its exact id which is kept.
+     * Only queues without consumers, producers or
+     * messages count as unused.
      */
     @XmlAttribute(name="auto_delete_after")
     public Integer auto_delete_after;
@@ -52,13 +55,35 @@ public class QueueDTO extends QueueSettingsDTO {
     /**
      * If set to true, then once the queue
      * is created all messages sent to the queue
-     * will be mirrored to a topic of the same name
-     * and all messages sent to the topic will be mirror
-     * to the queue.
+     * will be mirrored to a topic of the same name.
+     * The topic shares the queue's copy of the message
+     * and its store record.
      */
     @XmlAttribute
     public Boolean mirrored;
 
+    /**
+     * The number of partitions the queue is split into.  Every partition
+     * has its own dispatch queue and its own queue in the store, so a busy
+     * queue can make use of as many cores, while producers and consumers
+     * still see one queue.  Ordering only holds within a partition.  The
+     * number is fixed once the queue is created, raising or lowering it
+     * takes effect when the broker restarts.  Partitions left over from a
+     * larger number get no new messages but still deliver the ones they
+     * hold.  Partitioned queues do not auto delete.  Defaults to 1.
+     */
+    @XmlAttribute
+    public Integer partitions;
+
+    /**
+     * The name of the message header which picks the partition a message
+     * goes to, messages with the same value end up in the same partition.
+     * Messages without it go to the partition of their message group, or
+     * round robin to all partitions when they are not part of a group.
+     */
+    @XmlAttribute(name="partition_key")
+    public String partition_key;
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -71,6 +96,9 @@ public class QueueDTO extends QueueSettingsDTO {
             return false;
         if (id != null ? !id.equals(queueDTO.id) : queueDTO.id != null) return false;
         if (mirrored != null ? !mirrored.equals(queueDTO.mirrored) : queueDTO.mirrored != null) return false;
+        if (partitions != null ? !partitions.equals(queueDTO.partitions) : queueDTO.partitions != null) return false;
+        if (partition_key != null ? !partition_key.equals(queueDTO.partition_key) : queueDTO.partition_key != null)
+            return false;
 
         return true;
     }
@@ -81,6 +109,8 @@ public class QueueDTO extends QueueSettingsDTO {
         result = 31 * result + (id != null ? id.hashCode() : 0);
         result = 31 * result + (auto_delete_after != null ? auto_delete_after.hashCode() : 0);
         result = 31 * result + (mirrored != null ? mirrored.hashCode() : 0);
+        result = 31 * result + (partitions != null ? partitions.hashCode() : 0);
+        result = 31 * result + (partition_key != null ? partition_key.hashCode() : 0);
         return result;
     }
 }
@@ -55,6 +55,16 @@ public class QueueSettingsDTO {
     @XmlAttribute(name="round_robin")
     public Boolean round_robin;
 
+    /**
+     * The name of the strategy used to pick which consumer gets the
+     * next message.  Built in strategies are `round_robin`, `exclusive`
+     * (only the oldest consumer gets messages, the next one takes over
+     * when it goes away) and `weighted` (consumers get a share of the
+     * messages proportional to their priority).  Defaults to `round_robin`.
+     */
+    @XmlAttribute(name="dispatch")
+    public String dispatch;
+
     /**
      * When set to true, the queue
      * will drain the required message group consumers of messages before
@@ -105,9 +115,11 @@ public class QueueSettingsDTO {
      *  `drop tail`: Drops new messages being enqueued on the queue.
      *  `drop head`: Drops old messages at the front of the queue.
      *
-     * If the queue is persistent then it is considered full when the max
-     * quota size is reached.  If the queue is not persistent then
-     * the queue is considered full once it's `tail_buffer` fills up.
+     * The queue is considered full once either the `quota` or the
+     * `quota_messages` limit is reached.  A queue which can not swap
+     * messages out to the store still holds back its producers once
+     * it's `tail_buffer` fills up.  Dropping from the head discards
+     * swapped out messages without loading them back in.
      * Defaults to 'block' if not specified.
      */
     @XmlAttribute(name="full_policy")
@@ -168,12 +180,90 @@ public class QueueSettingsDTO {
     @XmlAttribute(name="dlq_expired")
     public Boolean dlq_expired;
 
+    /**
+     * The name of the message header which identifies the value a message
+     * carries.  When set, the queue becomes a last value queue: a message
+     * whose header matches the one of a message that has not been dispatched
+     * yet replaces that message in place, so at most one message per value
+     * is pending.  Messages without the header are queued as usual.
+     */
+    @XmlAttribute(name="last_value_key")
+    public String last_value_key;
+
+    /**
+     * The number of priority levels the queue sorts its messages into,
+     * at most 10.  Messages of a higher level are dispatched ahead of the
+     * ones of the lower levels, and in FIFO order within their level.  The
+     * JMS priorities 0 to 9 are spread evenly over the levels, so with 10
+     * levels every priority gets its own.  Defaults to 1, which dispatches
+     * all messages in FIFO order.
+     */
+    @XmlAttribute(name="priorities")
+    public Integer priorities;
+
+    /**
+     * How many messages of higher priority levels may be dispatched
+     * ahead of a waiting lower priority message before the oldest of the
+     * waiting messages gets dispatched anyway, so the lower priorities
+     * still make progress under a steady stream of urgent messages.  Set
+     * to zero to always dispatch strictly by priority.  Defaults to 100.
+     */
+    @XmlAttribute(name="priority_starvation_limit")
+    public Integer priority_starvation_limit;
+
+    /**
+     * The name of the message header producers set to a unique id of the
+     * message.  When set, the queue drops a message whose id it has already
+     * seen within its duplicate window, so a producer can safely resend a
+     * message it did not get a receipt for.  The ids of persistent
+     * messages are kept in the store, so the window survives restarts.
+     */
+    @XmlAttribute(name="duplicate_key")
+    public String duplicate_key;
+
+    /**
+     * How many of the most recent message ids are checked for duplicates.
+     * The window keeps between half and all of this many ids.  Defaults to
+     * 100000.
+     */
+    @XmlAttribute(name="duplicate_window")
+    public Integer duplicate_window;
+
     /**
      * To hold any other non-matching XML elements
      */
     @XmlAnyElement(lax=true)
     public List<Object> other = new ArrayList<Object>();
 
+    /**
+     * Copies all the settings over from another settings object, new fields have to
+     * be added here as well.
+     */
+    public void copyFrom(QueueSettingsDTO settings) {
+        tail_buffer = settings.tail_buffer;
+        persistent = settings.persistent;
+        round_robin = settings.round_robin;
+        dispatch = settings.dispatch;
+        message_group_graceful_handoff = settings.message_group_graceful_handoff;
+        swap = settings.swap;
+        swap_range_size = settings.swap_range_size;
+        quota = settings.quota;
+        quota_messages = settings.quota_messages;
+        full_policy = settings.full_policy;
+        fast_delivery_rate = settings.fast_delivery_rate;
+        catchup_enqueue_rate = settings.catchup_enqueue_rate;
+        max_enqueue_rate = settings.max_enqueue_rate;
+        dlq = settings.dlq;
+        nak_limit = settings.nak_limit;
+        dlq_expired = settings.dlq_expired;
+        last_value_key = settings.last_value_key;
+        priorities = settings.priorities;
+        priority_starvation_limit = settings.priority_starvation_limit;
+        duplicate_key = settings.duplicate_key;
+        duplicate_window = settings.duplicate_window;
+        other = new ArrayList<Object>(settings.other);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -184,15 +274,30 @@ public class QueueSettingsDTO {
         if (catchup_enqueue_rate != null ? !catchup_enqueue_rate.equals(that.catchup_enqueue_rate) : that.catchup_enqueue_rate != null)
             return false;
         if (dlq != null ? !dlq.equals(that.dlq) : that.dlq != null) return false;
+        if (dlq_expired != null ? !dlq_expired.equals(that.dlq_expired) : that.dlq_expired != null) return false;
+        if (last_value_key != null ? !last_value_key.equals(that.last_value_key) : that.last_value_key != null)
+            return false;
+        if (priorities != null ? !priorities.equals(that.priorities) : that.priorities != null) return false;
+        if (priority_starvation_limit != null ? !priority_starvation_limit.equals(that.priority_starvation_limit) : that.priority_starvation_limit != null)
+            return false;
+        if (duplicate_key != null ? !duplicate_key.equals(that.duplicate_key) : that.duplicate_key != null) return false;
+        if (duplicate_window != null ? !duplicate_window.equals(that.duplicate_window) : that.duplicate_window != null)
+            return false;
+        if (dispatch != null ? !dispatch.equals(that.dispatch) : that.dispatch != null) return false;
         if (fast_delivery_rate != null ? !fast_delivery_rate.equals(that.fast_delivery_rate) : that.fast_delivery_rate != null)
             return false;
         if (full_policy != null ? !full_policy.equals(that.full_policy) : that.full_policy != null) return false;
         if (max_enqueue_rate != null ? !max_enqueue_rate.equals(that.max_enqueue_rate) : that.max_enqueue_rate != null)
             return false;
+        if (message_group_graceful_handoff != null ? !message_group_graceful_handoff.equals(that.message_group_graceful_handoff) : that.message_group_graceful_handoff != null)
+            return false;
         if (nak_limit != null ? !nak_limit.equals(that.nak_limit) : that.nak_limit != null) return false;
         if (other != null ? !other.equals(that.other) : that.other != null) return false;
         if (persistent != null ? !persistent.equals(that.persistent) : that.persistent != null) return false;
         if (quota != null ? !quota.equals(that.quota) : that.quota != null) return false;
+        if (quota_messages != null ? !quota_messages.equals(that.quota_messages) : that.quota_messages != null)
+            return false;
+        if (round_robin != null ? !round_robin.equals(that.round_robin) : that.round_robin != null) return false;
         if (swap != null ? !swap.equals(that.swap) : that.swap != null) return false;
         if (swap_range_size != null ? !swap_range_size.equals(that.swap_range_size) : that.swap_range_size != null)
             return false;
@@ -205,15 +310,25 @@ public class QueueSettingsDTO {
     public int hashCode() {
         int result = tail_buffer != null ? tail_buffer.hashCode() : 0;
         result = 31 * result + (persistent != null ? persistent.hashCode() : 0);
+        result = 31 * result + (round_robin != null ? round_robin.hashCode() : 0);
+        result = 31 * result + (dispatch != null ? dispatch.hashCode() : 0);
+        result = 31 * result + (message_group_graceful_handoff != null ? message_group_graceful_handoff.hashCode() : 0);
         result = 31 * result + (swap != null ? swap.hashCode() : 0);
         result = 31 * result + (swap_range_size != null ? swap_range_size.hashCode() : 0);
         result = 31 * result + (quota != null ? quota.hashCode() : 0);
+        result = 31 * result + (quota_messages != null ? quota_messages.hashCode() : 0);
         result = 31 * result + (full_policy != null ? full_policy.hashCode() : 0);
         result = 31 * result + (fast_delivery_rate != null ? fast_delivery_rate.hashCode() : 0);
         result = 31 * result + (catchup_enqueue_rate != null ? catchup_enqueue_rate.hashCode() : 0);
         result = 31 * result + (max_enqueue_rate != null ? max_enqueue_rate.hashCode() : 0);
         result = 31 * result + (dlq != null ? dlq.hashCode() : 0);
         result = 31 * result + (nak_limit != null ? nak_limit.hashCode() : 0);
+        result = 31 * result + (dlq_expired != null ? dlq_expired.hashCode() : 0);
+        result = 31 * result + (last_value_key != null ? last_value_key.hashCode() : 0);
+        result = 31 * result + (priorities != null ? priorities.hashCode() : 0);
+        result = 31 * result + (priority_starvation_limit != null ? priority_starvation_limit.hashCode() : 0);
+        result = 31 * result + (duplicate_key != null ? duplicate_key.hashCode() : 0);
+        result = 31 * result + (duplicate_window != null ? duplicate_window.hashCode() : 0);
         result = 31 * result + (other != null ? other.hashCode() : 0);
         return result;
     }
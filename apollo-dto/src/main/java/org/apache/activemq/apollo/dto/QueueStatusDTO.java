@@ -62,4 +62,12 @@ public class QueueStatusDTO extends ServiceStatusDTO {
 
     @XmlAttribute(name="max_enqueue_rate")
     public Integer max_enqueue_rate;
+
+    /**
+     * How the queue is pacing its producers: "normal", or "catchup" while
+     * the enqueue rate is held to the catchup_enqueue_rate so that fast
+     * consumers which are behind can reach the tail of the queue.
+     */
+    @XmlAttribute(name="flow_mode")
+    public String flow_mode;
 }
\ No newline at end of file
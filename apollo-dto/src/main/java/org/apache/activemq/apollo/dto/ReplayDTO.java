@@ -0,0 +1,75 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import javax.xml.bind.annotation.*;
+
+/**
+ * Keeps the most recent messages published to a topic around so that new subscribers
+ * which ask for it get them replayed before the live messages.  Add it to the other
+ * elements of a topic.  The kept messages are always bound by their total size.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+@XmlRootElement(name = "replay")
+@XmlAccessorType(XmlAccessType.FIELD)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ReplayDTO {
+
+    /**
+     * The number of most recent messages that are kept.  Unlimited if not set.
+     */
+    @XmlAttribute(name="max_messages")
+    public Integer max_messages;
+
+    /**
+     * The number of seconds messages are kept for.  Unlimited if not set.
+     */
+    @XmlAttribute(name="max_age")
+    public Integer max_age;
+
+    /**
+     * The total size of the messages that are kept, for example '10m'.  Defaults to 10 MB.
+     */
+    @XmlAttribute(name="max_size")
+    public String max_size;
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ReplayDTO)) return false;
+
+        ReplayDTO replayDTO = (ReplayDTO) o;
+
+        if (max_age != null ? !max_age.equals(replayDTO.max_age) : replayDTO.max_age != null) return false;
+        if (max_messages != null ? !max_messages.equals(replayDTO.max_messages) : replayDTO.max_messages != null)
+            return false;
+        if (max_size != null ? !max_size.equals(replayDTO.max_size) : replayDTO.max_size != null) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = max_messages != null ? max_messages.hashCode() : 0;
+        result = 31 * result + (max_age != null ? max_age.hashCode() : 0);
+        result = 31 * result + (max_size != null ? max_size.hashCode() : 0);
+        return result;
+    }
+}
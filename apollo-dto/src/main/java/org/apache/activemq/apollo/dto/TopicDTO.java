@@ -44,11 +44,22 @@ public class TopicDTO {
      * delete, otherwise the topic will auto delete
      * after it has been unused for the number
      * of seconds configured in this field.  If unset,
-     * it defaults to 5 minutes
+     * it defaults to 5 minutes, except for a topic
+     * configured with its exact id which is kept.
+     * Only topics without subscribers or producers
+     * count as unused.
      */
     @XmlAttribute(name="auto_delete_after")
     public Integer auto_delete_after;
 
+    /**
+     * What the topic does with a subscriber which has fallen more than a tail
+     * buffer behind the other subscribers.  `block` (the default) holds back the
+     * producers until it catches up, `queue` moves the subscriber onto a private
+     * queue configured with the `subscription` settings which can swap the backlog
+     * to the store, and `drop-oldest` drops the oldest messages the subscriber has
+     * not received yet.
+     */
     @XmlAttribute(name="slow_consumer_policy")
     public String slow_consumer_policy;
 
@@ -60,7 +71,8 @@ public class TopicDTO {
     public QueueSettingsDTO subscription;
 
     /**
-     * To hold any other non-matching XML elements
+     * To hold any other non-matching XML elements, like the `replay`
+     * buffer settings of the topic.
      */
     @XmlAnyElement(lax=true)
     public List<Object> other = new ArrayList<Object>();
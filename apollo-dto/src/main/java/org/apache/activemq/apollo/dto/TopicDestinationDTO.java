@@ -39,6 +39,13 @@ public class TopicDestinationDTO extends DestinationDTO {
         super(name);
     }
 
+    /**
+     * If set to true, a subscription first gets the messages held by the
+     * replay buffer of the topic before the ones published from now on.
+     */
+    @XmlAttribute(name="replay")
+    public Boolean replay;
+
     @Override
     public String toString() {
         return "topic:"+name;
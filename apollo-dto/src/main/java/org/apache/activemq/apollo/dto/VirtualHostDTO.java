@@ -76,6 +76,18 @@ public class VirtualHostDTO extends ServiceDTO {
     @XmlElement(name="dsub")
     public ArrayList<DurableSubscriptionDTO> dsubs = new ArrayList<DurableSubscriptionDTO>();
 
+    /**
+     * Destinations which forward the messages sent to them to other destinations.
+     */
+    @XmlElement(name="composite_destination")
+    public ArrayList<CompositeDestinationDTO> composite_destinations = new ArrayList<CompositeDestinationDTO>();
+
+    /**
+     * Topics whose consumers subscribe through queues.
+     */
+    @XmlElement(name="virtual_topic")
+    public ArrayList<VirtualTopicDTO> virtual_topics = new ArrayList<VirtualTopicDTO>();
+
     /**
      * Should connections get regroups so they get serviced by the same thread?
      */
@@ -115,6 +127,10 @@ public class VirtualHostDTO extends ServiceDTO {
         if (auto_create_destinations != null ? !auto_create_destinations.equals(that.auto_create_destinations) : that.auto_create_destinations != null)
             return false;
         if (dsubs != null ? !dsubs.equals(that.dsubs) : that.dsubs != null) return false;
+        if (composite_destinations != null ? !composite_destinations.equals(that.composite_destinations) : that.composite_destinations != null)
+            return false;
+        if (virtual_topics != null ? !virtual_topics.equals(that.virtual_topics) : that.virtual_topics != null)
+            return false;
         if (heap_bypass != null ? !heap_bypass.equals(that.heap_bypass) : that.heap_bypass != null) return false;
         if (host_names != null ? !host_names.equals(that.host_names) : that.host_names != null) return false;
         if (log_category != null ? !log_category.equals(that.log_category) : that.log_category != null) return false;
@@ -141,6 +157,8 @@ public class VirtualHostDTO extends ServiceDTO {
         result = 31 * result + (topics != null ? topics.hashCode() : 0);
         result = 31 * result + (queues != null ? queues.hashCode() : 0);
         result = 31 * result + (dsubs != null ? dsubs.hashCode() : 0);
+        result = 31 * result + (composite_destinations != null ? composite_destinations.hashCode() : 0);
+        result = 31 * result + (virtual_topics != null ? virtual_topics.hashCode() : 0);
         result = 31 * result + (regroup_connections != null ? regroup_connections.hashCode() : 0);
         result = 31 * result + (authentication != null ? authentication.hashCode() : 0);
         result = 31 * result + (log_category != null ? log_category.hashCode() : 0);
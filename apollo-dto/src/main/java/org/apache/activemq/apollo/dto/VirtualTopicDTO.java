@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import javax.xml.bind.annotation.*;
+
+/**
+ * Turns the queues whose name is the consumer prefix followed by the name of a topic
+ * into subscribers of that topic.  Every group of consumers gets its own queue, so the
+ * consumers of a group share the topic's messages while every group gets all of them,
+ * and the messages are kept while the consumers are away.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+@XmlRootElement(name = "virtual_topic")
+@XmlAccessorType(XmlAccessType.FIELD)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class VirtualTopicDTO {
+
+    /**
+     * The topics which are virtual, wildcards may be used.  Every topic is when not set.
+     */
+    @XmlAttribute
+    public String id;
+
+    /**
+     * The path segments which come before the topic name in the name of a consumer
+     * queue, <code>*</code> may be used for a segment.  Defaults to <code>Consumer.*.</code>
+     */
+    @XmlAttribute(name="consumer_prefix")
+    public String consumer_prefix;
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof VirtualTopicDTO)) return false;
+
+        VirtualTopicDTO that = (VirtualTopicDTO) o;
+
+        if (consumer_prefix != null ? !consumer_prefix.equals(that.consumer_prefix) : that.consumer_prefix != null)
+            return false;
+        if (id != null ? !id.equals(that.id) : that.id != null) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = id != null ? id.hashCode() : 0;
+        result = 31 * result + (consumer_prefix != null ? consumer_prefix.hashCode() : 0);
+        return result;
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.dto;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class QueueSettingsDTOTest {
+
+    @Test
+    public void testCopyFromCopiesEverySetting() throws Exception {
+        QueueSettingsDTO original = new QueueSettingsDTO();
+        int value = 1;
+        for (Field field : QueueSettingsDTO.class.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()) || field.getName().equals("other")) {
+                continue;
+            }
+            Class<?> type = field.getType();
+            if (type == String.class) {
+                field.set(original, "value-" + value);
+            } else if (type == Boolean.class) {
+                field.set(original, Boolean.TRUE);
+            } else if (type == Integer.class) {
+                field.set(original, value);
+            } else if (type == Long.class) {
+                field.set(original, (long) value);
+            } else {
+                throw new AssertionError("no test value for " + field.getName());
+            }
+            value++;
+        }
+        original.other.add("extension");
+
+        QueueDTO copy = new QueueDTO();
+        copy.copyFrom(original);
+        for (Field field : QueueSettingsDTO.class.getDeclaredFields()) {
+            if (!Modifier.isStatic(field.getModifiers())) {
+                assertEquals(field.get(original), field.get(copy));
+            }
+        }
+        assertTrue(copy.other != original.other);
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Base class for reference counted objects.  Objects start off with a reference count
+ * of one and {@link #dispose()} is called once the last reference is released.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public abstract class BaseRetained implements Retained {
+
+    private final AtomicInteger retained = new AtomicInteger(1);
+
+    @Override
+    public void retain() {
+        int prev = retained.getAndIncrement();
+        assert prev > 0 : "Object was already disposed";
+    }
+
+    @Override
+    public void release() {
+        int rc = retained.decrementAndGet();
+        assert rc >= 0 : "Object released too many times";
+        if (rc == 0) {
+            dispose();
+        }
+    }
+
+    @Override
+    public int retained() {
+        return retained.get();
+    }
+
+    protected abstract void dispose();
+}
@@ -0,0 +1,182 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Maps 64 bit keys onto a set of members so that adding or removing a member only
+ * moves about 1/N of the keys.  Every member is placed on the ring at a number of
+ * pseudo random points, a key belongs to the member owning the first point at or
+ * after the key's position.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class ConsistentHashRing<T> {
+
+    public static final int DEFAULT_POINTS_PER_MEMBER = 64;
+
+    private final int pointsPerMember;
+    private final ArrayList<T> members = new ArrayList<T>();
+    private final ArrayList<Long> memberIds = new ArrayList<Long>();
+
+    private long[] points = new long[0];
+    private Object[] owners = new Object[0];
+
+    public ConsistentHashRing() {
+        this(DEFAULT_POINTS_PER_MEMBER);
+    }
+
+    public ConsistentHashRing(int pointsPerMember) {
+        this.pointsPerMember = pointsPerMember;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of a string.
+     */
+    public static long hash(String value) {
+        long rc = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            rc ^= value.charAt(i);
+            rc *= 0x100000001b3L;
+        }
+        return mix(rc);
+    }
+
+    /**
+     * Finalizer which makes every bit of the input affect every bit of the result.
+     */
+    public static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /**
+     * Adds a member to the ring.  The id decides where the member lands on the ring
+     * so it should be stable and unique.
+     */
+    public void add(T member, long id) {
+        members.add(member);
+        memberIds.add(id);
+        rebuild();
+    }
+
+    public boolean remove(T member) {
+        int i = members.indexOf(member);
+        if (i < 0) {
+            return false;
+        }
+        members.remove(i);
+        memberIds.remove(i);
+        rebuild();
+        return true;
+    }
+
+    /**
+     * @return the member which owns the key or null if the ring is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public T get(long key) {
+        if (points.length == 0) {
+            return null;
+        }
+        int i = Arrays.binarySearch(points, key);
+        if (i < 0) {
+            i = -(i + 1);
+            if (i == points.length) {
+                i = 0;
+            }
+        } else {
+            // the search may land on any of several equal points, the first one wins
+            while (i > 0 && points[i - 1] == key) {
+                i--;
+            }
+        }
+        return (T) owners[i];
+    }
+
+    public List<T> getMembers() {
+        return new ArrayList<T>(members);
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    public boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    /**
+     * @return the sorted positions of all the points on the ring.
+     */
+    long[] getPoints() {
+        return points.clone();
+    }
+
+    private void rebuild() {
+        int count = members.size() * pointsPerMember;
+        long[] keys = new long[count];
+        int[] index = new int[count];
+        int n = 0;
+        for (int m = 0; m < members.size(); m++) {
+            // the ids are often consecutive, so they get mixed before the points are
+            // derived from them or neighbouring members would share most of their points
+            long id = mix(memberIds.get(m));
+            for (int p = 0; p < pointsPerMember; p++) {
+                keys[n] = mix(id + p);
+                index[n] = m;
+                n++;
+            }
+        }
+
+        // sort the points along with the member that owns them, equal points are
+        // ordered by member id so the owner of a key does not depend on insertion order
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        final long[] k = keys;
+        final int[] owner = index;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long x = k[a];
+                long y = k[b];
+                if (x == y) {
+                    x = memberIds.get(owner[a]);
+                    y = memberIds.get(owner[b]);
+                }
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        points = new long[count];
+        owners = new Object[count];
+        for (int i = 0; i < count; i++) {
+            int j = order[i];
+            points[i] = keys[j];
+            owners[i] = members.get(index[j]);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash set of primitive longs held in an open addressed table, so it takes about
+ * 8 to 16 bytes per value and no objects get allocated as values are added.  Values
+ * can't be removed one by one, the set is meant to be filled up and cleared.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class LongHashSet {
+
+    private static final int MIN_CAPACITY = 16;
+
+    // 0 marks an empty slot, so whether the set holds 0 is tracked on the side
+    private long[] values;
+    private boolean containsZero;
+    private int size;
+    private int mask;
+
+    public LongHashSet() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongHashSet(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity <<= 1;
+        }
+        values = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        return (int) value;
+    }
+
+    public boolean contains(long value) {
+        if (value == 0) {
+            return containsZero;
+        }
+        int i = hash(value) & mask;
+        while (values[i] != 0) {
+            if (values[i] == value) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * @return false if the set already held the value
+     */
+    public boolean add(long value) {
+        if (value == 0) {
+            if (containsZero) {
+                return false;
+            }
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int i = hash(value) & mask;
+        while (values[i] != 0) {
+            if (values[i] == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        values[i] = value;
+        size++;
+        if (size > (mask + 1) * 3 / 4) {
+            resize((mask + 1) << 1);
+        }
+        return true;
+    }
+
+    private void resize(int capacity) {
+        long[] old = values;
+        values = new long[capacity];
+        mask = capacity - 1;
+        for (long value : old) {
+            if (value != 0) {
+                int i = hash(value) & mask;
+                while (values[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                values[i] = value;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(values, 0);
+        containsZero = false;
+        size = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "LongHashSet(size: " + size + ")";
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Converts memory size settings like <code>500mb</code>, <code>1g</code>, <code>64k</code>
+ * or just plain <code>1024000</code> into a number of bytes.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class MemoryPropertyEditor {
+
+    private static final Pattern PATTERN = Pattern.compile("^\\s*(\\d+)\\s*(b|k|kb|m|mb|g|gb)?\\s*$", Pattern.CASE_INSENSITIVE);
+
+    public static long parse(String value) {
+        Matcher m = PATTERN.matcher(value);
+        if (!m.matches()) {
+            throw new IllegalArgumentException("Could not convert '" + value + "' to a memory size");
+        }
+
+        long rc = Long.parseLong(m.group(1));
+        String unit = m.group(2);
+        if (unit != null) {
+            char c = Character.toLowerCase(unit.charAt(0));
+            if (c == 'k') {
+                rc *= 1024L;
+            } else if (c == 'm') {
+                rc *= 1024L * 1024;
+            } else if (c == 'g') {
+                rc *= 1024L * 1024 * 1024;
+            }
+        }
+        return rc;
+    }
+
+    /**
+     * @return the parsed value or the default value if the value is not set
+     */
+    public static long parse(String value, long defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return parse(value);
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+import org.apache.activemq.apollo.util.list.LinkedNode;
+import org.apache.activemq.apollo.util.list.LinkedNodeList;
+
+/**
+ * A hierarchical timing wheel.  Scheduling and cancelling a timer are constant time
+ * operations no matter how many timers are pending, and advancing the wheel only
+ * touches the slots which come due plus, once per rotation of a level, the slot of
+ * the next level up whose timers get cascaded down.
+ *
+ * The wheel is driven by the caller: {@link #advance(long, Procedure1)} fires the
+ * timers whose deadline has been reached.  Timers fire at the first tick boundary at
+ * or after their deadline, never before.  Deadlines past the span of the wheel are
+ * parked in the top level and re-checked every time that level rotates.
+ *
+ * The wheel is not thread safe.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class TimingWheel<T> {
+
+    public static final class Timer<T> extends LinkedNode<Timer<T>> {
+        private final T value;
+        private final long deadline;
+        private final long tick;
+
+        private Timer(T value, long deadline, long tick) {
+            this.value = value;
+            this.deadline = deadline;
+            this.tick = tick;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        @Override
+        public String toString() {
+            return "Timer(" + value + " @ " + deadline + ")";
+        }
+    }
+
+    private final long tickDuration;
+    private final int slotBits;
+    private final int slotMask;
+    private final LinkedNodeList<Timer<T>>[][] levels;
+
+    // the last tick which has been fired
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickDuration the resolution of the wheel
+     * @param slotBits     each level has 2^slotBits slots
+     * @param levelCount   the number of levels, the wheel spans 2^(slotBits * levelCount) ticks
+     * @param now          the current time
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickDuration, int slotBits, int levelCount, long now) {
+        if (tickDuration <= 0 || slotBits <= 0 || levelCount <= 0 || slotBits * levelCount > 62) {
+            throw new IllegalArgumentException("invalid timing wheel dimensions");
+        }
+        this.tickDuration = tickDuration;
+        this.slotBits = slotBits;
+        this.slotMask = (1 << slotBits) - 1;
+        this.levels = new LinkedNodeList[levelCount][1 << slotBits];
+        for (LinkedNodeList<Timer<T>>[] level : levels) {
+            for (int i = 0; i < level.length; i++) {
+                level[i] = new LinkedNodeList<Timer<T>>();
+            }
+        }
+        this.currentTick = now / tickDuration;
+    }
+
+    /**
+     * Schedules the value to be fired once the wheel is advanced to the deadline.  A
+     * deadline in the past fires on the next advance.
+     */
+    public Timer<T> schedule(T value, long deadline) {
+        long tick = (deadline + tickDuration - 1) / tickDuration;
+        Timer<T> timer = new Timer<T>(value, deadline, Math.max(tick, currentTick + 1));
+        place(timer);
+        size++;
+        return timer;
+    }
+
+    /**
+     * @return true if the timer was pending, false if it already fired or was cancelled.
+     */
+    public boolean cancel(Timer<T> timer) {
+        if (timer.unlink()) {
+            size--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Fires all the timers whose deadline is at or before now.
+     */
+    public void advance(long now, Procedure1<Timer<T>> expired) {
+        long target = now / tickDuration;
+        if (size == 0) {
+            // nothing could fire or cascade so there is no need to walk the ticks
+            currentTick = Math.max(currentTick, target);
+            return;
+        }
+        while (currentTick < target && size > 0) {
+            currentTick++;
+            for (int level = levels.length - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (slotBits * level)) - 1)) == 0) {
+                    cascade(level);
+                }
+            }
+            LinkedNodeList<Timer<T>> slot = levels[0][(int) (currentTick & slotMask)];
+            Timer<T> timer;
+            while ((timer = slot.getHead()) != null) {
+                timer.unlink();
+                size--;
+                expired.execute(timer);
+            }
+        }
+        currentTick = Math.max(currentTick, target);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getTickDuration() {
+        return tickDuration;
+    }
+
+    private void cascade(int level) {
+        LinkedNodeList<Timer<T>> slot = levels[level][(int) ((currentTick >>> (slotBits * level)) & slotMask)];
+        Timer<T> timer;
+        while ((timer = slot.getHead()) != null) {
+            timer.unlink();
+            place(timer);
+        }
+    }
+
+    private void place(Timer<T> timer) {
+        long tick = Math.max(timer.tick, currentTick);
+        int top = levels.length - 1;
+        for (int level = 0; level < top; level++) {
+            int shift = slotBits * level;
+            if ((tick >>> shift) - (currentTick >>> shift) <= slotMask) {
+                levels[level][(int) ((tick >>> shift) & slotMask)].addLast(timer);
+                return;
+            }
+        }
+        int shift = slotBits * top;
+        long block = Math.min(tick >>> shift, (currentTick >>> shift) + slotMask);
+        levels[top][(int) (block & slotMask)].addLast(timer);
+    }
+
+    @Override
+    public String toString() {
+        return "TimingWheel(size: " + size + ")";
+    }
+}
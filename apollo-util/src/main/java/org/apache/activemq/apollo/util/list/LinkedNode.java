@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util.list;
+
+/**
+ * A node of a {@link LinkedNodeList}.  Subclasses hold the actual payload so that
+ * a list entry does not need an extra wrapper object.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class LinkedNode<T extends LinkedNode<T>> {
+
+    protected LinkedNodeList<T> list;
+    protected T next;
+    protected T prev;
+
+    @SuppressWarnings("unchecked")
+    private T getThis() {
+        return (T) this;
+    }
+
+    public LinkedNodeList<T> getList() {
+        return list;
+    }
+
+    public T getNext() {
+        return next;
+    }
+
+    public T getPrevious() {
+        return prev;
+    }
+
+    public boolean isLinked() {
+        return list != null;
+    }
+
+    public boolean isHeadNode() {
+        return list != null && list.head == this;
+    }
+
+    public boolean isTailNode() {
+        return list != null && list.tail == this;
+    }
+
+    /**
+     * Links the given node after this node.
+     */
+    public void linkAfter(T node) {
+        if (node.list != null) {
+            throw new IllegalArgumentException("Node is already linked");
+        }
+        if (list == null) {
+            throw new IllegalStateException("This node is not linked");
+        }
+        node.list = list;
+        node.prev = getThis();
+        node.next = next;
+        if (next != null) {
+            next.prev = node;
+        } else {
+            list.tail = node;
+        }
+        next = node;
+        list.size++;
+    }
+
+    /**
+     * Links the given node before this node.
+     */
+    public void linkBefore(T node) {
+        if (node.list != null) {
+            throw new IllegalArgumentException("Node is already linked");
+        }
+        if (list == null) {
+            throw new IllegalStateException("This node is not linked");
+        }
+        node.list = list;
+        node.next = getThis();
+        node.prev = prev;
+        if (prev != null) {
+            prev.next = node;
+        } else {
+            list.head = node;
+        }
+        prev = node;
+        list.size++;
+    }
+
+    /**
+     * Removes this node from the list it is linked into.
+     *
+     * @return false if the node was not linked.
+     */
+    public boolean unlink() {
+        if (list == null) {
+            return false;
+        }
+        if (prev != null) {
+            prev.next = next;
+        } else {
+            list.head = next;
+        }
+        if (next != null) {
+            next.prev = prev;
+        } else {
+            list.tail = prev;
+        }
+        list.size--;
+        list = null;
+        next = null;
+        prev = null;
+        return true;
+    }
+}
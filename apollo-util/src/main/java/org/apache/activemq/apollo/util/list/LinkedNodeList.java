@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util.list;
+
+/**
+ * A doubly linked list of {@link LinkedNode} objects.  Unlike java.util.LinkedList,
+ * nodes know their position in the list so they can be unlinked in constant time.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class LinkedNodeList<T extends LinkedNode<T>> {
+
+    T head;
+    T tail;
+    int size;
+
+    public boolean isEmpty() {
+        return head == null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public T getHead() {
+        return head;
+    }
+
+    public T getTail() {
+        return tail;
+    }
+
+    public void addFirst(T node) {
+        if (head == null) {
+            linkFirst(node);
+        } else {
+            head.linkBefore(node);
+        }
+    }
+
+    public void addLast(T node) {
+        if (tail == null) {
+            linkFirst(node);
+        } else {
+            tail.linkAfter(node);
+        }
+    }
+
+    private void linkFirst(T node) {
+        if (node.list != null) {
+            throw new IllegalArgumentException("Node is already linked");
+        }
+        node.list = this;
+        node.next = null;
+        node.prev = null;
+        head = node;
+        tail = node;
+        size = 1;
+    }
+
+    public void clear() {
+        while (head != null) {
+            head.unlink();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        T node = head;
+        while (node != null) {
+            if (node != head) {
+                sb.append(", ");
+            }
+            sb.append(node);
+            node = node.next;
+        }
+        return sb.append("]").toString();
+    }
+}
@@ -0,0 +1,237 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util.path;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A trie of values keyed by path segments. Keys may contain the wildcard segments
+ * <code>*</code> (any single segment) and <code>**</code> (zero or more segments).
+ *
+ * Lookups walk the trie one segment at a time, so their cost is bound by the depth of
+ * the path rather than by the number of values stored in the map.
+ *
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class PathMap<V> {
+
+    public static final String ANY_CHILD = "*";
+    public static final String ANY_DESCENDANT = "**";
+
+    private final Node<V> root = new Node<V>(null, null);
+    private int size;
+
+    public static boolean isWildcard(String[] path) {
+        for (String segment : path) {
+            if (ANY_CHILD.equals(segment) || ANY_DESCENDANT.equals(segment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Does the (possibly wildcard) filter match the concrete path?
+     */
+    public static boolean matches(String[] filter, String[] path) {
+        return matches(filter, 0, path, 0);
+    }
+
+    private static boolean matches(String[] filter, int fi, String[] path, int pi) {
+        while (fi < filter.length) {
+            String segment = filter[fi];
+            if (ANY_DESCENDANT.equals(segment)) {
+                for (int i = pi; i <= path.length; i++) {
+                    if (matches(filter, fi + 1, path, i)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (pi >= path.length) {
+                return false;
+            }
+            if (!ANY_CHILD.equals(segment) && !segment.equals(path[pi])) {
+                return false;
+            }
+            fi++;
+            pi++;
+        }
+        return pi == path.length;
+    }
+
+    public void put(String[] path, V value) {
+        Node<V> node = root;
+        for (String segment : path) {
+            node = node.getOrCreateChild(segment);
+        }
+        if (node.values.add(value)) {
+            size++;
+        }
+    }
+
+    public boolean remove(String[] path, V value) {
+        Node<V> node = find(path);
+        if (node == null || !node.values.remove(value)) {
+            return false;
+        }
+        size--;
+        node.prune();
+        return true;
+    }
+
+    /**
+     * @return the values stored under exactly this key, wildcards are not expanded
+     */
+    public Set<V> getExact(String[] path) {
+        Node<V> node = find(path);
+        Set<V> rc = new LinkedHashSet<V>();
+        if (node != null) {
+            rc.addAll(node.values);
+        }
+        return rc;
+    }
+
+    /**
+     * Finds the values whose keys match the given concrete path. Keys that contain
+     * wildcards are honored, the path itself is taken literally.
+     */
+    public Set<V> get(String[] path) {
+        Set<V> rc = new LinkedHashSet<V>();
+        collectMatchingKeys(root, path, 0, rc);
+        return rc;
+    }
+
+    /**
+     * Finds the values stored under concrete keys which are matched by the given
+     * (possibly wildcard) filter.  Only the branches of the trie selected by the filter
+     * are visited.
+     */
+    public Set<V> getMatching(String[] filter) {
+        Set<V> rc = new LinkedHashSet<V>();
+        collectMatchedByFilter(root, filter, 0, rc);
+        return rc;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        root.children.clear();
+        root.values.clear();
+        size = 0;
+    }
+
+    private Node<V> find(String[] path) {
+        Node<V> node = root;
+        for (int i = 0; i < path.length && node != null; i++) {
+            node = node.children.get(path[i]);
+        }
+        return node;
+    }
+
+    private void collectMatchingKeys(Node<V> node, String[] path, int pos, Set<V> rc) {
+        Node<V> descendants = node.children.get(ANY_DESCENDANT);
+        if (descendants != null) {
+            // '**' can swallow any number of the remaining segments
+            for (int i = pos; i <= path.length; i++) {
+                collectMatchingKeys(descendants, path, i, rc);
+            }
+        }
+
+        if (pos == path.length) {
+            rc.addAll(node.values);
+            return;
+        }
+
+        Node<V> child = node.children.get(path[pos]);
+        if (child != null) {
+            collectMatchingKeys(child, path, pos + 1, rc);
+        }
+        Node<V> anyChild = node.children.get(ANY_CHILD);
+        if (anyChild != null && anyChild != child) {
+            collectMatchingKeys(anyChild, path, pos + 1, rc);
+        }
+    }
+
+    private void collectMatchedByFilter(Node<V> node, String[] filter, int pos, Set<V> rc) {
+        if (pos == filter.length) {
+            rc.addAll(node.values);
+            return;
+        }
+
+        String segment = filter[pos];
+        if (ANY_DESCENDANT.equals(segment)) {
+            collectMatchedByFilter(node, filter, pos + 1, rc);
+            for (Node<V> child : node.children.values()) {
+                collectMatchedByFilter(child, filter, pos, rc);
+            }
+        } else if (ANY_CHILD.equals(segment)) {
+            for (Node<V> child : node.children.values()) {
+                collectMatchedByFilter(child, filter, pos + 1, rc);
+            }
+        } else {
+            Node<V> child = node.children.get(segment);
+            if (child != null) {
+                collectMatchedByFilter(child, filter, pos + 1, rc);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PathMap(size: " + size + ")";
+    }
+
+    private static class Node<V> {
+        private final Node<V> parent;
+        private final String segment;
+        private final HashMap<String, Node<V>> children = new HashMap<String, Node<V>>(4);
+        private final LinkedHashSet<V> values = new LinkedHashSet<V>(2);
+
+        Node(Node<V> parent, String segment) {
+            this.parent = parent;
+            this.segment = segment;
+        }
+
+        Node<V> getOrCreateChild(String segment) {
+            Node<V> child = children.get(segment);
+            if (child == null) {
+                child = new Node<V>(this, segment);
+                children.put(segment, child);
+            }
+            return child;
+        }
+
+        // drop nodes which no longer hold values or children so removed
+        // destinations don't leave dead branches behind
+        void prune() {
+            Node<V> node = this;
+            while (node.parent != null && node.values.isEmpty() && node.children.isEmpty()) {
+                node.parent.children.remove(node.segment);
+                node = node.parent;
+            }
+        }
+    }
+}
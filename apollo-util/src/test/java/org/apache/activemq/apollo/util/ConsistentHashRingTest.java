@@ -0,0 +1,93 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class ConsistentHashRingTest {
+
+    @Test
+    public void testAddingAMemberOnlyMovesItsShareOfKeys() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<String>();
+        assertNull(ring.get(1));
+        for (int i = 0; i < 4; i++) {
+            ring.add("member-" + i, i);
+        }
+
+        int keys = 10000;
+        String[] before = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            before[i] = ring.get(ConsistentHashRing.hash("group-" + i));
+        }
+
+        ring.add("member-4", 4);
+        int moved = 0;
+        for (int i = 0; i < keys; i++) {
+            String owner = ring.get(ConsistentHashRing.hash("group-" + i));
+            if (!owner.equals(before[i])) {
+                // keys only ever move to the new member
+                assertEquals("member-4", owner);
+                moved++;
+            }
+        }
+        // about 1/5 of the keys should move
+        assertTrue("moved: " + moved, moved > keys / 10 && moved < keys * 3 / 10);
+
+        ring.remove("member-4");
+        for (int i = 0; i < keys; i++) {
+            assertEquals(before[i], ring.get(ConsistentHashRing.hash("group-" + i)));
+        }
+    }
+
+    @Test
+    public void testConsecutiveIdsGetDistinctPointsAndAnEvenShare() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<String>();
+        int members = 8;
+        for (int i = 1; i <= members; i++) {
+            ring.add("member-" + i, i);
+        }
+
+        long[] points = ring.getPoints();
+        assertEquals(members * ConsistentHashRing.DEFAULT_POINTS_PER_MEMBER, points.length);
+        for (int i = 1; i < points.length; i++) {
+            assertTrue("duplicate point at " + i, points[i - 1] < points[i]);
+        }
+
+        int keys = 10000;
+        HashMap<String, Integer> share = new HashMap<String, Integer>();
+        for (int i = 0; i < keys; i++) {
+            String owner = ring.get(ConsistentHashRing.hash("group-" + i));
+            Integer count = share.get(owner);
+            share.put(owner, count == null ? 1 : count + 1);
+        }
+        assertEquals(members, share.size());
+        for (String member : share.keySet()) {
+            int count = share.get(member);
+            // every member should get about 1/8 of the groups
+            assertTrue(member + ": " + count, count > keys / members / 2 && count < keys / members * 3 / 2);
+        }
+    }
+}
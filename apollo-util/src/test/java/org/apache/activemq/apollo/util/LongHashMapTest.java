@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class LongHashMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        LongHashMap<String> map = new LongHashMap<String>();
+        for (long i = 0; i < 10000; i++) {
+            assertNull(map.put(i * 7, "v" + i));
+        }
+        assertEquals(10000, map.size());
+        assertEquals("v42", map.get(42 * 7));
+        assertEquals("v42", map.put(42 * 7, "x"));
+        assertEquals("x", map.get(42 * 7));
+
+        // removing has to keep the other keys of the probe chains reachable
+        for (long i = 0; i < 10000; i += 2) {
+            assertTrue(map.remove(i * 7) != null);
+        }
+        assertEquals(5000, map.size());
+        for (long i = 0; i < 10000; i++) {
+            assertEquals(i % 2 == 1, map.containsKey(i * 7));
+        }
+        assertNull(map.remove(0));
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertFalse(map.containsKey(7));
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class TimingWheelTest {
+
+    static class Collector extends Procedure1<TimingWheel.Timer<Long>> {
+        final List<Long> fired = new ArrayList<Long>();
+        long now;
+
+        @Override
+        public void execute(TimingWheel.Timer<Long> timer) {
+            // a timer must never fire before its deadline
+            assertTrue(timer.getDeadline() <= now);
+            fired.add(timer.getValue());
+        }
+    }
+
+    @Test
+    public void testFiresEveryTimerOnceAfterItsDeadline() {
+        TimingWheel<Long> wheel = new TimingWheel<Long>(10, 4, 3, 0);
+        Random random = new Random(42);
+        int count = 5000;
+        for (int i = 0; i < count; i++) {
+            // well past the 40960ms span of the wheel so some timers get parked in the top level
+            long deadline = random.nextInt(200000);
+            wheel.schedule(deadline, deadline);
+        }
+        assertEquals(count, wheel.size());
+
+        Collector collector = new Collector();
+        for (long now = 0; now <= 200000; now += 1 + random.nextInt(700)) {
+            collector.now = now;
+            int before = collector.fired.size();
+            wheel.advance(now, collector);
+            for (int i = before; i < collector.fired.size(); i++) {
+                // and it fires within a tick of the deadline
+                assertTrue(collector.fired.get(i) > collector.now - 700 - 10);
+            }
+        }
+        collector.now = 200000;
+        wheel.advance(200000, collector);
+        assertEquals(count, collector.fired.size());
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testCancel() {
+        TimingWheel<Long> wheel = new TimingWheel<Long>(10, 4, 3, 1000);
+        TimingWheel.Timer<Long> a = wheel.schedule(1L, 1500);
+        TimingWheel.Timer<Long> b = wheel.schedule(2L, 5000);
+        // a deadline in the past fires on the next advance
+        wheel.schedule(3L, 10);
+        assertTrue(wheel.cancel(a));
+        assertFalse(wheel.cancel(a));
+
+        Collector collector = new Collector();
+        collector.now = 1010;
+        wheel.advance(1010, collector);
+        assertEquals(1, collector.fired.size());
+        assertEquals(3L, (long) collector.fired.get(0));
+
+        collector.now = 6000;
+        wheel.advance(6000, collector);
+        assertEquals(2, collector.fired.size());
+        assertFalse(wheel.cancel(b));
+        assertTrue(wheel.isEmpty());
+    }
+}
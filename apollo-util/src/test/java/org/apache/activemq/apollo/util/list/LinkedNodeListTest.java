@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util.list;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class LinkedNodeListTest {
+
+    static class IntNode extends LinkedNode<IntNode> {
+        final int value;
+
+        IntNode(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(value);
+        }
+    }
+
+    @Test
+    public void testLinkAndUnlink() {
+        LinkedNodeList<IntNode> list = new LinkedNodeList<IntNode>();
+        IntNode one = new IntNode(1);
+        IntNode three = new IntNode(3);
+        list.addLast(one);
+        list.addLast(three);
+        one.linkAfter(new IntNode(2));
+        list.addFirst(new IntNode(0));
+
+        assertEquals(4, list.size());
+        assertEquals("[0, 1, 2, 3]", list.toString());
+        assertTrue(three.isTailNode());
+
+        assertTrue(three.unlink());
+        assertFalse(three.unlink());
+        assertNull(three.getList());
+        assertEquals("[0, 1, 2]", list.toString());
+        assertEquals(2, list.getTail().value);
+
+        list.getHead().unlink();
+        assertSame(one, list.getHead());
+        assertNull(one.getPrevious());
+
+        list.clear();
+        assertTrue(list.isEmpty());
+        assertEquals(0, list.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNodeCanOnlyBeLinkedOnce() {
+        LinkedNodeList<IntNode> list = new LinkedNodeList<IntNode>();
+        IntNode node = new IntNode(1);
+        list.addLast(node);
+        list.addLast(node);
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util.path;
+
+import org.junit.Test;
+
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="http://www.christianposta.com/blog">Christian Posta</a>
+ */
+public class PathMapTest {
+
+    private static String[] path(String value) {
+        return value.split("\\.");
+    }
+
+    @Test
+    public void testWildcardKeysMatchConcretePath() {
+        PathMap<String> map = new PathMap<String>();
+        map.put(path("foo.bar"), "exact");
+        map.put(path("foo.*"), "child");
+        map.put(path("foo.**"), "descendant");
+        map.put(path("**"), "all");
+        map.put(path("foo.bar.baz"), "deeper");
+
+        Set<String> rc = map.get(path("foo.bar"));
+        assertEquals(4, rc.size());
+        assertTrue(rc.contains("exact"));
+        assertTrue(rc.contains("child"));
+        assertTrue(rc.contains("descendant"));
+        assertTrue(rc.contains("all"));
+
+        rc = map.get(path("foo"));
+        assertEquals(2, rc.size());
+        assertTrue(rc.contains("descendant"));
+        assertTrue(rc.contains("all"));
+
+        rc = map.get(path("foo.bar.baz"));
+        assertEquals(3, rc.size());
+        assertTrue(rc.contains("deeper"));
+        assertFalse(rc.contains("child"));
+    }
+
+    @Test
+    public void testFilterMatchesConcreteKeys() {
+        PathMap<String> map = new PathMap<String>();
+        map.put(path("a.b.c"), "abc");
+        map.put(path("a.x.c"), "axc");
+        map.put(path("a.b"), "ab");
+        map.put(path("z"), "z");
+
+        assertEquals(2, map.getMatching(path("a.*.c")).size());
+        assertEquals(3, map.getMatching(path("a.**")).size());
+        assertEquals(2, map.getMatching(path("**.c")).size());
+        assertEquals(4, map.getMatching(path("**")).size());
+        assertEquals(1, map.getMatching(path("a.b")).size());
+        assertEquals(0, map.getMatching(path("b.*")).size());
+    }
+
+    @Test
+    public void testRemovePrunesEmptyBranches() {
+        PathMap<String> map = new PathMap<String>();
+        map.put(path("a.b.c"), "one");
+        map.put(path("a.b.c"), "two");
+        assertEquals(2, map.size());
+
+        assertTrue(map.remove(path("a.b.c"), "one"));
+        assertFalse(map.remove(path("a.b.c"), "one"));
+        assertEquals(1, map.getExact(path("a.b.c")).size());
+
+        assertTrue(map.remove(path("a.b.c"), "two"));
+        assertTrue(map.isEmpty());
+        assertEquals(0, map.getMatching(path("**")).size());
+    }
+
+    @Test
+    public void testMatches() {
+        assertTrue(PathMap.matches(path("foo.*"), path("foo.bar")));
+        assertFalse(PathMap.matches(path("foo.*"), path("foo")));
+        assertTrue(PathMap.matches(path("foo.**"), path("foo")));
+        assertTrue(PathMap.matches(path("**.baz"), path("foo.bar.baz")));
+        assertFalse(PathMap.matches(path("**.baz"), path("foo.bar")));
+        assertTrue(PathMap.isWildcard(path("a.**")));
+        assertFalse(PathMap.isWildcard(path("a.b")));
+    }
+}